@@ -1,131 +1,456 @@
 package com.neuwton.tasdeeq;
 
+import com.neuwton.tasdeeq.concurrent.TasdeeqExecutor;
 import com.neuwton.tasdeeq.models.CertificateAuthorityTasdeeqResult;
+import com.neuwton.tasdeeq.models.CertificatePathResult;
+import com.neuwton.tasdeeq.trust.ChainPathBuilder;
+import com.neuwton.tasdeeq.trust.OfflineChainValidator;
+import com.neuwton.tasdeeq.trust.SSLContextPool;
+import com.neuwton.tasdeeq.trust.SignatureVerifier;
+import com.neuwton.tasdeeq.trust.TrustIndexSnapshot;
+import com.neuwton.tasdeeq.trust.TrustSource;
+import com.neuwton.tasdeeq.trust.TrustSources;
+import com.neuwton.tasdeeq.trust.TruststoreWatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
-import javax.net.ssl.X509TrustManager;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.security.cert.X509Certificate;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Index of the root CAs of the configured {@link TrustSource}s, the JVM default truststore unless
+ * {@link #setTrustSources(List)} says otherwise. Building it loads the sources and verifies the
+ * self-signature of every accepted issuer, so it is not done at class load: it runs on the first call to
+ * {@link #tasdeeq()}, or ahead of time on an executor through {@link #initializeAsync()}. {@link #tasdeeqIfReady()}
+ * and {@link #status()} never wait for it.
+ * <p>
+ * {@link #reload()} rebuilds the index from the truststore as it is now and swaps it in whole, readers keep using the
+ * previous one until then. {@link #watchTruststore(long, TimeUnit)} reloads whenever a truststore file changes.
+ * {@link #setSnapshotFile(Path)} lets short-lived JVMs start from a snapshot of the index instead of rebuilding it.
+ * <p>
+ * The sources only feed this index; handshakes and {@code OfflineChainValidator} keep using the JVM default trust.
+ * {@link #validatePath(List)} and {@link #validateAll(Collection)} build full certification paths to the index's roots,
+ * see {@link ChainPathBuilder}.
+ */
 public class CertificateAuthorityTasdeeq {
 
     private static final Logger logger = LoggerFactory.getLogger(CertificateAuthorityTasdeeq.class);
 
-    private static CertificateAuthorityTasdeeqResult tasdeeq;
+    public enum Status { NOT_STARTED, INITIALIZING, READY, FAILED }
 
+    /**
+     * Names the file to keep a snapshot of the index in, for the start of the next JVM; see
+     * {@link #setSnapshotFile(Path)}.
+     */
+    public static final String SNAPSHOT_PROPERTY = "tasdeeq.ca.snapshot";
+
+    private static final AtomicReference<CompletableFuture<CertificateAuthorityTasdeeqResult>> INITIALIZATION =
+            new AtomicReference<CompletableFuture<CertificateAuthorityTasdeeqResult>>();
+    private static volatile long initializationMillis = -1;
+    private static final AtomicLong reloads = new AtomicLong();
+    private static volatile List<TrustSource> trustSources =
+            Collections.singletonList(TrustSources.jvmDefault());
+    private static final AtomicReference<ChainPathBuilder> PATH_BUILDER = new AtomicReference<ChainPathBuilder>();
+    // serializes reloads only, readers of the index and the path builder never take it
+    private static final Object RELOAD_LOCK = new Object();
+    private static volatile Path snapshotFile = snapshotFileProperty();
+    private static volatile boolean loadedFromSnapshot;
+
+    /**
+     * Replaces where root CAs are read from. An index already built, or being built, is reloaded from the new
+     * sources; include {@link TrustSources#jvmDefault()} to keep the JVM's roots.
+     */
+    public static void setTrustSources(List<? extends TrustSource> sources) {
+        if (sources == null || sources.isEmpty()) {
+            throw new IllegalArgumentException("At least one trust source is required");
+        }
+        trustSources = Collections.unmodifiableList(new ArrayList<TrustSource>(sources));
+        logger.info("Root CAs are read from {}", trustSources);
+        if (status() != Status.NOT_STARTED) {
+            reload();
+        }
+    }
+
+    public static void setTrustSources(TrustSource... sources) {
+        setTrustSources(Arrays.asList(sources));
+    }
+
+    public static List<TrustSource> getTrustSources() {
+        return trustSources;
+    }
+
+    /**
+     * Keeps a binary snapshot of the index in the file, see {@link TrustIndexSnapshot}. A build, the first of a JVM
+     * or a reload, loads the snapshot instead of the trust sources when it was written for the same content of them,
+     * and writes a new one otherwise. Trust sources that are not files, the JVM default on a runtime without cacerts
+     * for one, are not snapshotted. Null turns snapshots off, the default unless the {@value #SNAPSHOT_PROPERTY}
+     * system property is set.
+     */
+    public static void setSnapshotFile(Path file) {
+        snapshotFile = file;
+    }
+
+    public static Path getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * @return true if the current index was loaded from the snapshot file instead of the trust sources
+     */
+    public static boolean isLoadedFromSnapshot() {
+        return loadedFromSnapshot;
+    }
+
+    /**
+     * @return the root CA index, built on the calling thread if nobody started it yet, waiting for it otherwise
+     * @throws IllegalStateException if the truststore could not be loaded
+     */
     public static CertificateAuthorityTasdeeqResult tasdeeq() {
-        return tasdeeq;
+        CompletableFuture<CertificateAuthorityTasdeeqResult> initialization = INITIALIZATION.get();
+        if (initialization == null) {
+            CompletableFuture<CertificateAuthorityTasdeeqResult> mine = new CompletableFuture<CertificateAuthorityTasdeeqResult>();
+            if (INITIALIZATION.compareAndSet(null, mine)) {
+                initialize(mine);
+            }
+            initialization = INITIALIZATION.get();
+        }
+        try {
+            return initialization.join();
+        } catch (CompletionException e) {
+            throw new IllegalStateException("Root CA index unavailable", e.getCause());
+        }
     }
 
-    static {
+    /**
+     * @return the root CA index, or null while it is not built yet
+     */
+    public static CertificateAuthorityTasdeeqResult tasdeeqIfReady() {
+        CompletableFuture<CertificateAuthorityTasdeeqResult> initialization = INITIALIZATION.get();
+        if (initialization == null || !initialization.isDone() || initialization.isCompletedExceptionally()) {
+            return null;
+        }
+        return initialization.join();
+    }
+
+    /**
+     * Starts building the index on the shared probe pool, if not started yet.
+     */
+    public static CompletableFuture<CertificateAuthorityTasdeeqResult> initializeAsync() {
+        return initializeAsync(TasdeeqExecutor.defaultExecutor());
+    }
+
+    public static CompletableFuture<CertificateAuthorityTasdeeqResult> initializeAsync(Executor executor) {
+        final CompletableFuture<CertificateAuthorityTasdeeqResult> mine = new CompletableFuture<CertificateAuthorityTasdeeqResult>();
+        if (!INITIALIZATION.compareAndSet(null, mine)) {
+            return INITIALIZATION.get();
+        }
         try {
-            // populate the default truststore's root CAs
-            populateRootCAs();
-        } catch (NoSuchAlgorithmException | KeyStoreException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private static void populateRootCAs() throws NoSuchAlgorithmException, KeyStoreException {
-        Map<String, X509Certificate> rootCAsBySerialNumber = new HashMap<>();
-        Map<String, X509Certificate> rootCAsBySubjectDN = new HashMap<>();
-        // Get the default truststore using TrustManagerFactory
-        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-        tmf.init((KeyStore) null); // Pass null to use the default truststore
-        for (TrustManager tm : tmf.getTrustManagers()) {
-            if (tm instanceof X509TrustManager) {
-                X509TrustManager xtm = (X509TrustManager) tm;
-                logger.info("Total number of Root CAs: {}", xtm.getAcceptedIssuers().length);
-
-                for (X509Certificate x509 : xtm.getAcceptedIssuers()) {
-                    StringBuilder sb = new StringBuilder();
-                    sb.append("Trust Chain - Certificate: [");
-                    sb.append(x509.getIssuerX500Principal().getName());
-                    sb.append("] Serial Number: [");
-                    sb.append(x509.getSerialNumber());
-                    sb.append("] Issuer: [");
-                    sb.append(x509.getIssuerDN());
-                    sb.append("] Valid from: [");
-                    sb.append(x509.getNotBefore());
-                    sb.append("] Valid until: [");
-                    sb.append(x509.getNotAfter());
-                    sb.append("] Signature Algorithm: [");
-                    sb.append(x509.getSigAlgName());
-                    if (x509.getExtensionValue("2.5.29.19") != null) {
-                        sb.append("] Basic Constraints: ");
-                        sb.append(x509.getBasicConstraints());
-                        if (isSelfSigned(x509) && x509.getBasicConstraints() != -1) {
-                            rootCAsBySerialNumber.put(x509.getSerialNumber().toString(), x509);
-                            rootCAsBySubjectDN.put(x509.getSubjectX500Principal().getName(), x509);
-                            sb.append("] Certificate Type: ROOT CA");
-                        } else {
-                            sb.append("[ Certificate Type: INTERMEDIATE CA");
-                        }
+            executor.execute(new Runnable() {
+                public void run() {
+                    initialize(mine);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("Root CA index initialization rejected by executor, building it on the calling thread");
+            initialize(mine);
+        }
+        return mine;
+    }
+
+    public static Status status() {
+        CompletableFuture<CertificateAuthorityTasdeeqResult> initialization = INITIALIZATION.get();
+        if (initialization == null) {
+            return Status.NOT_STARTED;
+        }
+        if (!initialization.isDone()) {
+            return Status.INITIALIZING;
+        }
+        return initialization.isCompletedExceptionally() ? Status.FAILED : Status.READY;
+    }
+
+    /**
+     * @return how long the last build of the index took, -1 until it is built
+     */
+    public static long getInitializationMillis() {
+        return initializationMillis;
+    }
+
+    /**
+     * Rebuilds the index from the trust sources as they are now and swaps it in atomically. Roots of the previous index are
+     * taken over without verifying them again, so only added entries cost a signature check. The pooled SSL
+     * contexts and the offline validator's anchors are dropped along, so new handshakes see the same truststore.
+     *
+     * @return the new index, or the previous one (null if there was none) when the truststore could not be read
+     */
+    public static CertificateAuthorityTasdeeqResult reload() {
+        synchronized (RELOAD_LOCK) {
+            CertificateAuthorityTasdeeqResult previous = tasdeeqIfReady();
+            long start = System.nanoTime();
+            try {
+                CertificateAuthorityTasdeeqResult result = populateRootCAs(previous);
+                initializationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                INITIALIZATION.set(CompletableFuture.completedFuture(result));
+                pathBuilderFor(result);
+                reloads.incrementAndGet();
+                SSLContextPool.clear();
+                OfflineChainValidator.reset();
+                logger.info("Reloaded {} root CAs in {} ms",
+                        result.getRootCAsBySubjectDN().size(), initializationMillis);
+                return result;
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                logger.error("Failed to reload the root CAs, keeping the previous index", e);
+                return previous;
+            }
+        }
+    }
+
+    public static long getReloadCount() {
+        return reloads.get();
+    }
+
+    /**
+     * Reloads the index in the background whenever the file or directory of a trust source changes, for the JVM
+     * default see {@link TruststoreWatcher#defaultTruststore()}. Close the watcher to stop.
+     *
+     * @param pollInterval how often to check the files when the file system reports no event
+     * @throws IllegalStateException if none of the trust sources is file based
+     */
+    public static TruststoreWatcher watchTruststore(long pollInterval, TimeUnit unit) {
+        List<Path> truststores = new ArrayList<Path>();
+        for (TrustSource source : trustSources) {
+            if (source.getPath() != null) {
+                truststores.add(source.getPath());
+            }
+        }
+        if (truststores.isEmpty()) {
+            throw new IllegalStateException("None of the trust sources is file based");
+        }
+        return TruststoreWatcher.start(truststores, pollInterval, unit, new Runnable() {
+            public void run() {
+                reload();
+            }
+        });
+    }
+
+    private static void initialize(CompletableFuture<CertificateAuthorityTasdeeqResult> target) {
+        long start = System.nanoTime();
+        try {
+            CertificateAuthorityTasdeeqResult result = populateRootCAs(null);
+            initializationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            logger.info("Indexed {} root CAs in {} ms",
+                    result.getRootCAsBySubjectDN().size(), initializationMillis);
+            target.complete(result);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            logger.error("Failed to index the root CAs of {}", trustSources, e);
+            target.completeExceptionally(e);
+        }
+    }
+
+    private static CertificateAuthorityTasdeeqResult populateRootCAs(CertificateAuthorityTasdeeqResult previous)
+            throws IOException, GeneralSecurityException {
+        List<TrustSource> sources = trustSources;
+        Path snapshot = snapshotFile;
+        // before reading the sources: a change while they are read makes the snapshot stale, never wrongly current
+        byte[] checksum = snapshot != null ? TrustIndexSnapshot.checksum(sources) : null;
+        if (checksum != null) {
+            List<X509Certificate> snapshotRoots = TrustIndexSnapshot.read(snapshot, checksum);
+            if (snapshotRoots != null) {
+                loadedFromSnapshot = true;
+                logger.info("Loaded {} root CAs from snapshot [{}]", snapshotRoots.size(), snapshot);
+                return new CertificateAuthorityTasdeeqResult(snapshotRoots);
+            }
+        } else if (snapshot != null && checksum == null) {
+            logger.info("Not snapshotting the root CAs, not all of {} are readable files", sources);
+        }
+
+        List<X509Certificate> rootCAs = new ArrayList<>();
+        boolean debug = logger.isDebugEnabled();
+        for (TrustSource source : sources) {
+            List<X509Certificate> acceptedIssuers = new ArrayList<>(source.load());
+            logger.info("Total number of Root CAs: {} in {}", acceptedIssuers.size(), source);
+            boolean[] roots = classify(acceptedIssuers, previous);
+
+            for (int i = 0; i < acceptedIssuers.size(); i++) {
+                X509Certificate x509 = acceptedIssuers.get(i);
+                boolean isRoot = roots[i];
+                if (isRoot) {
+                    rootCAs.add(x509);
+                }
+                if (!debug) {
+                    continue;
+                }
+                boolean hasBasicConstraints = x509.getExtensionValue("2.5.29.19") != null;
+                StringBuilder sb = new StringBuilder();
+                sb.append("Trust Chain - Certificate: [");
+                sb.append(x509.getIssuerX500Principal().getName());
+                sb.append("] Serial Number: [");
+                sb.append(x509.getSerialNumber());
+                sb.append("] Issuer: [");
+                sb.append(x509.getIssuerDN());
+                sb.append("] Valid from: [");
+                sb.append(x509.getNotBefore());
+                sb.append("] Valid until: [");
+                sb.append(x509.getNotAfter());
+                sb.append("] Signature Algorithm: [");
+                sb.append(x509.getSigAlgName());
+                if (hasBasicConstraints) {
+                    sb.append("] Basic Constraints: ");
+                    sb.append(x509.getBasicConstraints());
+                    if (isRoot) {
+                        sb.append("] Certificate Type: ROOT CA");
                     } else {
-                        sb.append("] Certificate Type: LEAF");
+                        sb.append("[ Certificate Type: INTERMEDIATE CA");
                     }
-                    logger.debug(sb.toString());
+                } else {
+                    sb.append("] Certificate Type: LEAF");
                 }
+                logger.debug(sb.toString());
             }
         }
-        tasdeeq = new CertificateAuthorityTasdeeqResult(rootCAsBySerialNumber, rootCAsBySubjectDN);
+        loadedFromSnapshot = false;
+        if (checksum != null) {
+            try {
+                TrustIndexSnapshot.write(snapshot, checksum, rootCAs);
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Failed to write the root CA snapshot [{}]: {}", snapshot, e.getMessage());
+            }
+        }
+        return new CertificateAuthorityTasdeeqResult(rootCAs);
+    }
+
+    private static Path snapshotFileProperty() {
+        String file = System.getProperty(SNAPSHOT_PROPERTY);
+        return file != null && !file.trim().isEmpty() ? Paths.get(file.trim()) : null;
+    }
+
+    /**
+     * Decides which certificates are roots on {@link TasdeeqExecutor#validationPool()}: verifying the
+     * self-signatures is most of the cost of building the index, RSA-4096 roots especially. Roots of the previous
+     * index are taken over without a signature check.
+     *
+     * @return per certificate, in list order, whether it is a root
+     */
+    private static boolean[] classify(List<X509Certificate> certs, CertificateAuthorityTasdeeqResult previous) {
+        boolean[] roots = new boolean[certs.size()];
+        TasdeeqExecutor.validationPool().invoke(new ClassifyTask(certs, previous, roots, 0, certs.size()));
+        return roots;
+    }
+
+    private static boolean isRoot(X509Certificate x509, CertificateAuthorityTasdeeqResult previous) {
+        if (previous != null && previous.containsRootCA(x509)) {
+            return true;
+        }
+        return x509.getExtensionValue("2.5.29.19") != null && x509.getBasicConstraints() != -1 && isSelfSigned(x509);
     }
 
-    private static boolean rootCABySerialNumberExists(X509Certificate cert) {
-        return tasdeeq().getRootCAsBySerialNumber().containsKey(cert.getSerialNumber().toString());
+    /**
+     * Builds and validates a certification path from the chain's leaf to one of the indexed roots: signatures,
+     * validity, basic constraints, key usage, path length and name constraints, see {@link ChainPathBuilder}.
+     */
+    public static CertificatePathResult validatePath(List<X509Certificate> chain) {
+        CertificatePathResult result = pathBuilder().validate(chain);
+        if (result.isTrusted()) {
+            logger.info("Chain of [{}] validates to Root CA [{}]",
+                    chain.get(0).getSubjectX500Principal().getName(),
+                    result.getTrustAnchor().getSubjectX500Principal().getName());
+        } else {
+            logger.info("Chain is not trusted: {}", result);
+        }
+        return result;
     }
 
+    /**
+     * {@link #validatePath(List)} for many chains, validated in parallel; paths through intermediates already
+     * validated reuse that work.
+     *
+     * @return one result per chain, in the order of the collection
+     */
+    public static List<CertificatePathResult> validateAll(Collection<? extends List<X509Certificate>> chains) {
+        return pathBuilder().validateAll(chains);
+    }
+
+    /**
+     * @return the path builder for the current index; a reloaded index gets a new one, taking over the intermediates
+     * the previous one learned but not its memoized paths
+     */
+    public static ChainPathBuilder pathBuilder() {
+        return pathBuilderFor(tasdeeq());
+    }
+
+    /**
+     * Swaps in a path builder for the index without locking, callers racing for the same index end up sharing one.
+     */
+    private static ChainPathBuilder pathBuilderFor(CertificateAuthorityTasdeeqResult roots) {
+        while (true) {
+            ChainPathBuilder builder = PATH_BUILDER.get();
+            if (builder != null && builder.getRoots() == roots) {
+                return builder;
+            }
+            ChainPathBuilder fresh = builder == null ? new ChainPathBuilder(roots)
+                    : new ChainPathBuilder(roots, builder.getKnownIntermediates());
+            if (PATH_BUILDER.compareAndSet(builder, fresh)) {
+                return fresh;
+            }
+        }
+    }
+
+    /**
+     * A chain is trusted when it carries one of the truststore's roots, or when one of its certificates was signed by
+     * one. Issuers are looked up by Authority Key Identifier, falling back to the issuer DN, so each certificate
+     * usually costs at most one (memoized) signature check. Validity, path length and name constraints are not
+     * looked at, {@link #validatePath(List)} checks those.
+     */
     public static boolean rootCAisTrusted(List<X509Certificate> chain) {
         if (chain == null || chain.isEmpty()) {
             logger.error("Empty certificate chain provided");
             // TODO throw exception???
             return false;
         }
+        CertificateAuthorityTasdeeqResult roots = tasdeeq();
 
         // First: check if any cert in the chain is a trusted root
         for (X509Certificate cert : chain) {
-            if (isSelfSigned(cert) && cert.getBasicConstraints() != -1) {
-                if (rootCABySerialNumberExists(cert)) {
-                    logger.info("Root CA [{}] found in chain and exists in truststore",
-                            cert.getSubjectX500Principal().getName());
-                    return true;
-                }
+            if (cert.getBasicConstraints() != -1 && roots.containsRootCA(cert)) {
+                logger.info("Root CA [{}] found in chain and exists in truststore",
+                        cert.getSubjectX500Principal().getName());
+                return true;
             }
         }
 
         for (X509Certificate cert : chain) {
-            if (cert.getBasicConstraints() != -1) {
-                // intermediate CA cert — check if its issuer is a trusted root
-                X509Certificate trustedRoot = tasdeeq().getRootCAsBySubjectDN().get(
-                        cert.getIssuerX500Principal().getName());
-                if (trustedRoot != null && verifySignature(cert, trustedRoot)) {
+            X509Certificate trustedRoot = findSigningRoot(roots, cert);
+            if (trustedRoot != null) {
+                if (cert.getBasicConstraints() != -1) {
                     logger.info("Intermediate CA [{}] is signed by trusted Root CA [{}]",
                             cert.getSubjectX500Principal().getName(),
                             trustedRoot.getSubjectX500Principal().getName());
-                    return true;
-                }
-            } else {
-                // Leaf (end-entity) — check if directly signed by a trusted root
-                X509Certificate trustedRoot = tasdeeq().getRootCAsBySubjectDN().get(
-                        cert.getIssuerX500Principal().getName());
-                if (trustedRoot != null && verifySignature(cert, trustedRoot)) {
+                } else {
                     logger.info("Leaf [{}] is directly signed by trusted Root CA [{}]",
                             cert.getSubjectX500Principal().getName(),
                             trustedRoot.getSubjectX500Principal().getName());
-                    return true;
-                } else if (isSelfSigned(cert)) {
-                    // Self-signed leaf — rare/unusual, warn
-                    logger.error("Self-signed leaf cert [{}] found — not tracing to any root CA",
-                            cert.getSubjectX500Principal().getName());
                 }
+                return true;
+            }
+            if (cert.getBasicConstraints() == -1 && isSelfSigned(cert)) {
+                // Self-signed leaf — rare/unusual, warn
+                logger.error("Self-signed leaf cert [{}] found — not tracing to any root CA",
+                        cert.getSubjectX500Principal().getName());
             }
         }
 
@@ -133,26 +458,28 @@ public class CertificateAuthorityTasdeeq {
         return false;
     }
 
+    private static X509Certificate findSigningRoot(CertificateAuthorityTasdeeqResult roots, X509Certificate cert) {
+        for (X509Certificate candidate : roots.findIssuerCandidates(cert)) {
+            if (verifySignature(cert, candidate)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
     private static boolean verifySignature(X509Certificate cert, X509Certificate issuer) {
-        try {
-            cert.verify(issuer.getPublicKey());
+        if (SignatureVerifier.verifies(cert, issuer.getPublicKey())) {
             return true;
-        } catch (Exception e) {
-            logger.warn("Signature verification failed for [{}] against issuer [{}]: {}",
-                    cert.getSubjectX500Principal().getName(),
-                    issuer.getSubjectX500Principal().getName(),
-                    e.getMessage());
-            return false;
         }
+        logger.warn("Signature verification failed for [{}] against issuer [{}]",
+                cert.getSubjectX500Principal().getName(),
+                issuer.getSubjectX500Principal().getName());
+        return false;
     }
 
     private static boolean isSelfSigned(X509Certificate cert) {
-        try {
-            cert.verify(cert.getPublicKey());
-            return cert.getSubjectX500Principal().getName().equals(cert.getIssuerX500Principal().getName());
-        } catch (Exception e) {
-            return false;
-        }
+        return SignatureVerifier.verifiesWithOwnKey(cert)
+                && cert.getSubjectX500Principal().getName().equals(cert.getIssuerX500Principal().getName());
     }
 
     public static String getCertificateType(X509Certificate x509) {
@@ -167,4 +494,38 @@ public class CertificateAuthorityTasdeeq {
         }
     }
 
+    private static final class ClassifyTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        // a handful of signature checks is worth a task of its own
+        private static final int THRESHOLD = 8;
+
+        private final List<X509Certificate> certs;
+        private final CertificateAuthorityTasdeeqResult previous;
+        private final boolean[] roots;
+        private final int from;
+        private final int to;
+
+        ClassifyTask(List<X509Certificate> certs, CertificateAuthorityTasdeeqResult previous, boolean[] roots,
+                     int from, int to) {
+            this.certs = certs;
+            this.previous = previous;
+            this.roots = roots;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    roots[i] = isRoot(certs.get(i), previous);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new ClassifyTask(certs, previous, roots, from, middle),
+                    new ClassifyTask(certs, previous, roots, middle, to));
+        }
+    }
 }
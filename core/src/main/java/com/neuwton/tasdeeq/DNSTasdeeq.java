@@ -1,41 +1,66 @@
 package com.neuwton.tasdeeq;
 
+import com.neuwton.tasdeeq.concurrent.TasdeeqExecutor;
+import com.neuwton.tasdeeq.dns.DnsContextPool;
 import com.neuwton.tasdeeq.models.DNSTasdeeqResult;
 import com.neuwton.tasdeeq.models.DNSTasdeeqResults;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.naming.CommunicationException;
 import javax.naming.Context;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
-import javax.naming.directory.InitialDirContext;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 public class DNSTasdeeq {
 
     private static final Logger logger = LoggerFactory.getLogger(DNSTasdeeq.class);
     private static final String DNS_FACTORY = "com.sun.jndi.dns.DnsContextFactory";
     private static final String DNS_URL = "dns://8.8.8.8"; // Use Google DNS for better reliability
+    // never modified, InitialDirContext copies it; also the key of the pooled contexts
+    private static final Hashtable<String, String> DNS_ENV = new Hashtable<String, String>();
+
+    static {
+        DNS_ENV.put(Context.INITIAL_CONTEXT_FACTORY, DNS_FACTORY);
+        DNS_ENV.put(Context.PROVIDER_URL, DNS_URL);
+        DNS_ENV.put("com.sun.jndi.dns.timeout.initial", "3000");  // 3s initial timeout per query
+        DNS_ENV.put("com.sun.jndi.dns.timeout.retries", "1");     // 1 retry = 6s max per query
+    }
+
+    public static final String COMBINED_QUERY_PROPERTY = "tasdeeq.dns.combined-query";
+    private static final String[] DEFAULT_RECORD_TYPES = {"A", "AAAA", "MX", "TXT", "NS", "CNAME"};
+    private static volatile boolean combinedQueryEnabled = Boolean.getBoolean(COMBINED_QUERY_PROPERTY);
 
     // Overloaded: parallel execution for multiple domains
     public static DNSTasdeeqResults tasdeeq(List<String> domains, String... recordTypes) {
         return tasdeeq(domains, 30, TimeUnit.SECONDS, recordTypes);
     }
 
-    // Parallel with configurable timeout
+    // Parallel with configurable timeout, on the shared probe pool
     public static DNSTasdeeqResults tasdeeq(List<String> domains, long timeout, TimeUnit timeoutUnit, String... recordTypes) {
+        return tasdeeq(domains, timeout, timeoutUnit, TasdeeqExecutor.defaultExecutor(), recordTypes);
+    }
+
+    // Parallel on a caller supplied executor, which is left running
+    public static DNSTasdeeqResults tasdeeq(List<String> domains, long timeout, TimeUnit timeoutUnit,
+                                           Executor executor, String... recordTypes) {
         if (domains == null || domains.isEmpty()) {
             DNSTasdeeqResults empty = new DNSTasdeeqResults();
             empty.setResults(Collections.<DNSTasdeeqResult>emptyList());
             return empty;
         }
 
-        int poolSize = Math.min(domains.size(), Runtime.getRuntime().availableProcessors() * 2);
-        ExecutorService executor = Executors.newFixedThreadPool(poolSize);
-
         try {
             List<Callable<DNSTasdeeqResult>> tasks = new ArrayList<Callable<DNSTasdeeqResult>>();
             for (final String domain : domains) {
@@ -47,7 +72,7 @@ public class DNSTasdeeq {
                 });
             }
 
-            List<Future<DNSTasdeeqResult>> futures = executor.invokeAll(tasks, timeout, timeoutUnit);
+            List<Future<DNSTasdeeqResult>> futures = TasdeeqExecutor.invokeAll(executor, tasks, timeout, timeoutUnit);
 
             List<DNSTasdeeqResult> results = new ArrayList<DNSTasdeeqResult>();
             int index = 0;
@@ -79,95 +104,307 @@ public class DNSTasdeeq {
             DNSTasdeeqResults empty = new DNSTasdeeqResults();
             empty.setResults(Collections.<DNSTasdeeqResult>emptyList());
             return empty;
-        } finally {
-            executor.shutdown();
-            try {
-                if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
-                    executor.shutdownNow();
-                    if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
-                        logger.error("Executor did not terminate");
-                    }
-                }
-            } catch (InterruptedException e) {
-                executor.shutdownNow();
-                Thread.currentThread().interrupt();
-            }
         }
     }
 
-    // Single domain query
+    // Async single domain query, on the shared probe pool
+    public static CompletableFuture<DNSTasdeeqResult> tasdeeqAsync(String domain, String... recordTypes) {
+        return tasdeeqAsync(domain, TasdeeqExecutor.defaultExecutor(), recordTypes);
+    }
+
+    // Async single domain query on a caller supplied executor, failures end up on the result like the blocking query
+    public static CompletableFuture<DNSTasdeeqResult> tasdeeqAsync(final String domain, Executor executor,
+                                                                   final String... recordTypes) {
+        return CompletableFuture.supplyAsync(new Supplier<DNSTasdeeqResult>() {
+            public DNSTasdeeqResult get() {
+                return tasdeeq(domain, recordTypes);
+            }
+        }, executor);
+    }
+
+    // Streaming scan on the shared probe pool, results reach the sink in completion order
+    public static long tasdeeqStream(Stream<String> domains, int maxInFlight, Consumer<? super DNSTasdeeqResult> sink,
+                                     String... recordTypes) {
+        return tasdeeqStream(domains.iterator(), maxInFlight, TasdeeqExecutor.defaultExecutor(), sink, recordTypes);
+    }
+
+    public static long tasdeeqStream(Iterator<String> domains, int maxInFlight, Consumer<? super DNSTasdeeqResult> sink,
+                                     String... recordTypes) {
+        return tasdeeqStream(domains, maxInFlight, TasdeeqExecutor.defaultExecutor(), sink, recordTypes);
+    }
+
+    // Streaming scan with at most maxInFlight queries running, domains are pulled lazily so memory stays constant.
+    // Sink calls are serialized; returns the number of results delivered
+    public static long tasdeeqStream(Iterator<String> domains, int maxInFlight, Executor executor,
+                                     Consumer<? super DNSTasdeeqResult> sink, final String... recordTypes) {
+        return TasdeeqExecutor.forEachCompleted(domains, maxInFlight, executor,
+                new Function<String, DNSTasdeeqResult>() {
+                    public DNSTasdeeqResult apply(String domain) {
+                        return tasdeeq(domain, recordTypes);
+                    }
+                },
+                new BiFunction<String, RuntimeException, DNSTasdeeqResult>() {
+                    public DNSTasdeeqResult apply(String domain, RuntimeException e) {
+                        logger.error("DNS query failed for domain: {}", domain, e);
+                        DNSTasdeeqResult failed = new DNSTasdeeqResult(domain);
+                        failed.setConnectionError("Unexpected error: " + e.getMessage());
+                        return failed;
+                    }
+                },
+                sink);
+    }
+
+    public static boolean isCombinedQueryEnabled() {
+        return combinedQueryEnabled;
+    }
+
+    // Ask for all record types in one ANY query first, only the types missing from its answer are queried one by one.
+    // Off by default: many resolvers refuse ANY or answer it with a stub (RFC 8482), which costs an extra round trip
+    public static void setCombinedQueryEnabled(boolean enabled) {
+        combinedQueryEnabled = enabled;
+    }
+
+    // Single domain query. The record types are queried concurrently on the lookup executor, each on its own pooled
+    // context, so a domain takes as long as its slowest record type instead of the sum of all of them
     public static DNSTasdeeqResult tasdeeq(String domain, String... recordTypes) {
         DNSTasdeeqResult result = new DNSTasdeeqResult(domain);
 
-        Hashtable<String, String> env = new Hashtable<String, String>();
-        env.put(Context.INITIAL_CONTEXT_FACTORY, DNS_FACTORY);
-        env.put(Context.PROVIDER_URL, DNS_URL);
-        env.put("com.sun.jndi.dns.timeout.initial", "3000");  // 3s initial timeout per query
-        env.put("com.sun.jndi.dns.timeout.retries", "1");     // 1 retry = 6s max per query
+        if (recordTypes.length == 0) {
+            recordTypes = DEFAULT_RECORD_TYPES;
+        }
 
-        InitialDirContext dirContext = null;
-        try {
-            dirContext = new InitialDirContext(env);
+        logger.info("Querying DNS records: {} for {}", Arrays.toString(recordTypes), domain);
 
-            if (recordTypes.length == 0) {
-                recordTypes = new String[]{"A", "AAAA", "MX", "TXT", "NS", "CNAME"};
+        Map<String, Lookup> lookups = new HashMap<String, Lookup>();
+        try {
+            List<String> remaining = new ArrayList<String>(new LinkedHashSet<String>(Arrays.asList(recordTypes)));
+            if (combinedQueryEnabled && remaining.size() > 1) {
+                Lookup combined = lookupCombined(domain, remaining, lookups);
+                if (combined.isDomainNotFound() || combined.contextError != null) {
+                    lookups.put(remaining.get(0), combined);
+                    remaining.clear();
+                } else {
+                    remaining.removeAll(lookups.keySet());
+                }
             }
+            fanOut(domain, remaining, lookups);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.setConnectionError("DNS query interrupted");
+            logger.info("DNS query result for {}: {}", domain, result);
+            return result;
+        }
 
-            logger.info("Querying DNS records: {} for {}", Arrays.toString(recordTypes), domain);
-
-            int successfulQueries = 0;
-            int totalQueries = recordTypes.length;
+        int successfulQueries = 0;
+        for (String recordType : recordTypes) {
+            Lookup lookup = lookups.get(recordType);
+            if (lookup == null) {
+                continue;
+            }
+            if (lookup.contextError != null) {
+                result.setConnectionError("Failed to initialize DNS context: " + lookup.contextError.getMessage());
+                logger.info("DNS query result for {}: {}", domain, result);
+                return result;
+            }
+            if (lookup.isDomainNotFound()) {
+                // every record type gets the same answer, don't report them one by one
+                result.getErrors().clear();
+                result.getRecords().clear();
+                result.setConnectionError("Domain not found: " + domain);
+                logger.info("DNS query result for {}: {}", domain, result);
+                return result;
+            }
+            if (lookup.records != null) {
+                result.addRecords(recordType, lookup.records);
+                successfulQueries++;
+            } else if (lookup.error != null) {
+                // Log per-record-type failures but continue
+                String msg = lookup.error.getMessage();
+                result.addError(recordType, "Failed to query: " + (msg != null ? msg : "DNS error"));
+                logger.debug("Failed to query {} record for {}: {}", recordType, domain, msg);
+            }
+        }
 
-            for (String recordType : recordTypes) {
-                try {
-                    Attributes attributes = dirContext.getAttributes(domain, new String[]{recordType});
-                    Attribute attribute = attributes.get(recordType);
+        // If ALL queries failed, set connection error
+        if (successfulQueries == 0 && !result.getErrors().isEmpty()) {
+            result.setConnectionError("All DNS queries failed - possible network issue or invalid domain");
+        }
 
-                    if (attribute != null) {
-                        List<String> records = new ArrayList<String>();
-                        NamingEnumeration<?> enumeration = attribute.getAll();
+        logger.info("DNS query result for {}: {}", domain, result);
 
-                        while (enumeration.hasMore()) {
-                            Object value = enumeration.next();
-                            records.add(value.toString());
-                        }
+        return result;
+    }
 
-                        enumeration.close();
-                        result.addRecords(recordType, records);
-                        successfulQueries++;
-                    }
-                } catch (NamingException e) {
-                    String msg = e.getMessage();
-                    if (msg != null && msg.contains("DNS name not found")) {
-                        result.setConnectionError("Domain not found: " + domain);
-                        break; // no point querying other record types
-                    }
-                    // Log per-record-type failures but continue
-                    result.addError(recordType, "Failed to query: " +
-                            (msg != null ? msg : "DNS error"));
-                    logger.debug("Failed to query {} record for {}: {}", recordType, domain, msg);
+    /**
+     * Queries each record type on its own context, all but the first on the lookup executor and the first on the
+     * calling thread. Once a record type reports that the domain does not exist, the queries not started yet are
+     * cancelled. A query the lookup executor rejects fails with an error for its record type, like a rejected probe,
+     * instead of running on the calling thread.
+     */
+    private static void fanOut(final String domain, List<String> recordTypes, Map<String, Lookup> lookups)
+            throws InterruptedException {
+        if (recordTypes.isEmpty()) {
+            return;
+        }
+        List<FutureTask<Lookup>> tasks = new ArrayList<FutureTask<Lookup>>(recordTypes.size() - 1);
+        Executor executor = TasdeeqExecutor.lookupExecutor();
+        for (final String recordType : recordTypes.subList(1, recordTypes.size())) {
+            FutureTask<Lookup> task = new FutureTask<Lookup>(new Callable<Lookup>() {
+                public Lookup call() {
+                    return lookup(domain, recordType);
                 }
+            });
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                logger.debug("DNS lookup of {} for {} rejected by the lookup executor", recordType, domain);
+                final NamingException rejected = new NamingException("Lookup rejected, the DNS lookup executor is full");
+                rejected.setRootCause(e);
+                task = new FutureTask<Lookup>(new Callable<Lookup>() {
+                    public Lookup call() {
+                        return Lookup.failed(rejected);
+                    }
+                });
+                task.run();
             }
+            tasks.add(task);
+        }
 
-            // If ALL queries failed, set connection error
-            if (successfulQueries == 0 && !result.getErrors().isEmpty()) {
-                result.setConnectionError("All DNS queries failed - possible network issue or invalid domain");
+        boolean done = false;
+        try {
+            Lookup first = lookup(domain, recordTypes.get(0));
+            lookups.put(recordTypes.get(0), first);
+            boolean notFound = first.isDomainNotFound();
+            for (int i = 0; i < tasks.size(); i++) {
+                FutureTask<Lookup> task = tasks.get(i);
+                if (notFound) {
+                    // a query already sent still runs to its timeout, it releases its context then
+                    task.cancel(false);
+                    continue;
+                }
+                Lookup lookup;
+                try {
+                    lookup = task.get();
+                } catch (ExecutionException e) {
+                    NamingException failure = new NamingException(String.valueOf(e.getCause()));
+                    failure.setRootCause(e.getCause());
+                    lookup = Lookup.failed(failure);
+                }
+                lookups.put(recordTypes.get(i + 1), lookup);
+                notFound = lookup.isDomainNotFound();
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                for (FutureTask<Lookup> task : tasks) {
+                    task.cancel(false);
+                }
             }
+        }
+    }
 
+    private static Lookup lookup(String domain, String recordType) {
+        DnsContextPool.Lease lease;
+        try {
+            lease = DnsContextPool.borrow(DNS_ENV);
+        } catch (NamingException e) {
+            return Lookup.noContext(e);
+        }
+        boolean healthy = true;
+        try {
+            Attribute attribute = lease.getContext().getAttributes(domain, new String[]{recordType}).get(recordType);
+            return Lookup.answered(attribute != null ? values(attribute) : null);
         } catch (NamingException e) {
-            result.setConnectionError("Failed to initialize DNS context: " + e.getMessage());
+            // the resolver did not answer, don't hand this context to the next query
+            healthy = !isUnreachable(e);
+            return Lookup.failed(e);
         } finally {
-            if (dirContext != null) {
-                try {
-                    dirContext.close();
-                } catch (NamingException e) {
-                    logger.error("Error closing DNS context: {}", e.getMessage());
+            lease.release(healthy);
+        }
+    }
+
+    /**
+     * One ANY query for all the record types, the types found in the answer go into {@code lookups}.
+     *
+     * @return the outcome of the query itself
+     */
+    private static Lookup lookupCombined(String domain, List<String> recordTypes, Map<String, Lookup> lookups) {
+        DnsContextPool.Lease lease;
+        try {
+            lease = DnsContextPool.borrow(DNS_ENV);
+        } catch (NamingException e) {
+            return Lookup.noContext(e);
+        }
+        boolean healthy = true;
+        try {
+            // JNDI sends a single query of type ANY when more than one type is asked for
+            Attributes attributes = lease.getContext().getAttributes(domain,
+                    recordTypes.toArray(new String[recordTypes.size()]));
+            for (String recordType : recordTypes) {
+                Attribute attribute = attributes.get(recordType);
+                if (attribute != null) {
+                    lookups.put(recordType, Lookup.answered(values(attribute)));
                 }
             }
+            logger.debug("Combined query for {} answered {} of {}", domain, lookups.keySet(), recordTypes);
+            return Lookup.answered(null);
+        } catch (NamingException e) {
+            healthy = !isUnreachable(e);
+            logger.debug("Combined query for {} failed, querying record types one by one: {}", domain, e.getMessage());
+            return Lookup.failed(e);
+        } finally {
+            lease.release(healthy);
+        }
+    }
+
+    private static List<String> values(Attribute attribute) throws NamingException {
+        List<String> records = new ArrayList<String>();
+        NamingEnumeration<?> enumeration = attribute.getAll();
+        while (enumeration.hasMore()) {
+            Object value = enumeration.next();
+            records.add(value.toString());
         }
+        enumeration.close();
+        return records;
+    }
 
-        logger.info("DNS query result for {}: {}", domain, result);
+    private static boolean isUnreachable(NamingException e) {
+        return e instanceof CommunicationException || e instanceof ServiceUnavailableException;
+    }
 
-        return result;
+    /**
+     * Outcome of one query: the records of an answer, null when the answer had none of the type, or why it failed.
+     */
+    private static final class Lookup {
+
+        private final List<String> records;
+        private final NamingException error;
+        private final NamingException contextError;
+
+        private Lookup(List<String> records, NamingException error, NamingException contextError) {
+            this.records = records;
+            this.error = error;
+            this.contextError = contextError;
+        }
+
+        static Lookup answered(List<String> records) {
+            return new Lookup(records, null, null);
+        }
+
+        static Lookup failed(NamingException error) {
+            return new Lookup(null, error, null);
+        }
+
+        static Lookup noContext(NamingException contextError) {
+            return new Lookup(null, null, contextError);
+        }
+
+        boolean isDomainNotFound() {
+            if (error instanceof NameNotFoundException) {
+                return true;
+            }
+            String msg = error != null ? error.getMessage() : null;
+            return msg != null && msg.contains("DNS name not found");
+        }
     }
-}
\ No newline at end of file
+}
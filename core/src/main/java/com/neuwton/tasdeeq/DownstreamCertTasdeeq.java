@@ -1,9 +1,21 @@
 package com.neuwton.tasdeeq;
 
+import com.neuwton.tasdeeq.concurrent.CancellationToken;
+import com.neuwton.tasdeeq.concurrent.SingleFlight;
+import com.neuwton.tasdeeq.concurrent.TasdeeqExecutor;
 import com.neuwton.tasdeeq.exceptions.CertificateValidationException;
+import com.neuwton.tasdeeq.handshake.HandshakeEngine;
+import com.neuwton.tasdeeq.handshake.NioHandshakeEngine;
+import com.neuwton.tasdeeq.handshake.PeerHandshake;
+import com.neuwton.tasdeeq.handshake.SocketHandshakeEngine;
+import com.neuwton.tasdeeq.models.CertificateFacts;
 import com.neuwton.tasdeeq.models.DownstreamCertResults;
 import com.neuwton.tasdeeq.models.DownstreamCertTasdeeqResult;
 import com.neuwton.tasdeeq.models.X509CertificateChain;
+import com.neuwton.tasdeeq.trust.Digests;
+import com.neuwton.tasdeeq.trust.OfflineChainValidator;
+import com.neuwton.tasdeeq.trust.SSLContextPool;
+import com.neuwton.tasdeeq.trust.SignatureVerifier;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,16 +23,59 @@ import org.slf4j.LoggerFactory;
 import javax.net.ssl.*;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.security.cert.*;
 import java.security.cert.Certificate;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 public class DownstreamCertTasdeeq {
 
     private static final Logger logger = LoggerFactory.getLogger(DownstreamCertTasdeeq.class);
 
+    // trust part of the in-flight key, custom CA fetches use the list of CAs instead
+    private static final String JVM_TRUST = "jvm";
+    private static final String CAPTURE = "capture";
+
+    /**
+     * Handshakes in flight, keyed by host, port and trust configuration. Concurrent callers probing the same target
+     * the same way share one connection.
+     */
+    private static final SingleFlight<List<Object>, PeerHandshake> IN_FLIGHT = new SingleFlight<List<Object>, PeerHandshake>();
+
+    private static final int PARSED_CHAIN_CACHE_SIZE = 256;
+
+    /**
+     * Parsed custom CA chains by SHA-256 of their base64 encoding, least recently used evicted first.
+     */
+    private static final Map<String, List<X509Certificate>> PARSED_CHAINS = new LinkedHashMap<String, List<X509Certificate>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<X509Certificate>> eldest) {
+            return size() > PARSED_CHAIN_CACHE_SIZE;
+        }
+    };
+
+    // certificate factories are not thread-safe, one per thread instead of one per call
+    private static final ThreadLocal<CertificateFactory> BC_CERTIFICATE_FACTORY = new ThreadLocal<CertificateFactory>() {
+        @Override
+        protected CertificateFactory initialValue() {
+            try {
+                registerBouncyCastle();
+                return CertificateFactory.getInstance("X.509", BouncyCastleProvider.PROVIDER_NAME);
+            } catch (CertificateException | NoSuchProviderException e) {
+                throw new IllegalStateException("BouncyCastle X.509 certificate factory unavailable", e);
+            }
+        }
+    };
+
     /**
      * Fetches certificates for multiple domains in parallel.
      *
@@ -32,57 +87,70 @@ public class DownstreamCertTasdeeq {
     }
 
     /**
-     * Fetches certificates for multiple domains in parallel with configurable timeout.
+     * Fetches certificates for multiple domains in parallel with configurable timeout, on the shared probe pool.
      */
     public static DownstreamCertResults tasdeeq(Map<String, DomainConfig> domains, long timeout, TimeUnit timeoutUnit) {
+        return tasdeeq(domains, timeout, timeoutUnit, TasdeeqExecutor.defaultExecutor());
+    }
+
+    /**
+     * Fetches certificates for multiple domains in parallel on the given executor. The executor is not shut down.
+     */
+    public static DownstreamCertResults tasdeeq(Map<String, DomainConfig> domains, long timeout, TimeUnit timeoutUnit,
+                                                Executor executor) {
         if (domains == null || domains.isEmpty()) {
             DownstreamCertResults empty = new DownstreamCertResults();
             empty.setResults(Collections.<DownstreamCertTasdeeqResult>emptyList());
             return empty;
         }
 
-        int poolSize = Math.min(domains.size(), Runtime.getRuntime().availableProcessors() * 2);
-        ExecutorService executor = Executors.newFixedThreadPool(poolSize);
-
+        final List<DomainConfig> configs = new ArrayList<DomainConfig>(domains.values());
+        // filled in by each task once it starts, so its per-target deadline does not tick while it is queued
+        final AtomicReferenceArray<CancellationToken> tokens = new AtomicReferenceArray<CancellationToken>(configs.size());
         try {
             List<Callable<DownstreamCertTasdeeqResult>> tasks = new ArrayList<>();
-            for (final Map.Entry<String, DomainConfig> entry : domains.entrySet()) {
-                final DomainConfig config = entry.getValue();
+            for (int i = 0; i < configs.size(); i++) {
+                final int index = i;
+                final DomainConfig config = configs.get(i);
                 tasks.add(new Callable<DownstreamCertTasdeeqResult>() {
                     public DownstreamCertTasdeeqResult call() {
+                        CancellationToken token = CancellationToken.withDeadline(config.getDeadlineMillis(), TimeUnit.MILLISECONDS);
+                        tokens.set(index, token);
                         try {
-                            return tasdeeq(config.getHost(), config.getPort(), config.isValidateChain())
-                                    .setHost(config.getHost())
-                                    .setPort(config.getPort())
-                                    .setValidateChain(config.isValidateChain());
+                            return tasdeeq(config, token);
                         } catch (CertificateValidationException e) {
-                            return new DownstreamCertTasdeeqResult()
-                                    .setHost(config.getHost())
-                                    .setPort(config.getPort())
-                                    .setValidateChain(config.isValidateChain())
+                            return newResult(config)
                                     .setTrusted(false)
                                     .setConnectionError(e.getMessage());
+                        } finally {
+                            token.release();
                         }
                     }
                 });
             }
 
-            List<Future<DownstreamCertTasdeeqResult>> futures = executor.invokeAll(tasks, timeout, timeoutUnit);
+            List<Future<DownstreamCertTasdeeqResult>> futures = TasdeeqExecutor.invokeAll(executor, tasks, timeout, timeoutUnit);
 
             List<DownstreamCertTasdeeqResult> results = new ArrayList<DownstreamCertTasdeeqResult>();
-            for (Future<DownstreamCertTasdeeqResult> future : futures) {
+            for (int i = 0; i < futures.size(); i++) {
+                DomainConfig config = configs.get(i);
                 try {
-                    results.add(future.get());
+                    results.add(futures.get(i).get());
                 } catch (CancellationException e) {
-                    logger.error("Certificate fetch timed out");
-                    DownstreamCertTasdeeqResult timedOut = new DownstreamCertTasdeeqResult();
-                    timedOut.setConnectionError("Query timed out after " + timeout + " " + timeoutUnit);
-                    results.add(timedOut);
+                    // the future is cancelled but the probe may still be blocked on its socket, close it
+                    CancellationToken token = tokens.get(i);
+                    if (token != null) {
+                        token.cancel();
+                    }
+                    logger.error("Certificate fetch timed out for {}:{}", config.getHost(), config.getPort());
+                    results.add(newResult(config)
+                            .setTrusted(false)
+                            .setConnectionError("Query timed out after " + timeout + " " + timeoutUnit));
                 } catch (Exception e) {
-                    logger.error("Certificate fetch failed", e);
-                    DownstreamCertTasdeeqResult failed = new DownstreamCertTasdeeqResult();
-                    failed.setConnectionError("Unexpected error: " + e.getMessage());
-                    results.add(failed);
+                    logger.error("Certificate fetch failed for {}:{}", config.getHost(), config.getPort(), e);
+                    results.add(newResult(config)
+                            .setTrusted(false)
+                            .setConnectionError("Unexpected error: " + e.getMessage()));
                 }
             }
 
@@ -93,23 +161,127 @@ public class DownstreamCertTasdeeq {
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             logger.error("Certificate batch fetch interrupted", e);
+            for (int i = 0; i < tokens.length(); i++) {
+                CancellationToken token = tokens.get(i);
+                if (token != null) {
+                    token.cancel();
+                }
+            }
             DownstreamCertResults empty = new DownstreamCertResults();
             empty.setResults(Collections.<DownstreamCertTasdeeqResult>emptyList());
             return empty;
-        } finally {
-            executor.shutdown();
+        }
+    }
+
+    /**
+     * Fetches certificates for multiple domains through the given handshake engine, e.g. a {@link NioHandshakeEngine}
+     * driving thousands of handshakes from a few threads. Results are in map order, same as the executor variant.
+     * Connect and handshake timeouts are the engine's own, the overall deadline of each {@link DomainConfig} applies.
+     */
+    public static DownstreamCertResults tasdeeq(Map<String, DomainConfig> domains, long timeout, TimeUnit timeoutUnit,
+                                                HandshakeEngine engine) {
+        if (domains == null || domains.isEmpty()) {
+            DownstreamCertResults empty = new DownstreamCertResults();
+            empty.setResults(Collections.<DownstreamCertTasdeeqResult>emptyList());
+            return empty;
+        }
+
+        long start = System.nanoTime();
+        long deadline = start + timeoutUnit.toNanos(timeout);
+        List<DomainConfig> configs = new ArrayList<DomainConfig>(domains.values());
+        List<CompletableFuture<DownstreamCertTasdeeqResult>> futures = new ArrayList<CompletableFuture<DownstreamCertTasdeeqResult>>();
+        // the same endpoint listed under several keys is only handshaked once
+        Map<List<Object>, CompletableFuture<DownstreamCertTasdeeqResult>> byTarget = new HashMap<List<Object>, CompletableFuture<DownstreamCertTasdeeqResult>>();
+        for (DomainConfig config : configs) {
+            List<Object> target = Arrays.<Object>asList(config.getHost(), config.getPort(), config.isValidateChain());
+            CompletableFuture<DownstreamCertTasdeeqResult> future = byTarget.get(target);
+            if (future == null) {
+                future = handshake(config, engine);
+                byTarget.put(target, future);
+            }
+            futures.add(future);
+        }
+
+        List<DownstreamCertTasdeeqResult> results = new ArrayList<DownstreamCertTasdeeqResult>();
+        for (int i = 0; i < configs.size(); i++) {
+            DomainConfig config = configs.get(i);
+            CompletableFuture<DownstreamCertTasdeeqResult> future = futures.get(i);
             try {
-                if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
-                    executor.shutdownNow();
-                    if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
-                        logger.error("Executor did not terminate");
-                    }
-                }
+                long targetDeadline = start + TimeUnit.MILLISECONDS.toNanos(config.getDeadlineMillis());
+                long wait = Math.min(deadline, targetDeadline) - System.nanoTime();
+                results.add(future.get(Math.max(0L, wait), TimeUnit.NANOSECONDS));
+            } catch (TimeoutException e) {
+                // cancelling makes the engine close the connection
+                future.cancel(true);
+                logger.error("Certificate fetch timed out for {}:{}", config.getHost(), config.getPort());
+                results.add(newResult(config)
+                        .setTrusted(false)
+                        .setConnectionError(System.nanoTime() - deadline >= 0
+                                ? "Query timed out after " + timeout + " " + timeoutUnit
+                                : "Deadline of " + config.getDeadlineMillis() + " ms passed for " + config.getHost() + ":" + config.getPort()));
+            } catch (ExecutionException e) {
+                logger.error("Certificate fetch failed for {}:{}", config.getHost(), config.getPort(), e.getCause());
+                results.add(newResult(config)
+                        .setTrusted(false)
+                        .setConnectionError("Unexpected error: " + e.getCause().getMessage()));
             } catch (InterruptedException e) {
-                executor.shutdownNow();
                 Thread.currentThread().interrupt();
+                logger.error("Certificate batch fetch interrupted", e);
+                for (CompletableFuture<DownstreamCertTasdeeqResult> pending : futures) {
+                    pending.cancel(true);
+                }
+                DownstreamCertResults empty = new DownstreamCertResults();
+                empty.setResults(Collections.<DownstreamCertTasdeeqResult>emptyList());
+                return empty;
             }
         }
+
+        DownstreamCertResults certResults = new DownstreamCertResults();
+        certResults.setResults(results);
+        return certResults;
+    }
+
+    /**
+     * Async counterpart of {@link #tasdeeq(String, int, boolean)} on top of a handshake engine, failures end up
+     * as a connection error on the result instead of an exception. Like the blocking variant, lenient mode costs
+     * a single handshake.
+     */
+    private static CompletableFuture<DownstreamCertTasdeeqResult> handshake(final DomainConfig config, final HandshakeEngine engine) {
+        final String host = config.getHost();
+        final int port = config.getPort();
+        final String failureMessage = config.isValidateChain()
+                ? "Certificate chain validation failed for " + host + ":" + port
+                : "Failed to fetch certificate for " + host + ":" + port;
+        SSLContext sslContext;
+        try {
+            sslContext = config.isValidateChain() ? SSLContextPool.jvmTrust() : SSLContextPool.capture();
+        } catch (GeneralSecurityException e) {
+            return CompletableFuture.completedFuture(newResult(config)
+                    .setTrusted(false)
+                    .setConnectionError(failureMessage));
+        }
+
+        return engine.handshake(sslContext, host, port).handle(
+                new BiFunction<List<X509Certificate>, Throwable, DownstreamCertTasdeeqResult>() {
+                    public DownstreamCertTasdeeqResult apply(List<X509Certificate> certs, Throwable failure) {
+                        if (failure != null) {
+                            logger.error("Certificate fetch failed for {}:{}: {}", host, port, failure.getMessage());
+                            return newResult(config)
+                                    .setTrusted(false)
+                                    .setConnectionError(failureMessage);
+                        }
+                        DownstreamCertTasdeeqResult result = setChain(newResult(config), certs);
+                        return result.setTrusted(config.isValidateChain()
+                                || OfflineChainValidator.isTrusted(result.getDownstreamCertChain()));
+                    }
+                });
+    }
+
+    private static DownstreamCertTasdeeqResult newResult(DomainConfig config) {
+        return new DownstreamCertTasdeeqResult()
+                .setHost(config.getHost())
+                .setPort(config.getPort())
+                .setValidateChain(config.isValidateChain());
     }
 
     /**
@@ -128,85 +300,226 @@ public class DownstreamCertTasdeeq {
     }
 
     /**
-     * Fetches the downstream server certificate.
+     * Fetches the downstream server certificate, with the default connect, handshake and overall timeouts of
+     * {@link DomainConfig}.
      *
      * @param hostName the target hostname
      * @param port the target port
      * @param validateChain if true, strictly validates the certificate chain (fails on invalid certs).
-     *                      if false, attempts with validation first, then retries without validation on failure.
+     *                      if false, captures the presented chain in a single handshake and decides trust offline
+     *                      against the JVM trust anchors.
      * @return the server's X509 certificate
      * @throws CertificateValidationException if validateChain=true and validation fails
      */
     public static DownstreamCertTasdeeqResult tasdeeq(String hostName, int port, boolean validateChain) {
-        logger.info("Fetching certificate for {}:{} (validateChain={})", hostName, port, validateChain);
+        return tasdeeq(new DomainConfig(hostName, port, validateChain));
+    }
 
-        DownstreamCertTasdeeqResult result = new DownstreamCertTasdeeqResult();
+    /**
+     * Fetches the downstream server certificate within the connect, handshake and overall deadlines of the config.
+     * Once the overall deadline passes the socket is closed and the fetch fails.
+     *
+     * @throws CertificateValidationException if validation fails (strict mode), or no chain could be fetched
+     */
+    public static DownstreamCertTasdeeqResult tasdeeq(DomainConfig config) {
+        CancellationToken token = CancellationToken.withDeadline(config.getDeadlineMillis(), TimeUnit.MILLISECONDS);
+        try {
+            return tasdeeq(config, token);
+        } finally {
+            token.release();
+        }
+    }
 
-        if (validateChain) {
+    public static CompletableFuture<DownstreamCertTasdeeqResult> tasdeeqAsync(String hostName, int port, boolean validateChain) {
+        return tasdeeqAsync(new DomainConfig(hostName, port, validateChain));
+    }
+
+    /**
+     * Async {@link #tasdeeq(DomainConfig)} on the shared probe pool.
+     */
+    public static CompletableFuture<DownstreamCertTasdeeqResult> tasdeeqAsync(DomainConfig config) {
+        return tasdeeqAsync(config, TasdeeqExecutor.defaultExecutor());
+    }
+
+    /**
+     * Async {@link #tasdeeq(DomainConfig)} on the given executor. The future fails with a
+     * {@link CertificateValidationException} where the blocking call would throw it; cancelling the future closes the
+     * connection.
+     */
+    public static CompletableFuture<DownstreamCertTasdeeqResult> tasdeeqAsync(final DomainConfig config, Executor executor) {
+        final CompletableFuture<DownstreamCertTasdeeqResult> future = new CompletableFuture<DownstreamCertTasdeeqResult>();
+        // set once the probe starts, so its deadline does not tick while it is queued
+        final AtomicReference<CancellationToken> running = new AtomicReference<CancellationToken>();
+        future.whenComplete(new BiConsumer<DownstreamCertTasdeeqResult, Throwable>() {
+            public void accept(DownstreamCertTasdeeqResult result, Throwable failure) {
+                CancellationToken token = running.get();
+                if (future.isCancelled() && token != null) {
+                    token.cancel();
+                }
+            }
+        });
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    if (future.isDone()) {
+                        return;
+                    }
+                    CancellationToken token = CancellationToken.withDeadline(config.getDeadlineMillis(), TimeUnit.MILLISECONDS);
+                    running.set(token);
+                    if (future.isCancelled()) {
+                        token.cancel();
+                    }
+                    try {
+                        future.complete(tasdeeq(config, token));
+                    } catch (RuntimeException e) {
+                        future.completeExceptionally(e);
+                    } finally {
+                        token.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Streaming scan on the shared probe pool, see {@link #tasdeeqStream(Iterator, int, Executor, Consumer)}.
+     */
+    public static long tasdeeqStream(Stream<DomainConfig> targets, int maxInFlight,
+                                     Consumer<? super DownstreamCertTasdeeqResult> sink) {
+        return tasdeeqStream(targets.iterator(), maxInFlight, TasdeeqExecutor.defaultExecutor(), sink);
+    }
+
+    public static long tasdeeqStream(Iterator<DomainConfig> targets, int maxInFlight,
+                                     Consumer<? super DownstreamCertTasdeeqResult> sink) {
+        return tasdeeqStream(targets, maxInFlight, TasdeeqExecutor.defaultExecutor(), sink);
+    }
+
+    /**
+     * Scans the targets with at most {@code maxInFlight} fetches running at once, handing each result to the sink in
+     * completion order as soon as it is known. Targets are pulled lazily, so a scan of millions of hosts runs in
+     * constant memory. Each fetch is bounded by the deadlines of its config; failures, strict validation included,
+     * are delivered as a result carrying the connection error. Sink calls are serialized.
+     *
+     * @return the number of results delivered, short of the targets if the calling thread was interrupted
+     */
+    public static long tasdeeqStream(Iterator<DomainConfig> targets, int maxInFlight, Executor executor,
+                                     Consumer<? super DownstreamCertTasdeeqResult> sink) {
+        return TasdeeqExecutor.forEachCompleted(targets, maxInFlight, executor,
+                new Function<DomainConfig, DownstreamCertTasdeeqResult>() {
+                    public DownstreamCertTasdeeqResult apply(DomainConfig config) {
+                        return tasdeeq(config);
+                    }
+                },
+                new BiFunction<DomainConfig, RuntimeException, DownstreamCertTasdeeqResult>() {
+                    public DownstreamCertTasdeeqResult apply(DomainConfig config, RuntimeException e) {
+                        logger.error("Certificate fetch failed for {}:{}: {}", config.getHost(), config.getPort(), e.getMessage());
+                        return newResult(config)
+                                .setTrusted(false)
+                                .setConnectionError(e.getMessage());
+                    }
+                },
+                sink);
+    }
+
+    private static DownstreamCertTasdeeqResult tasdeeq(DomainConfig config, CancellationToken token) {
+        String hostName = config.getHost();
+        int port = config.getPort();
+        logger.info("Fetching certificate for {}:{} (validateChain={})", hostName, port, config.isValidateChain());
+
+        DownstreamCertTasdeeqResult result = newResult(config);
+
+        if (config.isValidateChain()) {
             // Strict mode: fail hard if validation fails
             try {
-                result.setDownstreamCertChain(fetchCertificates(hostName, port));
+                setPeer(result, handshake(SSLContextPool.jvmTrust(), config, token, JVM_TRUST));
                 result.setTrusted(true);
-            } catch (IOException e) {
+            } catch (IOException | GeneralSecurityException e) {
                 result.setTrusted(false);
                 logger.error("Certificate validation failed for {}:{}", hostName, port, e);
                 throw new CertificateValidationException(
                         "Certificate chain validation failed for " + hostName + ":" + port, e);
             }
         } else {
-            // Lenient mode: try with validation first, fallback to without validation
-            try {
-                logger.info("Attempting the fetching of certificate details with validation 'ON' first for {}:{}", hostName, port);
-                result.setDownstreamCertChain(fetchCertificates(hostName, port));
-                result.setTrusted(true);
-            } catch (IOException e) {
-                logger.error("Validation failed for {}:{}, retrying next without chain validation: {}",
-                        hostName, port, e.getMessage());
-                result.setTrusted(false);
-                try {
-                    result.setDownstreamCertChain(fetchCertificateWithoutChainValidation(hostName, port));
-                } catch (NoSuchAlgorithmException | KeyManagementException ex) {
-                    logger.error("Failed to fetch certificate without validation for hostname: {} on port: {}, exception is {}", hostName, port, ex.getMessage());
-                }
-            }
+            // Lenient mode: one handshake captures whatever chain is presented, trust is decided offline
+            setPeer(result, fetchCertificateWithoutChainValidation(config, token));
+            result.setTrusted(OfflineChainValidator.isTrusted(result.getDownstreamCertChain()));
         }
         return result;
     }
 
-    private static List<X509Certificate> fetchCertificates(String hostname, int port) throws IOException {
-        logger.info("Fetching certificate with validation enabled");
-        SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+    /**
+     * Performs the handshake over a socket created from the given context, with the default timeouts. The context
+     * is owned by the caller, the JVM-wide defaults ({@link SSLContext#getDefault()}, {@link HttpsURLConnection}) are
+     * never touched, so strict, lenient and custom-CA fetches can safely run concurrently with each other and with
+     * the application.
+     */
+    private static List<X509Certificate> fetchCertificates(SSLContext sslContext, String hostname, int port, Object trust) throws IOException {
+        CancellationToken token = CancellationToken.withDeadline(DomainConfig.DEFAULT_DEADLINE_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+            return toOrderedChain(handshake(sslContext, new DomainConfig(hostname, port, true), token, trust).getCertificates());
+        } finally {
+            token.release();
+        }
+    }
 
-        SSLSocket socket = null;
+    /**
+     * Handshakes on the calling thread, or joins an identical handshake already in flight. {@code trust} identifies
+     * how the context decides trust, only handshakes with the same host, port and trust are shared. A caller that
+     * joined waits within its own token; cancelling it gives up this caller's wait, the handshake goes on as long as
+     * another caller waits for it.
+     */
+    private static PeerHandshake handshake(final SSLContext sslContext, final DomainConfig config,
+                                           CancellationToken token, Object trust) throws IOException {
+        List<Object> key = Arrays.<Object>asList(config.getHost(), config.getPort(), trust);
         try {
-            socket = (SSLSocket) factory.createSocket(hostname, port);
-            socket.startHandshake();
-            SSLSession session = socket.getSession();
+            return IN_FLIGHT.execute(key, token, new SingleFlight.Work<PeerHandshake, IOException>() {
+                public PeerHandshake run(CancellationToken shared) throws IOException {
+                    return SocketHandshakeEngine.connectAndHandshake(sslContext, config.getHost(), config.getPort(),
+                            config.getConnectTimeoutMillis(), config.getHandshakeTimeoutMillis(), shared);
+                }
+            });
+        } catch (CancellationException e) {
+            // same outcome as a cancelled handshake of its own, whose socket was closed under it
+            throw new IOException("Handshake with " + config.getHost() + ":" + config.getPort() + " cancelled", e);
+        }
+    }
 
-            Certificate[] certs = session.getPeerCertificates();
-            List<X509Certificate> x509Certs = new ArrayList<X509Certificate>();
+    /**
+     * @return number of fetches that shared a handshake already in flight instead of opening their own connection
+     */
+    public static long getCoalescedFetchCount() {
+        return IN_FLIGHT.getCoalescedCount();
+    }
 
-            logger.info("Retrieved {} certificate(s) in chain", certs.length);
+    private static void setPeer(DownstreamCertTasdeeqResult result, PeerHandshake peer) {
+        logger.info("Handshake with {}:{} over {} {}", result.getHost(), result.getPort(),
+                peer.getAddressFamily(), peer.getRemoteAddress().getAddress().getHostAddress());
+        setChain(result, peer.getCertificates())
+                .setRemoteAddress(peer.getRemoteAddress().getAddress().getHostAddress())
+                .setAddressFamily(peer.getAddressFamily());
+    }
 
-            for (Certificate cert : certs) {
-                if (cert instanceof X509Certificate) {
-                    X509Certificate x509 = (X509Certificate) cert;
-                    x509Certs.add(x509);
-                    String certType = classifyCertificate(x509);
-                    logCertificateDetails(x509, certType);
-                }
-            }
+    /**
+     * Sets the ordered chain; the facts logged here are the ones kept on the result for later readers.
+     */
+    private static DownstreamCertTasdeeqResult setChain(DownstreamCertTasdeeqResult result, List<X509Certificate> x509Certs) {
+        // well it will be ordered 99.999999% of the times :-), just being extra sure.
+        result.setDownstreamCertChain(orderChain(x509Certs));
+        if (logger.isInfoEnabled()) {
+            logCertificateDetails(result.getCertificateFacts());
+        }
+        return result;
+    }
 
-            // well it will be ordered 99.999999% of the times :-), just being extra sure.
-            return orderChain(x509Certs);
-        } finally {
-            if (socket != null) {
-                try {
-                    socket.close();
-                } catch (IOException ignored) {
-                }
-            }
+    private static List<X509Certificate> toOrderedChain(List<X509Certificate> x509Certs) {
+        List<X509Certificate> ordered = orderChain(x509Certs);
+        if (logger.isInfoEnabled()) {
+            logCertificateDetails(CertificateFacts.of(ordered));
         }
+        return ordered;
     }
 
     public static DownstreamCertTasdeeqResult tasdeeq(String hostName, int port, String base64EncodedChain) throws CertificateException, NoSuchAlgorithmException, KeyStoreException, IOException, KeyManagementException, SignatureException, NoSuchProviderException, InvalidKeyException {
@@ -219,10 +532,17 @@ public class DownstreamCertTasdeeq {
         DownstreamCertTasdeeqResult result = new DownstreamCertTasdeeqResult();
         List<X509Certificate> trustChainCerts = extractTrustCertificates(base64EncodedChain);
 
+        X509Certificate[] customCAs = trustChainCerts.toArray(new X509Certificate[0]);
+
         try {
             logger.info("Attempting the fetching of certificate details with custom chain first for {}:{}", hostName, port);
-            result.setDownstreamCertChain(fetchCertificates(hostName, port, validateChain, trustChainCerts.toArray(new X509Certificate[0])));
-            result.setTrusted(true);
+            if (validateChain) {
+                result.setDownstreamCertChain(fetchCertificates(hostName, port, true, customCAs));
+                result.setTrusted(true);
+            } else {
+                result.setDownstreamCertChain(fetchCertificates(SSLContextPool.capture(), hostName, port, CAPTURE));
+                result.setTrusted(OfflineChainValidator.isTrusted(result.getDownstreamCertChain(), customCAs));
+            }
         } catch (IOException e) {
             logger.error("Validation failed for {}:{}, with custom chain validation: {}",
                     hostName, port, e.getMessage());
@@ -248,27 +568,15 @@ public class DownstreamCertTasdeeq {
 
         logger.info("Fetching certificate with custom truststore");
 
-        // Store original settings
-        SSLSocketFactory originalSocketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
-        HostnameVerifier originalHostnameVerifier = HttpsURLConnection.getDefaultHostnameVerifier();
-        SSLContext originalSSLContext = SSLContext.getDefault();
-
-        addTrustedRoots(additionalCAs);
-
         if (validateChain) {
             try {
-                List<X509Certificate> certs = fetchCertificates(hostname, port);
+                List<X509Certificate> certs = fetchCertificates(SSLContextPool.customTrust(additionalCAs), hostname, port,
+                        Arrays.asList(additionalCAs));
                 logger.info("Certificates fetched successfully");
                 return certs;
             } catch (Exception e) {
                 logger.error("Failed to fetch certificates!", e);
                 throw e;
-            } finally {
-                // Always restore — whether success or failure
-                SSLContext.setDefault(originalSSLContext);
-                HttpsURLConnection.setDefaultSSLSocketFactory(originalSocketFactory);
-                HttpsURLConnection.setDefaultHostnameVerifier(originalHostnameVerifier);
-                logger.info("SSL context restored to original");
             }
         } else {
             logger.info("Certificate validation disabled. Proceeding with unverified certificate fetch.");
@@ -280,57 +588,33 @@ public class DownstreamCertTasdeeq {
      * Fetches certificate WITHOUT validation (for self-signed/expired certs).
      * IMPORTANT: This bypasses security checks - use only when appropriate!
      */
-    private static List<X509Certificate> fetchCertificateWithoutChainValidation(String hostname, int port) throws NoSuchAlgorithmException, KeyManagementException {
-        logger.info("Fetching certificate WITHOUT validation for {}:{} - this bypasses security!", hostname, port);
-
-        // Store original settings
-        SSLSocketFactory originalSocketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
-        HostnameVerifier originalHostnameVerifier = HttpsURLConnection.getDefaultHostnameVerifier();
-
+    private static List<X509Certificate> fetchCertificateWithoutChainValidation(String hostname, int port) {
+        CancellationToken token = CancellationToken.withDeadline(DomainConfig.DEFAULT_DEADLINE_MILLIS, TimeUnit.MILLISECONDS);
         try {
-            disableCertificateValidation();
-
-            SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-            SSLSocket socket = null;
-            try {
-                socket = (SSLSocket) factory.createSocket(hostname, port);
-                socket.startHandshake();
-                SSLSession session = socket.getSession();
-
-                Certificate[] certs = session.getPeerCertificates();
-                List<X509Certificate> x509Certs = new ArrayList<X509Certificate>();
-
-                logger.info("Retrieved {} certificate(s) in chain", certs.length);
+            return toOrderedChain(fetchCertificateWithoutChainValidation(new DomainConfig(hostname, port, false), token).getCertificates());
+        } finally {
+            token.release();
+        }
+    }
 
-                for (Certificate cert : certs) {
-                    if (cert instanceof X509Certificate) {
-                        X509Certificate x509 = (X509Certificate) cert;
-                        x509Certs.add(x509);
-                        logCertificateDetails(x509, classifyCertificate(x509));
-                    }
-                }
+    private static PeerHandshake fetchCertificateWithoutChainValidation(DomainConfig config, CancellationToken token) {
+        String hostname = config.getHost();
+        int port = config.getPort();
+        logger.info("Fetching certificate WITHOUT validation for {}:{} - this bypasses security!", hostname, port);
 
-                return orderChain(x509Certs);
-            } finally {
-                if (socket != null) {
-                    try {
-                        socket.close();
-                    } catch (IOException ignored) {
-                    }
-                }
-            }
+        try {
+            return handshake(SSLContextPool.capture(), config, token, CAPTURE);
         } catch (Exception e) {
             logger.error("Failed to fetch certificate even without validation", e);
             throw new CertificateValidationException(
                     "Failed to fetch certificate for " + hostname + ":" + port, e);
-        } finally {
-            enableCertificateValidation(originalSocketFactory, originalHostnameVerifier);
-            logger.info("Certificate validation re-enabled");
         }
     }
 
-    private static void logCertificateDetails(X509Certificate x509, String certType) {
-        logger.info("certificate details: Subject: [{}], Issuer: [{}], Validity: [{}] to [{}], Serial: [{}], type: [{}], EKU: {}", x509.getSubjectDN(), x509.getIssuerDN(), x509.getNotBefore(), x509.getNotAfter(), x509.getSerialNumber(), certType, getExtendedKeyUsage(x509));
+    private static void logCertificateDetails(List<CertificateFacts> chain) {
+        for (CertificateFacts facts : chain) {
+            logger.info("certificate details: {}", facts);
+        }
     }
 
     private static List<X509Certificate> orderChain(List<X509Certificate> certs) {
@@ -376,164 +660,23 @@ public class DownstreamCertTasdeeq {
         return ordered;
     }
 
-    private static void disableCertificateValidation() throws Exception {
-        logger.warn("DISABLING certificate validation, only to fetch certificates, insecure mode is risky");
-
-        TrustManager[] trustAllCerts = new TrustManager[]{
-                new X509TrustManager() {
-                    public void checkClientTrusted(X509Certificate[] certs, String authType) {}
-                    public void checkServerTrusted(X509Certificate[] certs, String authType) {}
-                    public X509Certificate[] getAcceptedIssuers() { return new X509Certificate[0]; }
-                }
-        };
-
-        SSLContext sc = SSLContext.getInstance("TLS");
-        sc.init(null, trustAllCerts, new java.security.SecureRandom());
-        SSLContext.setDefault(sc);
-        HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
-
-        HostnameVerifier allHostsValid = new HostnameVerifier() {
-            public boolean verify(String hostname, SSLSession session) {
-                return true;
-            }
-        };
-        HttpsURLConnection.setDefaultHostnameVerifier(allHostsValid);
-    }
-
-    private static void addTrustedRoots(X509Certificate... additionalCAs) throws KeyStoreException, NoSuchAlgorithmException, CertificateException, IOException, KeyManagementException {
-        // Load the default system truststore (JDK cacerts)
-        TrustManagerFactory defaultTmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-        defaultTmf.init((KeyStore) null);
-
-        KeyStore customTrustStore = KeyStore.getInstance("PKCS12");
-        customTrustStore.load(null, null);
-        for (int i = 0; i < additionalCAs.length; i++) {
-            customTrustStore.setCertificateEntry(additionalCAs[i].getSubjectX500Principal().getName() + "-custom-ca", additionalCAs[i]);
-            logger.info("x509Certificate with CN {} and issuer {} added to the trust manager(store)", additionalCAs[i].getSubjectX500Principal().getName(), additionalCAs[i].getIssuerX500Principal().getName());
-        }
-
-        TrustManagerFactory customTmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-        customTmf.init(customTrustStore);
-
-        X509TrustManager defaultTm = (X509TrustManager) defaultTmf.getTrustManagers()[0];
-        X509TrustManager customTm  = (X509TrustManager) customTmf.getTrustManagers()[0];
-
-        X509TrustManager combinedTm = new X509TrustManager() {
-
-            public void checkClientTrusted(X509Certificate[] chain, String authType)
-                    throws CertificateException {
-                try {
-                    defaultTm.checkClientTrusted(chain, authType);
-                } catch (CertificateException e) {
-                    customTm.checkClientTrusted(chain, authType);
-                }
-            }
-
-            public void checkServerTrusted(X509Certificate[] chain, String authType)
-                    throws CertificateException {
-                try {
-                    defaultTm.checkServerTrusted(chain, authType);
-                } catch (CertificateException e) {
-                    customTm.checkServerTrusted(chain, authType);
-                }
-            }
-
-            public X509Certificate[] getAcceptedIssuers() {
-                X509Certificate[] defaultIssuers = defaultTm.getAcceptedIssuers();
-                X509Certificate[] customIssuers  = customTm.getAcceptedIssuers();
-                X509Certificate[] combined = new X509Certificate[
-                        defaultIssuers.length + customIssuers.length];
-                System.arraycopy(defaultIssuers, 0, combined, 0, defaultIssuers.length);
-                System.arraycopy(customIssuers, 0, combined, defaultIssuers.length, customIssuers.length);
-                return combined;
-            }
-        };
-
-        SSLContext sc = SSLContext.getInstance("TLS");
-        sc.init(null, new TrustManager[]{ combinedTm }, new SecureRandom());
-        SSLContext.setDefault(sc);
-        HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
-        // Diagnostic — print what customTm sees
-        logger.info("Custom Trust Manager --> accepted issuers count: {}", customTm.getAcceptedIssuers().length);
-        for (X509Certificate issuer : customTm.getAcceptedIssuers()) {
-            logger.info("--> Custom trusted: {}", issuer.getSubjectX500Principal().getName());
-        }
-    }
-
-    private static void enableCertificateValidation(
-            SSLSocketFactory originalSocketFactory,
-            HostnameVerifier originalHostnameVerifier) throws NoSuchAlgorithmException, KeyManagementException {
-
-        logger.info("Re-enabling certificate validation");
-
-        // Restore original settings
-        HttpsURLConnection.setDefaultSSLSocketFactory(originalSocketFactory);
-        HttpsURLConnection.setDefaultHostnameVerifier(originalHostnameVerifier);
-
-        // Reset SSLContext to default
-        SSLContext sc = SSLContext.getInstance("TLS");
-        sc.init(null, null, null);
-        SSLContext.setDefault(sc);
-    }
-
-    private static String classifyCertificate(X509Certificate cert) {
-        boolean isCA = cert.getBasicConstraints() != -1;
-        boolean isSelfSigned = isSelfSigned(cert);
-
-        if (isCA) {
-            return isSelfSigned ? "ROOT CA" : "INTERMEDIATE CA";
-        }
-        return "LEAF [End-Entity]";
-    }
-
-    private static final Map<String, String> EKU_DESCRIPTIONS = new HashMap<String, String>();
-
-    static {
-        EKU_DESCRIPTIONS.put("1.3.6.1.5.5.7.3.1", "TLS Web Server Authentication");
-        EKU_DESCRIPTIONS.put("1.3.6.1.5.5.7.3.2", "TLS Web Client Authentication");
-        EKU_DESCRIPTIONS.put("1.3.6.1.5.5.7.3.3", "Code Signing");
-        EKU_DESCRIPTIONS.put("1.3.6.1.5.5.7.3.4", "Email Protection");
-        EKU_DESCRIPTIONS.put("1.3.6.1.5.5.7.3.8", "Time Stamping");
-    }
-
-    private static String getExtendedKeyUsage(X509Certificate cert) {
-        StringBuilder result = new StringBuilder("Extended Key Usage:");
-        List<String> ekuOIDs;
-        try {
-            ekuOIDs = cert.getExtendedKeyUsage();
-        } catch (CertificateParsingException e) {
-            // this would not occur in 99.99% scenarios, but just in case...
-            logger.error("Failed to parse certificate EKU", e);
-            throw new RuntimeException(e);
-        }
-
-        if (ekuOIDs != null) {
-            for (String oid : ekuOIDs) {
-                String usage = EKU_DESCRIPTIONS.containsKey(oid)
-                        ? EKU_DESCRIPTIONS.get(oid)
-                        : "Unknown (" + oid + ")";
-                result.append(" [").append(usage).append("]");
-            }
-        } else {
-            result.append(" [None]");
+    /**
+     * Parses a base64 encoded PEM bundle of CAs. Configured chains are parsed again on every health refresh, so
+     * parsed chains are cached by the SHA-256 of the encoded input; a repeated chain skips the decoding, parsing
+     * and signature checks and returns the same certificate instances.
+     */
+    public static List<X509Certificate> extractTrustCertificates(final String base64EncodedCert) throws CertificateException, NoSuchProviderException, NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+        String key = Digests.sha256Hex(base64EncodedCert.getBytes(StandardCharsets.US_ASCII));
+        List<X509Certificate> parsed;
+        synchronized (PARSED_CHAINS) {
+            parsed = PARSED_CHAINS.get(key);
         }
-        return result.toString();
-    }
-
-    private static boolean isSelfSigned(X509Certificate cert) {
-        try {
-            PublicKey key = cert.getPublicKey();
-            cert.verify(key);
-            return cert.getSubjectX500Principal().equals(cert.getIssuerX500Principal());
-        } catch (Exception e) {
-            logger.trace("Certificate {} is not self-signed", cert.getSubjectX500Principal().getName());
-            return false;
+        if (parsed != null) {
+            logger.debug("Custom CA chain {} already parsed", key);
+            return new ArrayList<X509Certificate>(parsed);
         }
-    }
 
-    public static List<X509Certificate> extractTrustCertificates(final String base64EncodedCert) throws CertificateException, NoSuchProviderException, NoSuchAlgorithmException, SignatureException, InvalidKeyException {
-        Security.addProvider(new BouncyCastleProvider());
-        CertificateFactory cf = CertificateFactory.getInstance("X.509", "BC");
+        CertificateFactory cf = BC_CERTIFICATE_FACTORY.get();
         // Decode the Base64 ONCE to get the original PEM content
         ByteArrayInputStream inputStream = new ByteArrayInputStream(Base64.getDecoder().decode(base64EncodedCert));
 
@@ -554,11 +697,26 @@ public class DownstreamCertTasdeeq {
             certificates.add((X509Certificate) cert);
         }
 
+        synchronized (PARSED_CHAINS) {
+            PARSED_CHAINS.put(key, Collections.unmodifiableList(new ArrayList<X509Certificate>(certificates)));
+        }
         return certificates;
     }
 
+    private static void registerBouncyCastle() {
+        // constructing the provider is the expensive part, only do it when it is not installed yet
+        synchronized (DownstreamCertTasdeeq.class) {
+            if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+                Security.addProvider(new BouncyCastleProvider());
+            }
+        }
+    }
+
     public static boolean isRootCA(final X509Certificate cert) throws CertificateException, NoSuchAlgorithmException, SignatureException, InvalidKeyException, NoSuchProviderException {
-        cert.verify(cert.getPublicKey());
+        if (!SignatureVerifier.verifiesWithOwnKey(cert)) {
+            // verify again for the exception telling why
+            cert.verify(cert.getPublicKey());
+        }
         logger.info("this is root CA");
         return true;
     }
@@ -568,33 +726,54 @@ public class DownstreamCertTasdeeq {
     }
 
     /**
-     * Simple holder for domain configuration
+     * Simple holder for domain configuration, including the per-target connect, handshake and overall deadlines
      */
     public static class DomainConfig {
+
+        public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = SocketHandshakeEngine.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+        public static final int DEFAULT_HANDSHAKE_TIMEOUT_MILLIS = SocketHandshakeEngine.DEFAULT_HANDSHAKE_TIMEOUT_MILLIS;
+        public static final long DEFAULT_DEADLINE_MILLIS = SocketHandshakeEngine.DEFAULT_DEADLINE_MILLIS;
+
         private final String host;
         private final int port;
         private final boolean validateChain;
+        private final int connectTimeoutMillis;
+        private final int handshakeTimeoutMillis;
+        private final long deadlineMillis;
 
         public DomainConfig(String host) {
-            this.host = host;
-            this.port = 443;
-            this.validateChain = true;
+            this(host, 443, true);
         }
 
         public DomainConfig(String host, boolean validateChain) {
-            this.host = host;
-            this.port = 443;
-            this.validateChain = validateChain;
+            this(host, 443, validateChain);
         }
 
         public DomainConfig(String host, int port, boolean validateChain) {
+            this(host, port, validateChain, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_HANDSHAKE_TIMEOUT_MILLIS,
+                    DEFAULT_DEADLINE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * @param connectTimeout   time allowed for the TCP connect
+         * @param handshakeTimeout time allowed for each read while handshaking
+         * @param deadline         overall time allowed for the target, connect and handshake included
+         */
+        public DomainConfig(String host, int port, boolean validateChain,
+                            long connectTimeout, long handshakeTimeout, long deadline, TimeUnit unit) {
             this.host = host;
             this.port = port;
             this.validateChain = validateChain;
+            this.connectTimeoutMillis = (int) Math.min(Integer.MAX_VALUE, unit.toMillis(connectTimeout));
+            this.handshakeTimeoutMillis = (int) Math.min(Integer.MAX_VALUE, unit.toMillis(handshakeTimeout));
+            this.deadlineMillis = unit.toMillis(deadline);
         }
 
         public String getHost() { return host; }
         public int getPort() { return port; }
         public boolean isValidateChain() { return validateChain; }
+        public int getConnectTimeoutMillis() { return connectTimeoutMillis; }
+        public int getHandshakeTimeoutMillis() { return handshakeTimeoutMillis; }
+        public long getDeadlineMillis() { return deadlineMillis; }
     }
-}
\ No newline at end of file
+}
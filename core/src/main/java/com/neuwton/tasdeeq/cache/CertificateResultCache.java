@@ -0,0 +1,318 @@
+package com.neuwton.tasdeeq.cache;
+
+import com.neuwton.tasdeeq.DownstreamCertTasdeeq;
+import com.neuwton.tasdeeq.DownstreamCertTasdeeq.DomainConfig;
+import com.neuwton.tasdeeq.concurrent.TasdeeqExecutor;
+import com.neuwton.tasdeeq.exceptions.CertificateValidationException;
+import com.neuwton.tasdeeq.models.DownstreamCertTasdeeqResult;
+import com.neuwton.tasdeeq.trust.Digests;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches {@link DownstreamCertTasdeeq} results per host, port, validation mode and trust configuration (the JVM
+ * truststore, or the fingerprint of a custom CA chain).
+ * <ul>
+ *     <li>a result is fresh for the TTL, a connection failure only for the shorter negative TTL</li>
+ *     <li>once the TTL passes, a successful result is still served for the stale-while-revalidate window while it is
+ *     refreshed in the background; after that window a lookup fetches again</li>
+ *     <li>at most {@code maxEntries} results are kept, the least recently used is evicted first</li>
+ * </ul>
+ * Fetch failures are cached and returned as a result carrying the connection error, they are not thrown. Returned
+ * results are shared between callers, treat them as read-only.
+ */
+public class CertificateResultCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(CertificateResultCache.class);
+
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    public static final long DEFAULT_NEGATIVE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    public static final long DEFAULT_STALE_WHILE_REVALIDATE_MILLIS = TimeUnit.HOURS.toMillis(1);
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    private static final String JVM_TRUST = "jvm";
+
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final long staleWhileRevalidateNanos;
+    private final Executor refreshExecutor;
+    private final Map<Key, CachedResult> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong refreshFailures = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public CertificateResultCache() {
+        this(DEFAULT_TTL_MILLIS, DEFAULT_NEGATIVE_TTL_MILLIS, DEFAULT_STALE_WHILE_REVALIDATE_MILLIS,
+                TimeUnit.MILLISECONDS, DEFAULT_MAX_ENTRIES, TasdeeqExecutor.defaultExecutor());
+    }
+
+    /**
+     * @param ttl                  how long a successful result is fresh
+     * @param negativeTtl          how long a connection failure is cached
+     * @param staleWhileRevalidate how long past its TTL a successful result may still be served while refreshing
+     * @param maxEntries           maximum number of cached results
+     * @param refreshExecutor      executor running the background refreshes
+     */
+    public CertificateResultCache(long ttl, long negativeTtl, long staleWhileRevalidate, TimeUnit unit,
+                                  final int maxEntries, Executor refreshExecutor) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        this.ttlNanos = unit.toNanos(ttl);
+        this.negativeTtlNanos = unit.toNanos(negativeTtl);
+        this.staleWhileRevalidateNanos = unit.toNanos(staleWhileRevalidate);
+        this.refreshExecutor = refreshExecutor;
+        this.entries = new LinkedHashMap<Key, CachedResult>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedResult> eldest) {
+                if (size() > maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the cached result for the target (trusted against the JVM truststore), fetching it if needed
+     */
+    public DownstreamCertTasdeeqResult get(final DomainConfig config) {
+        return get(new Key(config.getHost(), config.getPort(), config.isValidateChain(), JVM_TRUST), new Loader() {
+            public DownstreamCertTasdeeqResult load() {
+                try {
+                    return DownstreamCertTasdeeq.tasdeeq(config);
+                } catch (CertificateValidationException e) {
+                    return failed(config.getHost(), config.getPort(), config.isValidateChain(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the cached result for the target trusted against the given base64 encoded CA chain, fetching it if
+     * needed
+     * @throws CertificateValidationException if the CA chain cannot be parsed
+     */
+    public DownstreamCertTasdeeqResult get(final String host, final int port, final boolean validateChain,
+                                           final String base64EncodedChain) {
+        return get(new Key(host, port, validateChain, fingerprint(base64EncodedChain)), new Loader() {
+            public DownstreamCertTasdeeqResult load() {
+                try {
+                    return DownstreamCertTasdeeq.tasdeeq(host, port, validateChain, base64EncodedChain)
+                            .setHost(host)
+                            .setPort(port)
+                            .setValidateChain(validateChain);
+                } catch (CertificateValidationException e) {
+                    return failed(host, port, validateChain, e);
+                } catch (IOException | GeneralSecurityException e) {
+                    throw new CertificateValidationException("Invalid custom CA chain for " + host + ":" + port, e);
+                }
+            }
+        });
+    }
+
+    private DownstreamCertTasdeeqResult get(final Key key, final Loader loader) {
+        long now = System.nanoTime();
+        CachedResult entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry != null) {
+            if (now - entry.expiresAt < 0) {
+                hits.incrementAndGet();
+                return entry.result;
+            }
+            if (now - entry.staleUntil < 0) {
+                staleHits.incrementAndGet();
+                refreshInBackground(key, entry, loader);
+                return entry.result;
+            }
+        }
+        misses.incrementAndGet();
+        DownstreamCertTasdeeqResult result = loader.load();
+        put(key, result);
+        return result;
+    }
+
+    private void refreshInBackground(final Key key, final CachedResult stale, final Loader loader) {
+        if (!stale.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        DownstreamCertTasdeeqResult refreshed = loader.load();
+                        if (refreshed.getConnectionError() != null && stale.result.getConnectionError() == null) {
+                            // a blip must not replace a good result, keep serving it until its stale window closes
+                            refreshFailures.incrementAndGet();
+                            logger.warn("Background refresh of {} failed: {}, serving the stale result",
+                                    key, refreshed.getConnectionError());
+                            return;
+                        }
+                        put(key, refreshed);
+                        refreshes.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        refreshFailures.incrementAndGet();
+                        logger.error("Background refresh of {} failed", key, e);
+                    } finally {
+                        stale.refreshing.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            stale.refreshing.set(false);
+            logger.debug("Background refresh of {} rejected, serving the stale result", key);
+        }
+    }
+
+    private void put(Key key, DownstreamCertTasdeeqResult result) {
+        long now = System.nanoTime();
+        CachedResult entry = result.getConnectionError() == null
+                ? new CachedResult(result, now + ttlNanos, now + ttlNanos + staleWhileRevalidateNanos)
+                : new CachedResult(result, now + negativeTtlNanos, now + negativeTtlNanos);
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+    }
+
+    public void invalidate(String host, int port) {
+        synchronized (entries) {
+            Iterator<Key> keys = entries.keySet().iterator();
+            while (keys.hasNext()) {
+                Key key = keys.next();
+                if (key.host.equals(host) && key.port == port) {
+                    keys.remove();
+                }
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return lookups answered with a fresh result
+     */
+    public long getHitCount() { return hits.get(); }
+
+    /**
+     * @return lookups answered with a stale result while it was refreshed in the background
+     */
+    public long getStaleHitCount() { return staleHits.get(); }
+
+    /**
+     * @return lookups that had to fetch
+     */
+    public long getMissCount() { return misses.get(); }
+
+    /**
+     * @return completed background refreshes
+     */
+    public long getRefreshCount() { return refreshes.get(); }
+
+    /**
+     * @return background refreshes that failed, the stale result was kept
+     */
+    public long getRefreshFailureCount() { return refreshFailures.get(); }
+
+    public long getEvictionCount() { return evictions.get(); }
+
+    private static DownstreamCertTasdeeqResult failed(String host, int port, boolean validateChain,
+                                                      CertificateValidationException e) {
+        return new DownstreamCertTasdeeqResult()
+                .setHost(host)
+                .setPort(port)
+                .setValidateChain(validateChain)
+                .setTrusted(false)
+                .setConnectionError(e.getMessage());
+    }
+
+    private static String fingerprint(String base64EncodedChain) {
+        return Digests.sha256Hex(base64EncodedChain.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private interface Loader {
+        DownstreamCertTasdeeqResult load();
+    }
+
+    private static final class CachedResult {
+        private final DownstreamCertTasdeeqResult result;
+        private final long expiresAt;
+        private final long staleUntil;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        CachedResult(DownstreamCertTasdeeqResult result, long expiresAt, long staleUntil) {
+            this.result = result;
+            this.expiresAt = expiresAt;
+            this.staleUntil = staleUntil;
+        }
+    }
+
+    private static final class Key {
+        private final String host;
+        private final int port;
+        private final boolean validateChain;
+        private final String trust;
+
+        Key(String host, int port, boolean validateChain, String trust) {
+            this.host = host;
+            this.port = port;
+            this.validateChain = validateChain;
+            this.trust = trust;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return port == other.port && validateChain == other.validateChain
+                    && host.equals(other.host) && trust.equals(other.trust);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = host.hashCode();
+            result = 31 * result + port;
+            result = 31 * result + (validateChain ? 1 : 0);
+            result = 31 * result + trust.hashCode();
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port + " (validateChain=" + validateChain + ", trust=" + trust + ")";
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.neuwton.tasdeeq.concurrent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cancels a blocking probe by closing the resources it is blocked on. Interrupting a thread does not unblock
+ * socket I/O, closing the socket does, so probes register their sockets here and whoever gives up on the probe
+ * (a batch timeout, a cancelled future, or the token's own deadline) calls {@link #cancel()}.
+ * <p>
+ * Call {@link #release()} once the probe is over, it stops the deadline watchdog.
+ */
+public final class CancellationToken {
+
+    private final Set<Closeable> resources = Collections.newSetFromMap(new ConcurrentHashMap<Closeable, Boolean>());
+    private final long deadlineNanos;
+    private final boolean hasDeadline;
+    private volatile boolean cancelled;
+    private volatile ScheduledFuture<?> watchdog;
+
+    private CancellationToken(long deadlineNanos, boolean hasDeadline) {
+        this.deadlineNanos = deadlineNanos;
+        this.hasDeadline = hasDeadline;
+    }
+
+    /**
+     * @return a token that is only cancelled explicitly
+     */
+    public static CancellationToken create() {
+        return new CancellationToken(0L, false);
+    }
+
+    /**
+     * @return a token that cancels itself once the timeout elapses
+     */
+    public static CancellationToken withDeadline(long timeout, TimeUnit unit) {
+        final CancellationToken token = new CancellationToken(System.nanoTime() + unit.toNanos(timeout), true);
+        token.watchdog = TasdeeqExecutor.scheduler().schedule(new Runnable() {
+            public void run() {
+                token.cancel();
+            }
+        }, timeout, unit);
+        return token;
+    }
+
+    /**
+     * Registers a resource to close on cancellation, a token that is already cancelled closes it right away.
+     */
+    public void register(Closeable resource) {
+        resources.add(resource);
+        if (cancelled && resources.remove(resource)) {
+            closeQuietly(resource);
+        }
+    }
+
+    public void unregister(Closeable resource) {
+        resources.remove(resource);
+    }
+
+    /**
+     * Closes every registered resource, blocked reads, connects and handshakes on them fail immediately.
+     */
+    public void cancel() {
+        cancelled = true;
+        for (Closeable resource : resources) {
+            if (resources.remove(resource)) {
+                closeQuietly(resource);
+            }
+        }
+        release();
+    }
+
+    /**
+     * Stops the deadline watchdog, registered resources stay with their owner.
+     */
+    public void release() {
+        ScheduledFuture<?> scheduled = watchdog;
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return true if the token has a deadline and it has passed
+     */
+    public boolean isExpired() {
+        return hasDeadline && System.nanoTime() - deadlineNanos >= 0;
+    }
+
+    /**
+     * @return milliseconds left until the deadline, {@link Long#MAX_VALUE} without one
+     */
+    public long remainingMillis() {
+        if (!hasDeadline) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0L, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+    }
+
+    private static void closeQuietly(Closeable resource) {
+        try {
+            resource.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.neuwton.tasdeeq.concurrent;
+
+import java.io.Closeable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * In-flight registry coalescing concurrent calls for the same key: the first caller runs the work on its own thread,
+ * callers arriving while it runs join it, and all of them get the very same result, or the same exception. The key
+ * is forgotten as soon as the work completes, nothing is cached.
+ * <p>
+ * A caller that joined only waits within its own {@link CancellationToken}: once its deadline passes or it is
+ * cancelled, that caller gives up its own wait and nobody else's. The work runs under a token of its own, which is
+ * cancelled only when every caller has given up, so the resources it registered are closed as soon as nobody wants
+ * the result any more. The caller running the work gives up the same way, but as its thread is the one doing the
+ * work it only returns, with a {@link CancellationException}, once the work ends for the others too.
+ *
+ * @param <K> key identifying identical work
+ * @param <V> result type
+ */
+public final class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, Flight<V>> inFlight = new ConcurrentHashMap<K, Flight<V>>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Work that may throw a checked exception of type {@code E}.
+     */
+    public interface Work<V, E extends Exception> {
+        /**
+         * @param token cancelled once every caller waiting for the work has given up
+         */
+        V run(CancellationToken token) throws E;
+    }
+
+    /**
+     * Runs the work on the calling thread, or joins the identical work already in flight and waits for it within the
+     * caller's token.
+     *
+     * @param caller the caller's token, null to wait for as long as the work takes
+     * @throws E                     as thrown by the work, to every caller sharing it
+     * @throws CancellationException if the caller's token is cancelled or expires, or the thread is interrupted,
+     *                               before the work completes; the work goes on for the other callers
+     */
+    public <E extends Exception> V execute(K key, CancellationToken caller, Work<V, E> work) throws E {
+        while (true) {
+            Flight<V> flight = inFlight.get(key);
+            boolean started = false;
+            if (flight == null) {
+                Flight<V> fresh = new Flight<V>();
+                flight = inFlight.putIfAbsent(key, fresh);
+                if (flight == null) {
+                    flight = fresh;
+                    started = true;
+                }
+            }
+            if (!flight.join()) {
+                // every caller of that one gave up and it is being cancelled, start over
+                inFlight.remove(key, flight);
+                continue;
+            }
+            if (started) {
+                return lead(key, flight, caller, work);
+            }
+            coalesced.incrementAndGet();
+            return await(key, flight, caller);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <E extends Exception> V lead(K key, Flight<V> flight, CancellationToken caller, Work<V, E> work) throws E {
+        Waiter waiter = new Waiter(key, flight);
+        if (caller != null) {
+            caller.register(waiter);
+        }
+        try {
+            try {
+                flight.result.complete(work.run(flight.token));
+            } catch (Exception | Error e) {
+                flight.result.completeExceptionally(e);
+            } finally {
+                inFlight.remove(key, flight);
+                flight.token.release();
+                if (caller != null) {
+                    caller.unregister(waiter);
+                }
+            }
+            if (!waiter.leave()) {
+                throw cancelled("Gave up waiting for " + key, null);
+            }
+            try {
+                return flight.result.getNow(null);
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                // the work only throws E or unchecked exceptions
+                throw (E) cause;
+            }
+        } finally {
+            waiter.leave();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <E extends Exception> V await(K key, Flight<V> flight, CancellationToken caller) throws E {
+        // a view of the shared result for this caller alone, its token cancels the view, never the result
+        final CompletableFuture<V> mine = new CompletableFuture<V>();
+        flight.result.whenComplete(new BiConsumer<V, Throwable>() {
+            public void accept(V value, Throwable failure) {
+                if (failure != null) {
+                    mine.completeExceptionally(failure);
+                } else {
+                    mine.complete(value);
+                }
+            }
+        });
+        Closeable giveUp = new Closeable() {
+            public void close() {
+                mine.cancel(false);
+            }
+        };
+        if (caller != null) {
+            caller.register(giveUp);
+        }
+        try {
+            long remaining = caller != null ? caller.remainingMillis() : Long.MAX_VALUE;
+            return remaining == Long.MAX_VALUE ? mine.get() : mine.get(remaining, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw cancelled("Interrupted while waiting for " + key, e);
+        } catch (TimeoutException e) {
+            throw cancelled("Deadline passed while waiting for " + key, e);
+        } catch (CancellationException e) {
+            throw cancelled("Gave up waiting for " + key, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            // the work only throws E or unchecked exceptions
+            throw (E) cause;
+        } finally {
+            if (caller != null) {
+                caller.unregister(giveUp);
+            }
+            if (flight.leave()) {
+                inFlight.remove(key, flight);
+            }
+        }
+    }
+
+    private static CancellationException cancelled(String message, Throwable cause) {
+        CancellationException cancelled = new CancellationException(message);
+        cancelled.initCause(cause);
+        return cancelled;
+    }
+
+    /**
+     * @return number of calls that joined work already in flight instead of running their own
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public int inFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * The caller running the work, closed by its token to give up while the work goes on on its thread.
+     */
+    private final class Waiter implements Closeable {
+
+        private final K key;
+        private final Flight<V> flight;
+        private final AtomicBoolean left = new AtomicBoolean();
+
+        Waiter(K key, Flight<V> flight) {
+            this.key = key;
+            this.flight = flight;
+        }
+
+        public void close() {
+            leave();
+        }
+
+        /**
+         * @return false if the caller had already left
+         */
+        boolean leave() {
+            if (!left.compareAndSet(false, true)) {
+                return false;
+            }
+            if (flight.leave()) {
+                inFlight.remove(key, flight);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * One run of the work and the callers waiting for it.
+     */
+    private static final class Flight<V> {
+
+        private final CompletableFuture<V> result = new CompletableFuture<V>();
+        private final CancellationToken token = CancellationToken.create();
+        // guarded by this
+        private int waiters;
+        private boolean abandoned;
+
+        synchronized boolean join() {
+            if (abandoned) {
+                return false;
+            }
+            waiters++;
+            return true;
+        }
+
+        /**
+         * @return true if this was the last caller and the work, still running, was cancelled
+         */
+        boolean leave() {
+            synchronized (this) {
+                waiters--;
+                if (waiters > 0 || result.isDone()) {
+                    return false;
+                }
+                abandoned = true;
+            }
+            token.cancel();
+            return true;
+        }
+    }
+}
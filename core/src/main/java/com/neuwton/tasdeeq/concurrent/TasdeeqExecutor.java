@@ -0,0 +1,448 @@
+package com.neuwton.tasdeeq.concurrent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Long-lived executor support for the batch probes of {@code DownstreamCertTasdeeq} and {@code DNSTasdeeq}.
+ * <p>
+ * The shared pool is created lazily on first use and never shut down: its threads are named daemon threads
+ * that time out when idle, so a batch call pays neither thread creation nor a shutdown stall. Callers that manage
+ * their own threads (e.g. a Spring {@code TaskExecutor}) can pass any {@link Executor} instead.
+ * <p>
+ * On Java 21+ the multi-release jar adds a virtual-thread mode, enabled through
+ * {@link #setVirtualThreadsEnabled(boolean)} or the {@value #VIRTUAL_THREADS_PROPERTY} system property, where
+ * every probe runs on its own virtual thread. On older runtimes that mode falls back to the shared pool.
+ */
+public final class TasdeeqExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(TasdeeqExecutor.class);
+
+    public static final int DEFAULT_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final String DEFAULT_THREAD_NAME_PREFIX = "tasdeeq-probe-";
+    public static final int DEFAULT_LOOKUP_POOL_SIZE = DEFAULT_POOL_SIZE * 4;
+    public static final String LOOKUP_THREAD_NAME_PREFIX = "tasdeeq-dns-";
+    public static final String VIRTUAL_THREADS_PROPERTY = "tasdeeq.virtual-threads.enabled";
+
+    private static final long MAX_RESUBMIT_PAUSE_MILLIS = 50;
+
+    private static volatile ExecutorService sharedPool;
+    private static volatile ExecutorService lookupPool;
+    private static volatile ScheduledExecutorService scheduler;
+    private static volatile ForkJoinPool validationPool;
+    private static volatile Executor virtualThreadExecutor;
+    private static volatile boolean virtualThreadsEnabled = Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY);
+    private static final AtomicBoolean virtualThreadFallbackLogged = new AtomicBoolean();
+
+    private TasdeeqExecutor() {
+    }
+
+    /**
+     * @return the executor used by the batch APIs when none is supplied: one virtual thread per probe when
+     * virtual threads are enabled and supported, the shared probe pool otherwise
+     */
+    public static Executor defaultExecutor() {
+        return virtualThreadsEnabled && isVirtualThreadSupported() ? virtualThreadExecutor() : sharedPool();
+    }
+
+    /**
+     * @return the shared probe pool, created on first use
+     */
+    public static ExecutorService sharedPool() {
+        ExecutorService executor = sharedPool;
+        if (executor == null) {
+            synchronized (TasdeeqExecutor.class) {
+                executor = sharedPool;
+                if (executor == null) {
+                    executor = newProbeExecutor(DEFAULT_POOL_SIZE, DEFAULT_QUEUE_CAPACITY, DEFAULT_THREAD_NAME_PREFIX);
+                    sharedPool = executor;
+                    logger.info("Created shared tasdeeq probe executor with {} threads and queue capacity {}",
+                            DEFAULT_POOL_SIZE, DEFAULT_QUEUE_CAPACITY);
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * @return the executor for the per record type DNS queries a single domain fans out into: one virtual thread per
+     * query when virtual threads are enabled and supported, the lookup pool otherwise
+     */
+    public static Executor lookupExecutor() {
+        return virtualThreadsEnabled && isVirtualThreadSupported() ? virtualThreadExecutor() : lookupPool();
+    }
+
+    /**
+     * @return the pool for DNS record type queries, created on first use; kept apart from the probe pool, whose
+     * threads block waiting on these queries, so a busy batch can never starve its own lookups
+     */
+    public static ExecutorService lookupPool() {
+        ExecutorService executor = lookupPool;
+        if (executor == null) {
+            synchronized (TasdeeqExecutor.class) {
+                executor = lookupPool;
+                if (executor == null) {
+                    executor = newProbeExecutor(DEFAULT_LOOKUP_POOL_SIZE, DEFAULT_QUEUE_CAPACITY,
+                            LOOKUP_THREAD_NAME_PREFIX);
+                    lookupPool = executor;
+                    logger.info("Created tasdeeq DNS lookup executor with {} threads and queue capacity {}",
+                            DEFAULT_LOOKUP_POOL_SIZE, DEFAULT_QUEUE_CAPACITY);
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * @return the single-threaded scheduler running probe deadlines, created on first use
+     */
+    public static ScheduledExecutorService scheduler() {
+        ScheduledExecutorService executor = scheduler;
+        if (executor == null) {
+            synchronized (TasdeeqExecutor.class) {
+                executor = scheduler;
+                if (executor == null) {
+                    ScheduledThreadPoolExecutor deadlines = new ScheduledThreadPoolExecutor(1,
+                            new NamedDaemonThreadFactory("tasdeeq-deadline-"));
+                    // most deadlines are released long before they fire, don't keep them queued
+                    deadlines.setRemoveOnCancelPolicy(true);
+                    executor = deadlines;
+                    scheduler = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * @return the fork-join pool for CPU bound batch work such as certificate path validation, one worker per
+     * processor, created on first use; kept apart from the probe pool so validation never waits behind network I/O
+     */
+    public static ForkJoinPool validationPool() {
+        ForkJoinPool pool = validationPool;
+        if (pool == null) {
+            synchronized (TasdeeqExecutor.class) {
+                pool = validationPool;
+                if (pool == null) {
+                    final AtomicInteger counter = new AtomicInteger(1);
+                    pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                            new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                                public ForkJoinWorkerThread newThread(ForkJoinPool owner) {
+                                    ForkJoinWorkerThread thread =
+                                            ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(owner);
+                                    thread.setName("tasdeeq-validate-" + counter.getAndIncrement());
+                                    thread.setDaemon(true);
+                                    return thread;
+                                }
+                            }, null, false);
+                    validationPool = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * @return an executor starting a new virtual thread per task, or the shared pool below Java 21
+     */
+    public static Executor virtualThreadExecutor() {
+        if (!isVirtualThreadSupported()) {
+            if (virtualThreadsEnabled) {
+                logVirtualThreadFallback();
+            } else {
+                logger.debug("Virtual threads are not supported on Java {}, using the shared probe pool",
+                        System.getProperty("java.specification.version"));
+            }
+            return sharedPool();
+        }
+        Executor executor = virtualThreadExecutor;
+        if (executor == null) {
+            synchronized (TasdeeqExecutor.class) {
+                executor = virtualThreadExecutor;
+                if (executor == null) {
+                    executor = VirtualThreads.newPerTaskExecutor(DEFAULT_THREAD_NAME_PREFIX);
+                    virtualThreadExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        return VirtualThreads.isSupported();
+    }
+
+    public static boolean isVirtualThreadsEnabled() {
+        return virtualThreadsEnabled;
+    }
+
+    public static void setVirtualThreadsEnabled(boolean enabled) {
+        virtualThreadsEnabled = enabled;
+        if (enabled && !isVirtualThreadSupported()) {
+            logVirtualThreadFallback();
+        }
+    }
+
+    /**
+     * Warns, once, that virtual threads were asked for but the probes run on the shared pool. On Java 21+ that
+     * means the jar was built without its {@code META-INF/versions/21} layer, see the {@code release} profile.
+     */
+    private static void logVirtualThreadFallback() {
+        if (!virtualThreadFallbackLogged.compareAndSet(false, true)) {
+            return;
+        }
+        String version = System.getProperty("java.specification.version");
+        if (featureVersion(version) >= 21) {
+            logger.warn("Virtual threads requested on Java {} but this tasdeeq jar lacks its Java 21 layer "
+                    + "(META-INF/versions/21), batch probes stay on the shared pool", version);
+        } else {
+            logger.warn("Virtual threads requested but not supported on Java {}, batch probes stay on the shared pool",
+                    version);
+        }
+    }
+
+    private static int featureVersion(String specificationVersion) {
+        if (specificationVersion == null) {
+            return 0;
+        }
+        String version = specificationVersion.startsWith("1.") ? specificationVersion.substring(2)
+                : specificationVersion;
+        int dot = version.indexOf('.');
+        try {
+            return Integer.parseInt(dot < 0 ? version : version.substring(0, dot));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Creates a fixed size pool with a bounded queue and named daemon threads. Once the queue is full further
+     * probes are rejected, never run on the submitting thread: {@link #invokeAll} then waits for room within the
+     * batch timeout and {@link #forEachCompleted} holds the producer back, so a full queue can neither make a batch
+     * overrun its timeout nor put a caller's thread (an actuator endpoint, a scheduler) to work on handshakes.
+     */
+    public static ThreadPoolExecutor newProbeExecutor(int poolSize, int queueCapacity, String threadNamePrefix) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize,
+                60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueCapacity),
+                new NamedDaemonThreadFactory(threadNamePrefix),
+                new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Same contract as {@link ExecutorService#invokeAll(Collection, long, TimeUnit)}, but for any {@link Executor}.
+     * The returned futures are in task order, tasks still running when the timeout elapses are cancelled. The
+     * executor itself is left running.
+     * <p>
+     * A task the executor rejects is submitted again, with a growing pause, until the timeout elapses; it then times
+     * out with the rest of the batch. A task rejected by an executor that was shut down fails with the
+     * {@link RejectedExecutionException}. Tasks never run on the calling thread.
+     */
+    public static <T> List<Future<T>> invokeAll(Executor executor, Collection<? extends Callable<T>> tasks,
+                                                long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        boolean done = false;
+        try {
+            for (Callable<T> task : tasks) {
+                futures.add(new BatchTask<T>(task));
+            }
+            for (Future<T> future : futures) {
+                BatchTask<T> task = (BatchTask<T>) future;
+                try {
+                    if (!submit(executor, task, deadline, true)) {
+                        // no room before the timeout, this task and the ones not submitted yet time out
+                        return futures;
+                    }
+                } catch (RejectedExecutionException e) {
+                    task.fail(e);
+                }
+            }
+            for (Future<T> future : futures) {
+                if (!future.isDone()) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0L) {
+                        return futures;
+                    }
+                    try {
+                        future.get(remaining, TimeUnit.NANOSECONDS);
+                    } catch (CancellationException | ExecutionException ignored) {
+                    } catch (TimeoutException e) {
+                        return futures;
+                    }
+                }
+            }
+            done = true;
+            return futures;
+        } finally {
+            if (!done) {
+                for (Future<T> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Submits the task, pausing and trying again for as long as the executor rejects it for lack of room.
+     *
+     * @param bounded whether to give up at the deadline
+     * @return false if the executor kept rejecting the task until the deadline
+     * @throws RejectedExecutionException if the executor was shut down
+     */
+    private static boolean submit(Executor executor, Runnable task, long deadline, boolean bounded)
+            throws InterruptedException {
+        long pauseMillis = 1;
+        while (true) {
+            try {
+                executor.execute(task);
+                return true;
+            } catch (RejectedExecutionException e) {
+                if (executor instanceof ExecutorService && ((ExecutorService) executor).isShutdown()) {
+                    throw e;
+                }
+                long remainingMillis = bounded
+                        ? TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()) : Long.MAX_VALUE;
+                if (remainingMillis <= 0) {
+                    logger.warn("Executor kept rejecting probes until the batch timed out");
+                    return false;
+                }
+                logger.debug("Probe rejected by executor, retrying in {} ms", pauseMillis);
+                Thread.sleep(Math.min(pauseMillis, remainingMillis));
+                pauseMillis = Math.min(pauseMillis * 2, MAX_RESUBMIT_PAUSE_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Streams targets through the probe with at most {@code maxInFlight} probes running, handing each result to the
+     * sink as soon as it completes. Targets are pulled from the iterator only when a slot frees up, so memory stays
+     * constant however many targets there are. Sink calls are serialized, the sink does not need to be thread-safe.
+     * Blocks until every probe has completed. An interrupt stops pulling targets, waits for the probes in flight and
+     * returns with the interrupt flag set.
+     *
+     * @param onFailure turns a probe that threw into a result
+     * @return the number of results delivered
+     * @throws RuntimeException           the first exception thrown by the sink, no further targets are probed after it
+     * @throws RejectedExecutionException if the executor was shut down
+     */
+    public static <T, R> long forEachCompleted(Iterator<? extends T> targets, int maxInFlight, Executor executor,
+                                               final Function<? super T, ? extends R> probe,
+                                               final BiFunction<? super T, ? super RuntimeException, ? extends R> onFailure,
+                                               final Consumer<? super R> sink) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        final Semaphore slots = new Semaphore(maxInFlight);
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicReference<RuntimeException> sinkFailure = new AtomicReference<RuntimeException>();
+        final Object sinkLock = new Object();
+
+        try {
+            while (sinkFailure.get() == null) {
+                // take the slot first, iterators backed by a stream already pull the next target in hasNext()
+                try {
+                    slots.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    logger.warn("Interrupted, no further targets are probed");
+                    break;
+                }
+                if (!targets.hasNext()) {
+                    slots.release();
+                    break;
+                }
+                final T target = targets.next();
+                Runnable task = new Runnable() {
+                    public void run() {
+                        try {
+                            R result;
+                            try {
+                                result = probe.apply(target);
+                            } catch (RuntimeException e) {
+                                result = onFailure.apply(target, e);
+                            }
+                            synchronized (sinkLock) {
+                                if (sinkFailure.get() == null) {
+                                    sink.accept(result);
+                                    delivered.incrementAndGet();
+                                }
+                            }
+                        } catch (RuntimeException e) {
+                            sinkFailure.compareAndSet(null, e);
+                        } finally {
+                            slots.release();
+                        }
+                    }
+                };
+                try {
+                    // a full executor holds the producer back, the probe never runs on this thread
+                    submit(executor, task, 0L, false);
+                } catch (InterruptedException e) {
+                    slots.release();
+                    Thread.currentThread().interrupt();
+                    logger.warn("Interrupted, no further targets are probed");
+                    break;
+                } catch (RejectedExecutionException e) {
+                    slots.release();
+                    throw e;
+                }
+            }
+        } finally {
+            // wait for the probes still in flight, they own their slots until they finish
+            slots.acquireUninterruptibly(maxInFlight);
+        }
+
+        RuntimeException failure = sinkFailure.get();
+        if (failure != null) {
+            throw failure;
+        }
+        return delivered.get();
+    }
+
+    /**
+     * A batch task that can also be failed without running, when no executor will take it.
+     */
+    private static final class BatchTask<T> extends FutureTask<T> {
+
+        BatchTask(Callable<T> callable) {
+            super(callable);
+        }
+
+        void fail(Throwable e) {
+            setException(e);
+        }
+    }
+
+    static final class NamedDaemonThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger counter = new AtomicInteger(1);
+        private final String prefix;
+
+        NamedDaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.neuwton.tasdeeq.concurrent;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Java 8 placeholder, virtual threads are not available on this runtime. The Java 21+ variant lives in
+ * {@code src/main/java21} and is packaged under {@code META-INF/versions/21} of the multi-release jar.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    static boolean isSupported() {
+        return false;
+    }
+
+    static Executor newPerTaskExecutor(String threadNamePrefix) {
+        throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+    }
+}
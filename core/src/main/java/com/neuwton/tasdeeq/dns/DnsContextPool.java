@@ -0,0 +1,209 @@
+package com.neuwton.tasdeeq.dns;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of JNDI DNS contexts, one pool per resolver configuration (the JNDI environment). Creating an
+ * {@link InitialDirContext} looks up the context factory, parses the provider URL and builds a resolver client, which
+ * for a batch of thousands of domains costs more than the queries themselves. A context is not safe for concurrent
+ * use, so it is borrowed by one query at a time and handed back afterwards.
+ * <p>
+ * A context is only pooled again while healthy: the borrower reports whether its queries reached the resolver, a
+ * context that timed out or could not reach it is closed instead. Contexts idle for longer than the idle timeout, and
+ * contexts older than {@value #MAX_AGE_MINUTES} minutes, are closed on the next borrow or release of their pool, so
+ * a changed system resolver configuration is picked up. At most {@value #MAX_IDLE_PER_RESOLVER} contexts per
+ * resolver are kept idle.
+ */
+public final class DnsContextPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(DnsContextPool.class);
+
+    public static final int MAX_IDLE_PER_RESOLVER = 64;
+    public static final long DEFAULT_IDLE_TIMEOUT_SECONDS = 60;
+    public static final long MAX_AGE_MINUTES = 10;
+
+    private static final ConcurrentMap<String, Deque<Lease>> IDLE = new ConcurrentHashMap<String, Deque<Lease>>();
+    private static final AtomicLong created = new AtomicLong();
+    private static final AtomicLong reused = new AtomicLong();
+    private static final AtomicLong discarded = new AtomicLong();
+    private static volatile long idleTimeoutMillis = TimeUnit.SECONDS.toMillis(DEFAULT_IDLE_TIMEOUT_SECONDS);
+
+    private DnsContextPool() {
+    }
+
+    /**
+     * @return an idle context of the resolver, or a new one; {@link Lease#release(boolean)} hands it back
+     */
+    public static Lease borrow(Hashtable<String, ?> environment) throws NamingException {
+        String key = key(environment);
+        Deque<Lease> idle = idle(key);
+        long now = System.currentTimeMillis();
+        while (true) {
+            Lease lease;
+            synchronized (idle) {
+                evictExpired(idle, now);
+                lease = idle.pollFirst();
+            }
+            if (lease == null) {
+                break;
+            }
+            if (now - lease.createdAt < TimeUnit.MINUTES.toMillis(MAX_AGE_MINUTES)) {
+                reused.incrementAndGet();
+                return lease;
+            }
+            discard(lease);
+        }
+        created.incrementAndGet();
+        return new Lease(key, new InitialDirContext(environment), now);
+    }
+
+    private static void release(Lease lease, boolean healthy) {
+        long now = System.currentTimeMillis();
+        if (healthy && now - lease.createdAt < TimeUnit.MINUTES.toMillis(MAX_AGE_MINUTES)) {
+            Deque<Lease> idle = idle(lease.key);
+            synchronized (idle) {
+                evictExpired(idle, now);
+                if (idle.size() < MAX_IDLE_PER_RESOLVER) {
+                    // most recently used first, so the oldest are the ones left to time out
+                    lease.releasedAt = now;
+                    idle.addFirst(lease);
+                    return;
+                }
+            }
+        }
+        discard(lease);
+    }
+
+    public static void setIdleTimeout(long timeout, TimeUnit unit) {
+        idleTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    public static long getCreatedCount() {
+        return created.get();
+    }
+
+    public static long getReusedCount() {
+        return reused.get();
+    }
+
+    public static long getDiscardedCount() {
+        return discarded.get();
+    }
+
+    /**
+     * @return the idle contexts over all resolvers
+     */
+    public static int idleCount() {
+        int count = 0;
+        for (Deque<Lease> idle : IDLE.values()) {
+            synchronized (idle) {
+                count += idle.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Closes every idle context, contexts borrowed right now are closed when they come back.
+     */
+    public static void clear() {
+        for (Deque<Lease> idle : IDLE.values()) {
+            List<Lease> closing;
+            synchronized (idle) {
+                closing = new ArrayList<Lease>(idle);
+                idle.clear();
+            }
+            for (Lease lease : closing) {
+                discard(lease);
+            }
+        }
+    }
+
+    /**
+     * Closes the contexts at the idle end of the pool that timed out or aged out, caller holds the pool's lock.
+     */
+    private static void evictExpired(Deque<Lease> idle, long now) {
+        long maxAge = TimeUnit.MINUTES.toMillis(MAX_AGE_MINUTES);
+        Iterator<Lease> oldestFirst = idle.descendingIterator();
+        while (oldestFirst.hasNext()) {
+            Lease lease = oldestFirst.next();
+            if (now - lease.releasedAt > idleTimeoutMillis || now - lease.createdAt >= maxAge) {
+                oldestFirst.remove();
+                discard(lease);
+            } else {
+                // the rest were released later still; an aged out one among them goes when borrowed
+                break;
+            }
+        }
+    }
+
+    private static void discard(Lease lease) {
+        discarded.incrementAndGet();
+        try {
+            lease.context.close();
+        } catch (NamingException e) {
+            logger.debug("Error closing DNS context: {}", e.getMessage());
+        }
+    }
+
+    private static Deque<Lease> idle(String key) {
+        Deque<Lease> idle = IDLE.get(key);
+        if (idle == null) {
+            Deque<Lease> fresh = new ArrayDeque<Lease>();
+            idle = IDLE.putIfAbsent(key, fresh);
+            if (idle == null) {
+                idle = fresh;
+                logger.info("Created DNS context pool for {}", key);
+            }
+        }
+        return idle;
+    }
+
+    /**
+     * The environment in a stable order, the same resolver configuration always maps to the same pool.
+     */
+    private static String key(Hashtable<String, ?> environment) {
+        return new TreeMap<String, Object>(environment).toString();
+    }
+
+    /**
+     * A context borrowed from the pool, for one borrower at a time.
+     */
+    public static final class Lease {
+
+        private final String key;
+        private final DirContext context;
+        private final long createdAt;
+        // guarded by the lock of the pool it idles in
+        private long releasedAt;
+
+        Lease(String key, DirContext context, long createdAt) {
+            this.key = key;
+            this.context = context;
+            this.createdAt = createdAt;
+        }
+
+        public DirContext getContext() {
+            return context;
+        }
+
+        /**
+         * Hands the context back, do not use it afterwards.
+         *
+         * @param healthy false if a query on the context could not reach the resolver, the context is closed then
+         */
+        public void release(boolean healthy) {
+            DnsContextPool.release(this, healthy);
+        }
+    }
+}
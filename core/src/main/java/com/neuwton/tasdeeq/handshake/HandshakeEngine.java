@@ -0,0 +1,24 @@
+package com.neuwton.tasdeeq.handshake;
+
+import javax.net.ssl.SSLContext;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Strategy for connecting to a downstream and completing a TLS handshake, used by the batch APIs of
+ * {@code DownstreamCertTasdeeq}.
+ *
+ * @see SocketHandshakeEngine blocking {@code SSLSocket} per probe, one thread held per handshake
+ * @see NioHandshakeEngine {@code SSLEngine} driven by a few selector threads, for very large scans
+ */
+public interface HandshakeEngine {
+
+    /**
+     * Connects to {@code host:port} and performs a TLS handshake with the given context. Trust decisions are
+     * made by the context's trust managers, a rejected chain fails the future with an {@code SSLException}.
+     *
+     * @return a future completing with the X509 certificates presented by the peer, in the order they were sent
+     */
+    CompletableFuture<List<X509Certificate>> handshake(SSLContext sslContext, String host, int port);
+}
@@ -0,0 +1,161 @@
+package com.neuwton.tasdeeq.handshake;
+
+import com.neuwton.tasdeeq.concurrent.CancellationToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.*;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dual-stack connection racing after RFC 8305 ("Happy Eyeballs v2"). All addresses of the host are resolved and
+ * interleaved by family, IPv6 first; a new attempt starts every {@value #CONNECTION_ATTEMPT_DELAY_MILLIS} ms, or
+ * right away when the previous one fails, and the first connected socket wins. A broken IPv6 path then costs a
+ * quarter of a second instead of a full connect timeout.
+ * <p>
+ * All attempts are non-blocking channels on one selector polled by the calling thread, no extra threads needed.
+ */
+final class HappyEyeballs {
+
+    private static final Logger logger = LoggerFactory.getLogger(HappyEyeballs.class);
+
+    static final long CONNECTION_ATTEMPT_DELAY_MILLIS = 250;
+
+    private HappyEyeballs() {
+    }
+
+    /**
+     * @param resolved addresses of the host, in the resolver's order
+     * @return a connected channel, in blocking mode
+     */
+    static SocketChannel connect(String host, InetAddress[] resolved, int port, int connectTimeoutMillis,
+                                 CancellationToken token) throws IOException {
+        List<InetAddress> addresses = interleave(resolved);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectTimeoutMillis);
+        long attemptDelay = TimeUnit.MILLISECONDS.toNanos(CONNECTION_ATTEMPT_DELAY_MILLIS);
+
+        Selector selector = Selector.open();
+        // closing the selector wakes up the select below, that is how a cancelled token aborts the race
+        token.register(selector);
+        List<SocketChannel> attempts = new ArrayList<SocketChannel>();
+        SocketChannel winner = null;
+        IOException lastFailure = null;
+        try {
+            int next = 0;
+            int pending = 0;
+            long nextAttemptAt = System.nanoTime();
+            while (winner == null) {
+                long now = System.nanoTime();
+                if (next < addresses.size() && (pending == 0 || now - nextAttemptAt >= 0)) {
+                    InetSocketAddress address = new InetSocketAddress(addresses.get(next++), port);
+                    nextAttemptAt = now + attemptDelay;
+                    SocketChannel channel = SocketChannel.open();
+                    attempts.add(channel);
+                    try {
+                        channel.configureBlocking(false);
+                        if (channel.connect(address)) {
+                            winner = channel;
+                            break;
+                        }
+                        channel.register(selector, SelectionKey.OP_CONNECT, address);
+                        pending++;
+                        logger.debug("Connecting to {} ({})", address, host);
+                    } catch (IOException e) {
+                        // e.g. no route for this family at all, move on to the next address immediately
+                        logger.debug("Connect to {} failed: {}", address, e.getMessage());
+                        lastFailure = e;
+                        closeQuietly(channel);
+                    }
+                    continue;
+                }
+                if (pending == 0) {
+                    throw lastFailure != null ? lastFailure : new ConnectException("No address to connect to for " + host);
+                }
+                if (now - deadline >= 0) {
+                    throw new SocketTimeoutException("Connect to " + host + ":" + port + " timed out");
+                }
+                long waitUntil = next < addresses.size() && nextAttemptAt - deadline < 0 ? nextAttemptAt : deadline;
+                selector.select(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(waitUntil - now)));
+                if (token.isCancelled()) {
+                    throw new SocketException("Connect to " + host + ":" + port + " was cancelled");
+                }
+
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext() && winner == null) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    try {
+                        if (channel.finishConnect()) {
+                            winner = channel;
+                        }
+                    } catch (IOException e) {
+                        logger.debug("Connect to {} failed: {}", key.attachment(), e.getMessage());
+                        lastFailure = e;
+                        key.cancel();
+                        closeQuietly(channel);
+                        pending--;
+                        // don't wait out the attempt delay once an attempt has failed
+                        nextAttemptAt = System.nanoTime();
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            throw new SocketException("Connect to " + host + ":" + port + " was cancelled");
+        } finally {
+            token.unregister(selector);
+            // deregisters the winner too, it can only go back to blocking mode afterwards
+            closeQuietly(selector);
+            for (SocketChannel attempt : attempts) {
+                if (attempt != winner) {
+                    closeQuietly(attempt);
+                }
+            }
+        }
+
+        winner.configureBlocking(true);
+        logger.debug("Connected to {} for {}:{}", winner.getRemoteAddress(), host, port);
+        return winner;
+    }
+
+    /**
+     * Alternates address families, IPv6 first, keeping the resolver's order within each family (RFC 8305 §4).
+     */
+    static List<InetAddress> interleave(InetAddress[] resolved) {
+        List<InetAddress> v6 = new ArrayList<InetAddress>();
+        List<InetAddress> v4 = new ArrayList<InetAddress>();
+        for (InetAddress address : resolved) {
+            if (address instanceof Inet6Address) {
+                v6.add(address);
+            } else {
+                v4.add(address);
+            }
+        }
+        List<InetAddress> ordered = new ArrayList<InetAddress>(resolved.length);
+        for (int i = 0; i < Math.max(v6.size(), v4.size()); i++) {
+            if (i < v6.size()) {
+                ordered.add(v6.get(i));
+            }
+            if (i < v4.size()) {
+                ordered.add(v4.get(i));
+            }
+        }
+        return ordered;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
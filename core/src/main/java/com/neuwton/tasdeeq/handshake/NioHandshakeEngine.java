@@ -0,0 +1,443 @@
+package com.neuwton.tasdeeq.handshake;
+
+import com.neuwton.tasdeeq.concurrent.TasdeeqExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.cert.X509Certificate;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking engine: every handshake is an {@link SSLEngine} over a non-blocking {@link SocketChannel}, and a
+ * handful of selector threads drive thousands of them concurrently. Host names are resolved on the given resolver
+ * executor and the engine's delegated tasks (certificate validation, key exchange) run on the task executor, so
+ * neither a slow lookup nor a slow validation ever stalls an event loop.
+ * <p>
+ * Instances own their threads, {@link #close()} them once the scan is over.
+ */
+public class NioHandshakeEngine implements HandshakeEngine, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(NioHandshakeEngine.class);
+
+    public static final long DEFAULT_HANDSHAKE_TIMEOUT_MILLIS = 30000;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final long SELECT_TICK_MILLIS = 100;
+
+    private final EventLoop[] eventLoops;
+    private final AtomicInteger next = new AtomicInteger();
+    private final long handshakeTimeoutNanos;
+    private final Executor resolverExecutor;
+    private final Executor taskExecutor;
+
+    public NioHandshakeEngine() throws IOException {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_HANDSHAKE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public NioHandshakeEngine(int eventLoopCount, long handshakeTimeout, TimeUnit unit) throws IOException {
+        this(eventLoopCount, handshakeTimeout, unit, TasdeeqExecutor.defaultExecutor());
+    }
+
+    /**
+     * @param eventLoopCount   number of selector threads
+     * @param handshakeTimeout time allowed for connect plus handshake of a single target
+     * @param resolverExecutor executor used for host name resolution
+     */
+    public NioHandshakeEngine(int eventLoopCount, long handshakeTimeout, TimeUnit unit, Executor resolverExecutor) throws IOException {
+        this(eventLoopCount, handshakeTimeout, unit, resolverExecutor, TasdeeqExecutor.validationPool());
+    }
+
+    /**
+     * @param eventLoopCount   number of selector threads
+     * @param handshakeTimeout time allowed for connect plus handshake of a single target
+     * @param resolverExecutor executor used for host name resolution
+     * @param taskExecutor     executor running the {@link SSLEngine#getDelegatedTask() delegated tasks}
+     */
+    public NioHandshakeEngine(int eventLoopCount, long handshakeTimeout, TimeUnit unit, Executor resolverExecutor,
+                              Executor taskExecutor) throws IOException {
+        if (eventLoopCount < 1) {
+            throw new IllegalArgumentException("eventLoopCount must be at least 1");
+        }
+        this.handshakeTimeoutNanos = unit.toNanos(handshakeTimeout);
+        this.resolverExecutor = resolverExecutor;
+        this.taskExecutor = taskExecutor;
+        this.eventLoops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop(Selector.open(), "tasdeeq-nio-" + (i + 1));
+        }
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.thread.start();
+        }
+        logger.info("Started NIO handshake engine with {} event loop(s)", eventLoopCount);
+    }
+
+    @Override
+    public CompletableFuture<List<X509Certificate>> handshake(final SSLContext sslContext, final String host, final int port) {
+        final CompletableFuture<List<X509Certificate>> future = new CompletableFuture<List<X509Certificate>>();
+        final long deadline = System.nanoTime() + handshakeTimeoutNanos;
+        try {
+            resolverExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(host), port);
+                        SSLEngine engine = sslContext.createSSLEngine(host, port);
+                        engine.setUseClientMode(true);
+                        EventLoop eventLoop = nextEventLoop();
+                        eventLoop.register(new Connection(engine, address, future, deadline, eventLoop, taskExecutor));
+                    } catch (Exception e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private EventLoop nextEventLoop() {
+        return eventLoops[(next.getAndIncrement() & Integer.MAX_VALUE) % eventLoops.length];
+    }
+
+    /**
+     * Stops the event loops, handshakes still in flight fail with an {@link IOException}.
+     */
+    @Override
+    public void close() {
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.close();
+        }
+    }
+
+    private static final class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Connection> pending = new ConcurrentLinkedQueue<Connection>();
+        private final Thread thread;
+        private volatile boolean closed;
+
+        EventLoop(Selector selector, String name) {
+            this.selector = selector;
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * Hands a new connection, or one whose delegated tasks are done, to the event loop thread.
+         */
+        void register(Connection connection) {
+            if (closed) {
+                connection.fail(new IOException("NIO handshake engine is closed"));
+                return;
+            }
+            pending.add(connection);
+            selector.wakeup();
+        }
+
+        void close() {
+            closed = true;
+            selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while (!closed) {
+                    selector.select(SELECT_TICK_MILLIS);
+                    registerPending();
+                    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isValid()) {
+                            connection.onReady(key);
+                        }
+                    }
+                    expireConnections();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                logger.error("NIO handshake event loop {} stopped", thread.getName(), e);
+            } finally {
+                shutdown();
+            }
+        }
+
+        private void registerPending() {
+            Connection connection;
+            while ((connection = pending.poll()) != null) {
+                if (connection.channel == null) {
+                    connection.start(selector);
+                } else {
+                    connection.resume();
+                }
+            }
+        }
+
+        private void expireConnections() {
+            long now = System.nanoTime();
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection.future.isDone()) {
+                    // cancelled by the caller
+                    connection.closeChannel();
+                } else if (now - connection.deadline >= 0) {
+                    connection.fail(new SocketTimeoutException("Handshake with " + connection.address + " timed out"));
+                }
+            }
+        }
+
+        private void shutdown() {
+            IOException closedException = new IOException("NIO handshake engine is closed");
+            Connection connection;
+            while ((connection = pending.poll()) != null) {
+                connection.fail(closedException);
+            }
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).fail(closedException);
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                logger.debug("Failed to close selector: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * State of a single handshake, only touched by its event loop thread, except while its delegated tasks run on the
+     * task executor: the event loop leaves it alone then, and gets it back through its pending queue.
+     */
+    private static final class Connection {
+
+        private final SSLEngine engine;
+        private final InetSocketAddress address;
+        private final CompletableFuture<List<X509Certificate>> future;
+        private final long deadline;
+        private final EventLoop eventLoop;
+        private final Executor taskExecutor;
+
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer netOut;
+        private ByteBuffer netIn;
+        private ByteBuffer appIn;
+
+        Connection(SSLEngine engine, InetSocketAddress address,
+                   CompletableFuture<List<X509Certificate>> future, long deadline,
+                   EventLoop eventLoop, Executor taskExecutor) {
+            this.engine = engine;
+            this.address = address;
+            this.future = future;
+            this.deadline = deadline;
+            this.eventLoop = eventLoop;
+            this.taskExecutor = taskExecutor;
+        }
+
+        void start(Selector selector) {
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                if (channel.connect(address)) {
+                    key = channel.register(selector, 0, this);
+                    beginHandshake();
+                } else {
+                    key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        void onReady(SelectionKey readyKey) {
+            try {
+                if (readyKey.isConnectable()) {
+                    if (!channel.finishConnect()) {
+                        return;
+                    }
+                    beginHandshake();
+                } else {
+                    proceed();
+                }
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Continues on the event loop thread once the delegated tasks are done.
+         */
+        void resume() {
+            if (future.isDone()) {
+                // timed out or cancelled while the tasks ran
+                closeChannel();
+                return;
+            }
+            try {
+                proceed();
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        private void beginHandshake() throws IOException {
+            netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+            engine.beginHandshake();
+            proceed();
+        }
+
+        /**
+         * Advances the handshake as far as possible without blocking, then waits for the next readiness event.
+         */
+        private void proceed() throws IOException {
+            if (!flush()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            while (true) {
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                switch (status) {
+                    case NEED_WRAP:
+                        SSLEngineResult wrapped = engine.wrap(EMPTY, netOut);
+                        if (wrapped.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                            netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                        } else if (wrapped.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            throw new SSLException("Connection closed by peer during handshake with " + address);
+                        }
+                        if (!flush()) {
+                            key.interestOps(SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        break;
+                    case NEED_TASK:
+                        // no readiness events while the tasks run elsewhere, resume() picks up from here
+                        key.interestOps(0);
+                        runDelegatedTasks();
+                        return;
+                    case FINISHED:
+                    case NOT_HANDSHAKING:
+                        complete();
+                        return;
+                    default:
+                        // NEED_UNWRAP, and NEED_UNWRAP_AGAIN on Java 9+
+                        netIn.flip();
+                        SSLEngineResult unwrapped = engine.unwrap(netIn, appIn);
+                        netIn.compact();
+                        if (unwrapped.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                            // application data is of no interest, only make room for it
+                            appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                            appIn.clear();
+                        } else if (unwrapped.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                            if (netIn.remaining() == 0) {
+                                netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                            }
+                            int read = channel.read(netIn);
+                            if (read < 0) {
+                                throw new EOFException("Connection closed by " + address + " during handshake");
+                            }
+                            if (read == 0) {
+                                key.interestOps(SelectionKey.OP_READ);
+                                return;
+                            }
+                        } else if (unwrapped.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            throw new SSLException("Connection closed by peer during handshake with " + address);
+                        }
+                        break;
+                }
+            }
+        }
+
+        private void runDelegatedTasks() {
+            Runnable tasks = new Runnable() {
+                public void run() {
+                    try {
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null) {
+                            task.run();
+                        }
+                    } catch (RuntimeException e) {
+                        // the engine reports it from the next wrap or unwrap
+                        logger.debug("Delegated task failed for {}: {}", address, e.getMessage());
+                    }
+                    eventLoop.register(Connection.this);
+                }
+            };
+            try {
+                taskExecutor.execute(tasks);
+            } catch (RejectedExecutionException e) {
+                tasks.run();
+            }
+        }
+
+        /**
+         * @return true once all pending outbound bytes are written
+         */
+        private boolean flush() throws IOException {
+            if (netOut == null || netOut.position() == 0) {
+                return true;
+            }
+            netOut.flip();
+            channel.write(netOut);
+            boolean drained = !netOut.hasRemaining();
+            netOut.compact();
+            return drained;
+        }
+
+        private void complete() throws IOException {
+            SSLSession session = engine.getSession();
+            List<X509Certificate> certs = SocketHandshakeEngine.toX509Certificates(session.getPeerCertificates());
+            // contexts are pooled, don't let a later probe resume this session
+            session.invalidate();
+            closeChannel();
+            future.complete(certs);
+        }
+
+        void fail(Throwable e) {
+            closeChannel();
+            future.completeExceptionally(e);
+        }
+
+        void closeChannel() {
+            if (key != null) {
+                key.cancel();
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private static ByteBuffer enlarge(ByteBuffer buffer, int minimumCapacity) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(minimumCapacity, buffer.capacity() * 2));
+            buffer.flip();
+            larger.put(buffer);
+            return larger;
+        }
+    }
+}
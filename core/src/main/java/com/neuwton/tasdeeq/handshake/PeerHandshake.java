@@ -0,0 +1,39 @@
+package com.neuwton.tasdeeq.handshake;
+
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a completed handshake: the chain presented by the peer and the address that won the connection race.
+ */
+public final class PeerHandshake {
+
+    private final List<X509Certificate> certificates;
+    private final InetSocketAddress remoteAddress;
+
+    public PeerHandshake(List<X509Certificate> certificates, InetSocketAddress remoteAddress) {
+        this.certificates = Collections.unmodifiableList(certificates);
+        this.remoteAddress = remoteAddress;
+    }
+
+    /**
+     * @return the X509 certificates presented by the peer, in the order they were sent
+     */
+    public List<X509Certificate> getCertificates() {
+        return certificates;
+    }
+
+    public InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * @return "IPv6" or "IPv4"
+     */
+    public String getAddressFamily() {
+        return remoteAddress.getAddress() instanceof Inet6Address ? "IPv6" : "IPv4";
+    }
+}
@@ -0,0 +1,212 @@
+package com.neuwton.tasdeeq.handshake;
+
+import com.neuwton.tasdeeq.concurrent.CancellationToken;
+import com.neuwton.tasdeeq.concurrent.TasdeeqExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * The classic engine, a blocking {@link SSLSocket} per handshake run on the given executor. Dual-stack hosts are
+ * connected Happy-Eyeballs style, connect and every read of the handshake are bounded by timeouts, and cancelling a
+ * returned future closes the socket, so the thread is freed right away instead of waiting on the OS.
+ */
+public class SocketHandshakeEngine implements HandshakeEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(SocketHandshakeEngine.class);
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+    public static final int DEFAULT_HANDSHAKE_TIMEOUT_MILLIS = 20000;
+    public static final long DEFAULT_DEADLINE_MILLIS = 30000;
+
+    private final Executor executor;
+    private final int connectTimeoutMillis;
+    private final int handshakeTimeoutMillis;
+    private final long deadlineMillis;
+
+    public SocketHandshakeEngine() {
+        this(TasdeeqExecutor.defaultExecutor());
+    }
+
+    public SocketHandshakeEngine(Executor executor) {
+        this(executor, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_HANDSHAKE_TIMEOUT_MILLIS, DEFAULT_DEADLINE_MILLIS);
+    }
+
+    /**
+     * @param connectTimeoutMillis   time allowed for the TCP connect
+     * @param handshakeTimeoutMillis time allowed for each read while handshaking
+     * @param deadlineMillis         overall time allowed per target, the socket is closed once it passes
+     */
+    public SocketHandshakeEngine(Executor executor, int connectTimeoutMillis, int handshakeTimeoutMillis, long deadlineMillis) {
+        this.executor = executor;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    @Override
+    public CompletableFuture<List<X509Certificate>> handshake(final SSLContext sslContext, final String host, final int port) {
+        final CompletableFuture<List<X509Certificate>> future = new CompletableFuture<List<X509Certificate>>();
+        final CancellationToken token = CancellationToken.withDeadline(deadlineMillis, TimeUnit.MILLISECONDS);
+        future.whenComplete(new BiConsumer<List<X509Certificate>, Throwable>() {
+            public void accept(List<X509Certificate> certs, Throwable failure) {
+                if (future.isCancelled()) {
+                    token.cancel();
+                }
+            }
+        });
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        future.complete(fetchPeerCertificates(sslContext, host, port,
+                                connectTimeoutMillis, handshakeTimeoutMillis, token));
+                    } catch (Exception e) {
+                        future.completeExceptionally(e);
+                    } finally {
+                        token.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            token.release();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Blocking handshake on the calling thread, with the default timeouts.
+     */
+    public static List<X509Certificate> fetchPeerCertificates(SSLContext sslContext, String host, int port) throws IOException {
+        CancellationToken token = CancellationToken.withDeadline(DEFAULT_DEADLINE_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+            return fetchPeerCertificates(sslContext, host, port,
+                    DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_HANDSHAKE_TIMEOUT_MILLIS, token);
+        } finally {
+            token.release();
+        }
+    }
+
+    /**
+     * Blocking handshake on the calling thread, see {@link #connectAndHandshake}.
+     */
+    public static List<X509Certificate> fetchPeerCertificates(SSLContext sslContext, String host, int port,
+                                                              int connectTimeoutMillis, int handshakeTimeoutMillis,
+                                                              CancellationToken token) throws IOException {
+        return connectAndHandshake(sslContext, host, port, connectTimeoutMillis, handshakeTimeoutMillis, token).getCertificates();
+    }
+
+    /**
+     * Blocking handshake on the calling thread. Connection attempts to all addresses of the host are raced
+     * Happy-Eyeballs style (IPv6 first, staggered), the winning socket is handshaked. The socket is registered
+     * with the token, cancelling it (or its deadline passing) closes the socket and fails the handshake with a
+     * {@link SocketTimeoutException}.
+     *
+     * @param connectTimeoutMillis   time allowed for the TCP connect
+     * @param handshakeTimeoutMillis time allowed for each read while handshaking ({@code SO_TIMEOUT})
+     * @return the presented chain and the address that won the connection race
+     */
+    public static PeerHandshake connectAndHandshake(SSLContext sslContext, String host, int port,
+                                                    int connectTimeoutMillis, int handshakeTimeoutMillis,
+                                                    CancellationToken token) throws IOException {
+        return connectAndHandshake(sslContext, host, InetAddress.getAllByName(host), port,
+                connectTimeoutMillis, handshakeTimeoutMillis, token);
+    }
+
+    /**
+     * Like {@link #connectAndHandshake(SSLContext, String, int, int, int, CancellationToken)}, racing the given
+     * addresses of the host instead of resolving it, e.g. the records of a {@code DNSTasdeeq} lookup. The host is
+     * still sent as SNI.
+     *
+     * @param addresses addresses of the host, in the resolver's order
+     */
+    public static PeerHandshake connectAndHandshake(SSLContext sslContext, String host, InetAddress[] addresses, int port,
+                                                    int connectTimeoutMillis, int handshakeTimeoutMillis,
+                                                    CancellationToken token) throws IOException {
+        Socket socket = null;
+        try {
+            socket = HappyEyeballs.connect(host, addresses, port,
+                    boundedTimeout(connectTimeoutMillis, token, host, port), token).socket();
+            token.register(socket);
+            socket.setSoTimeout(boundedTimeout(handshakeTimeoutMillis, token, host, port));
+            // layered so connect and reads are bounded; only the plain socket is closed on cancellation, that
+            // unblocks the handshake without contending for the TLS socket's locks
+            SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory().createSocket(socket, host, port, true);
+            try {
+                sslSocket.startHandshake();
+                SSLSession session = sslSocket.getSession();
+                List<X509Certificate> certificates = toX509Certificates(session.getPeerCertificates());
+                // contexts are pooled, a resumed session would hand the next probe this chain without a handshake
+                session.invalidate();
+                return new PeerHandshake(certificates, (InetSocketAddress) socket.getRemoteSocketAddress());
+            } finally {
+                closeQuietly(sslSocket);
+            }
+        } catch (IOException e) {
+            if (token.isCancelled()) {
+                throw cancelled(token, host, port, e);
+            }
+            throw e;
+        } finally {
+            if (socket != null) {
+                token.unregister(socket);
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private static int boundedTimeout(int timeoutMillis, CancellationToken token, String host, int port) throws SocketTimeoutException {
+        long remaining = token.remainingMillis();
+        if (token.isCancelled() || remaining <= 0L) {
+            throw cancelled(token, host, port, null);
+        }
+        // 0 would mean no timeout at all
+        return (int) Math.max(1L, Math.min(timeoutMillis > 0 ? timeoutMillis : Integer.MAX_VALUE, remaining));
+    }
+
+    private static SocketTimeoutException cancelled(CancellationToken token, String host, int port, IOException cause) {
+        SocketTimeoutException e = new SocketTimeoutException(token.isExpired()
+                ? "Deadline passed for " + host + ":" + port
+                : "Handshake with " + host + ":" + port + " was cancelled");
+        if (cause != null) {
+            e.initCause(cause);
+        }
+        return e;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    static List<X509Certificate> toX509Certificates(Certificate[] certs) {
+        List<X509Certificate> x509Certs = new ArrayList<X509Certificate>(certs.length);
+        for (Certificate cert : certs) {
+            if (cert instanceof X509Certificate) {
+                x509Certs.add((X509Certificate) cert);
+            }
+        }
+        logger.info("Retrieved {} certificate(s) in chain", x509Certs.size());
+        return x509Certs;
+    }
+}
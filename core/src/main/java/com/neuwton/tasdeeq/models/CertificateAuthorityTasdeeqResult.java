@@ -1,26 +1,128 @@
 package com.neuwton.tasdeeq.models;
 
+import com.neuwton.tasdeeq.trust.FingerprintSet;
+import com.neuwton.tasdeeq.trust.KeyIdentifiers;
+
+import javax.security.auth.x500.X500Principal;
 import java.security.cert.X509Certificate;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
+/**
+ * The trusted root CAs, indexed for issuer lookups. The serial number and subject DN maps keep one root per key;
+ * cross-signed or re-keyed roots sharing a DN are all kept in the multi-valued indexes, by Subject Key Identifier
+ * and by canonical subject DN, which {@link #findIssuerCandidates(X509Certificate)} reads. The
+ * {@link CertificateFacts} of every root are extracted once, when the index is built.
+ */
 public class CertificateAuthorityTasdeeqResult {
 
     private final Map<String, X509Certificate> rootCAsBySerialNumber = new HashMap<>();
     private final Map<String, X509Certificate> rootCAsBySubjectDN = new HashMap<>();
+    private final Map<String, CertificateFacts> rootCAFactsBySubjectDN = new HashMap<>();
+    private final Map<String, List<X509Certificate>> rootCAsByKeyIdentifier = new HashMap<>();
+    private final Map<String, List<X509Certificate>> rootCAsByCanonicalSubject = new HashMap<>();
+    private final FingerprintSet rootCAFingerprints;
 
     public CertificateAuthorityTasdeeqResult(Map<String, X509Certificate> rootCAsBySerialNumber,
                                              Map<String, X509Certificate> rootCAsBySubjectDN) {
-        this.rootCAsBySerialNumber.putAll(rootCAsBySerialNumber);
-        this.rootCAsBySubjectDN.putAll(rootCAsBySubjectDN);
+        this(union(rootCAsBySerialNumber.values(), rootCAsBySubjectDN.values()));
+    }
+
+    public CertificateAuthorityTasdeeqResult(Collection<X509Certificate> rootCAs) {
+        for (X509Certificate root : rootCAs) {
+            rootCAsBySerialNumber.put(root.getSerialNumber().toString(), root);
+            rootCAsBySubjectDN.put(root.getSubjectX500Principal().getName(), root);
+            String keyIdentifier = KeyIdentifiers.subjectKeyIdentifier(root);
+            if (keyIdentifier != null) {
+                add(rootCAsByKeyIdentifier, keyIdentifier, root);
+            }
+            add(rootCAsByCanonicalSubject, root.getSubjectX500Principal().getName(X500Principal.CANONICAL), root);
+        }
+        for (Map.Entry<String, X509Certificate> root : rootCAsBySubjectDN.entrySet()) {
+            rootCAFactsBySubjectDN.put(root.getKey(), CertificateFacts.ofRootCA(root.getValue()));
+        }
+        freeze(rootCAsByKeyIdentifier);
+        freeze(rootCAsByCanonicalSubject);
+        rootCAFingerprints = FingerprintSet.of(rootCAs);
     }
 
     public Map<String, X509Certificate> getRootCAsBySerialNumber() {
-        return rootCAsBySerialNumber;
+        return Collections.unmodifiableMap(rootCAsBySerialNumber);
     }
 
     public Map<String, X509Certificate> getRootCAsBySubjectDN() {
-        return rootCAsBySubjectDN;
+        return Collections.unmodifiableMap(rootCAsBySubjectDN);
+    }
+
+    /**
+     * @return the facts of the roots of {@link #getRootCAsBySubjectDN()}, under the same keys
+     */
+    public Map<String, CertificateFacts> getRootCAFactsBySubjectDN() {
+        return Collections.unmodifiableMap(rootCAFactsBySubjectDN);
+    }
+
+    /**
+     * @return roots by hex Subject Key Identifier, roots without the extension are left out
+     */
+    public Map<String, List<X509Certificate>> getRootCAsByKeyIdentifier() {
+        return Collections.unmodifiableMap(rootCAsByKeyIdentifier);
+    }
+
+    /**
+     * @return roots by subject DN in {@link X500Principal#CANONICAL} form
+     */
+    public Map<String, List<X509Certificate>> getRootCAsByCanonicalSubject() {
+        return Collections.unmodifiableMap(rootCAsByCanonicalSubject);
+    }
+
+    /**
+     * @return the roots that may have signed the certificate: those whose Subject Key Identifier is the
+     * certificate's Authority Key Identifier, else those whose canonical subject is its issuer; empty if none
+     */
+    public List<X509Certificate> findIssuerCandidates(X509Certificate cert) {
+        String authorityKeyIdentifier = KeyIdentifiers.authorityKeyIdentifier(cert);
+        if (authorityKeyIdentifier != null) {
+            List<X509Certificate> byKeyIdentifier = rootCAsByKeyIdentifier.get(authorityKeyIdentifier);
+            if (byKeyIdentifier != null) {
+                return byKeyIdentifier;
+            }
+        }
+        List<X509Certificate> bySubject = rootCAsByCanonicalSubject.get(
+                cert.getIssuerX500Principal().getName(X500Principal.CANONICAL));
+        return bySubject != null ? bySubject : Collections.<X509Certificate>emptyList();
+    }
+
+    /**
+     * @return true if this exact certificate is one of the roots, decided by SHA-256 fingerprint
+     */
+    public boolean containsRootCA(X509Certificate cert) {
+        return rootCAFingerprints.contains(cert);
+    }
+
+    public FingerprintSet getRootCAFingerprints() {
+        return rootCAFingerprints;
+    }
+
+    private static void add(Map<String, List<X509Certificate>> index, String key, X509Certificate root) {
+        List<X509Certificate> roots = index.get(key);
+        if (roots == null) {
+            roots = new ArrayList<>(1);
+            index.put(key, roots);
+        }
+        if (!roots.contains(root)) {
+            roots.add(root);
+        }
+    }
+
+    private static void freeze(Map<String, List<X509Certificate>> index) {
+        for (Map.Entry<String, List<X509Certificate>> entry : index.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+    }
+
+    private static Collection<X509Certificate> union(Collection<X509Certificate> first, Collection<X509Certificate> second) {
+        Set<X509Certificate> roots = new LinkedHashSet<>(first);
+        roots.addAll(second);
+        return roots;
     }
 
 }
@@ -0,0 +1,251 @@
+package com.neuwton.tasdeeq.models;
+
+import com.neuwton.tasdeeq.trust.Digests;
+import com.neuwton.tasdeeq.trust.SignatureVerifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.PublicKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.DSAKey;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.RSAKey;
+import java.util.*;
+
+/**
+ * Everything reported about a certificate, extracted once. Reading DNs, extensions and the key, and classifying
+ * the certificate (which verifies its signature), is done when the facts are built; afterwards logging, health
+ * details and expiry checks only read fields.
+ */
+public final class CertificateFacts {
+
+    private static final Logger logger = LoggerFactory.getLogger(CertificateFacts.class);
+
+    public enum Type {
+        ROOT_CA("ROOT CA"),
+        INTERMEDIATE_CA("INTERMEDIATE CA"),
+        LEAF("LEAF [End-Entity]");
+
+        private final String label;
+
+        Type(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private static final Map<String, String> EKU_DESCRIPTIONS = new HashMap<String, String>();
+
+    static {
+        EKU_DESCRIPTIONS.put("1.3.6.1.5.5.7.3.1", "TLS Web Server Authentication");
+        EKU_DESCRIPTIONS.put("1.3.6.1.5.5.7.3.2", "TLS Web Client Authentication");
+        EKU_DESCRIPTIONS.put("1.3.6.1.5.5.7.3.3", "Code Signing");
+        EKU_DESCRIPTIONS.put("1.3.6.1.5.5.7.3.4", "Email Protection");
+        EKU_DESCRIPTIONS.put("1.3.6.1.5.5.7.3.8", "Time Stamping");
+    }
+
+    private static final Map<Integer, String> SAN_TYPES = new HashMap<Integer, String>();
+
+    static {
+        SAN_TYPES.put(1, "email");
+        SAN_TYPES.put(2, "DNS");
+        SAN_TYPES.put(6, "URI");
+        SAN_TYPES.put(7, "IP");
+    }
+
+    private final String sha256Fingerprint;
+    private final String subject;
+    private final String issuer;
+    private final String serialNumber;
+    private final Type type;
+    private final List<String> extendedKeyUsages;
+    private final List<String> subjectAlternativeNames;
+    private final String keyAlgorithm;
+    private final int keySize;
+    private final String signatureAlgorithm;
+    private final int version;
+    private final long notBeforeEpochMillis;
+    private final long notAfterEpochMillis;
+    private final int basicConstraints;
+
+    private CertificateFacts(X509Certificate cert) {
+        this(cert, null);
+    }
+
+    /**
+     * @param knownType the type when the caller already established it, null to classify the certificate
+     */
+    private CertificateFacts(X509Certificate cert, Type knownType) {
+        this.sha256Fingerprint = fingerprint(cert);
+        this.subject = cert.getSubjectX500Principal().getName();
+        this.issuer = cert.getIssuerX500Principal().getName();
+        this.serialNumber = cert.getSerialNumber().toString();
+        this.basicConstraints = cert.getBasicConstraints();
+        this.type = knownType != null ? knownType : classify(cert, basicConstraints);
+        this.extendedKeyUsages = extendedKeyUsages(cert);
+        this.subjectAlternativeNames = subjectAlternativeNames(cert);
+        this.keyAlgorithm = cert.getPublicKey().getAlgorithm();
+        this.keySize = keySize(cert.getPublicKey());
+        this.signatureAlgorithm = cert.getSigAlgName();
+        this.version = cert.getVersion();
+        this.notBeforeEpochMillis = cert.getNotBefore().getTime();
+        this.notAfterEpochMillis = cert.getNotAfter().getTime();
+    }
+
+    public static CertificateFacts of(X509Certificate cert) {
+        return new CertificateFacts(cert);
+    }
+
+    /**
+     * Facts of a certificate already classified as a root CA, its signature is not verified again.
+     */
+    static CertificateFacts ofRootCA(X509Certificate root) {
+        return new CertificateFacts(root, Type.ROOT_CA);
+    }
+
+    public static List<CertificateFacts> of(List<X509Certificate> chain) {
+        List<CertificateFacts> facts = new ArrayList<CertificateFacts>(chain.size());
+        for (X509Certificate cert : chain) {
+            facts.add(new CertificateFacts(cert));
+        }
+        return Collections.unmodifiableList(facts);
+    }
+
+    /**
+     * @return hex SHA-256 of the encoded certificate
+     */
+    public String getSha256Fingerprint() { return sha256Fingerprint; }
+
+    /**
+     * @return subject DN in RFC 2253 form
+     */
+    public String getSubject() { return subject; }
+
+    /**
+     * @return issuer DN in RFC 2253 form
+     */
+    public String getIssuer() { return issuer; }
+
+    public String getSerialNumber() { return serialNumber; }
+
+    /**
+     * @return ROOT_CA for a self-signed CA (signature verified), INTERMEDIATE_CA for any other CA, LEAF otherwise
+     */
+    public Type getType() { return type; }
+
+    /**
+     * @return descriptions of the extended key usages, unknown ones as {@code Unknown (<oid>)}; empty when absent
+     */
+    public List<String> getExtendedKeyUsages() { return extendedKeyUsages; }
+
+    /**
+     * @return subject alternative names as {@code <type>:<value>}, e.g. {@code DNS:example.com}
+     */
+    public List<String> getSubjectAlternativeNames() { return subjectAlternativeNames; }
+
+    public String getKeyAlgorithm() { return keyAlgorithm; }
+
+    /**
+     * @return key size in bits, -1 when it cannot be told from the key type
+     */
+    public int getKeySize() { return keySize; }
+
+    public String getSignatureAlgorithm() { return signatureAlgorithm; }
+
+    public int getVersion() { return version; }
+
+    public long getNotBeforeEpochMillis() { return notBeforeEpochMillis; }
+
+    public long getNotAfterEpochMillis() { return notAfterEpochMillis; }
+
+    /**
+     * @return as {@link X509Certificate#getBasicConstraints()}: -1 when not a CA, else the maximum path length
+     */
+    public int getBasicConstraints() { return basicConstraints; }
+
+    public boolean isCA() { return basicConstraints != -1; }
+
+    @Override
+    public String toString() {
+        return "Subject: [" + subject + "], Issuer: [" + issuer + "], Validity: [" + new Date(notBeforeEpochMillis)
+                + "] to [" + new Date(notAfterEpochMillis) + "], Serial: [" + serialNumber + "], type: ["
+                + type.getLabel() + "], EKU: " + extendedKeyUsages + ", SAN: " + subjectAlternativeNames;
+    }
+
+    private static Type classify(X509Certificate cert, int basicConstraints) {
+        if (basicConstraints == -1) {
+            return Type.LEAF;
+        }
+        boolean selfSigned = cert.getSubjectX500Principal().equals(cert.getIssuerX500Principal())
+                && SignatureVerifier.verifiesWithOwnKey(cert);
+        return selfSigned ? Type.ROOT_CA : Type.INTERMEDIATE_CA;
+    }
+
+    private static List<String> extendedKeyUsages(X509Certificate cert) {
+        List<String> oids;
+        try {
+            oids = cert.getExtendedKeyUsage();
+        } catch (CertificateParsingException e) {
+            // this would not occur in 99.99% scenarios, but just in case...
+            logger.error("Failed to parse certificate EKU of [{}]", cert.getSubjectX500Principal().getName(), e);
+            return Collections.emptyList();
+        }
+        if (oids == null) {
+            return Collections.emptyList();
+        }
+        List<String> usages = new ArrayList<String>(oids.size());
+        for (String oid : oids) {
+            usages.add(EKU_DESCRIPTIONS.containsKey(oid) ? EKU_DESCRIPTIONS.get(oid) : "Unknown (" + oid + ")");
+        }
+        return Collections.unmodifiableList(usages);
+    }
+
+    private static List<String> subjectAlternativeNames(X509Certificate cert) {
+        Collection<List<?>> names;
+        try {
+            names = cert.getSubjectAlternativeNames();
+        } catch (CertificateParsingException e) {
+            logger.error("Failed to parse certificate SAN of [{}]", cert.getSubjectX500Principal().getName(), e);
+            return Collections.emptyList();
+        }
+        if (names == null) {
+            return Collections.emptyList();
+        }
+        List<String> sans = new ArrayList<String>(names.size());
+        for (List<?> name : names) {
+            Integer nameType = (Integer) name.get(0);
+            // other names and directory names come DER encoded, only the string forms are reported
+            if (SAN_TYPES.containsKey(nameType) && name.get(1) instanceof String) {
+                sans.add(SAN_TYPES.get(nameType) + ":" + name.get(1));
+            }
+        }
+        return Collections.unmodifiableList(sans);
+    }
+
+    private static int keySize(PublicKey key) {
+        if (key instanceof RSAKey) {
+            return ((RSAKey) key).getModulus().bitLength();
+        }
+        if (key instanceof ECKey) {
+            return ((ECKey) key).getParams().getCurve().getField().getFieldSize();
+        }
+        if (key instanceof DSAKey && ((DSAKey) key).getParams() != null) {
+            return ((DSAKey) key).getParams().getP().bitLength();
+        }
+        return -1;
+    }
+
+    private static String fingerprint(X509Certificate cert) {
+        try {
+            return Digests.sha256Hex(cert);
+        } catch (CertificateEncodingException e) {
+            // a parsed certificate has an encoding
+            throw new IllegalStateException(e);
+        }
+    }
+}
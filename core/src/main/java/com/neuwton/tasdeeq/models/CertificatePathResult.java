@@ -0,0 +1,88 @@
+package com.neuwton.tasdeeq.models;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of building and validating a certification path for one presented chain: either the path that was found,
+ * leaf first and ending with the trust anchor, or why none was.
+ */
+public class CertificatePathResult {
+
+    public enum Failure {
+        EMPTY_CHAIN,
+        EXPIRED,
+        NOT_YET_VALID,
+        UNKNOWN_ISSUER,
+        NOT_A_CA,
+        KEY_USAGE,
+        BAD_SIGNATURE,
+        PATH_LENGTH,
+        NAME_CONSTRAINTS,
+        PATH_TOO_LONG,
+        MALFORMED
+    }
+
+    private final List<X509Certificate> path;
+    private final Failure failure;
+    private final String detail;
+    private final boolean memoized;
+
+    private CertificatePathResult(List<X509Certificate> path, Failure failure, String detail, boolean memoized) {
+        this.path = path;
+        this.failure = failure;
+        this.detail = detail;
+        this.memoized = memoized;
+    }
+
+    /**
+     * @param memoized true if the upper part of the path was taken from already validated paths
+     */
+    public static CertificatePathResult trusted(List<X509Certificate> path, boolean memoized) {
+        return new CertificatePathResult(Collections.unmodifiableList(new ArrayList<>(path)), null, null, memoized);
+    }
+
+    public static CertificatePathResult failed(Failure failure, String detail) {
+        return new CertificatePathResult(Collections.<X509Certificate>emptyList(), failure, detail, false);
+    }
+
+    public boolean isTrusted() {
+        return failure == null;
+    }
+
+    /**
+     * @return the validated path, leaf first and trust anchor last; empty when not trusted
+     */
+    public List<X509Certificate> getPath() {
+        return path;
+    }
+
+    public X509Certificate getTrustAnchor() {
+        return path.isEmpty() ? null : path.get(path.size() - 1);
+    }
+
+    /**
+     * @return why no path was found, null when trusted; of several dead ends, the one reached deepest
+     */
+    public Failure getFailure() {
+        return failure;
+    }
+
+    public String getDetail() {
+        return detail;
+    }
+
+    public boolean isMemoized() {
+        return memoized;
+    }
+
+    @Override
+    public String toString() {
+        if (isTrusted()) {
+            return "trusted via [" + getTrustAnchor().getSubjectX500Principal().getName() + "], path length " + path.size();
+        }
+        return failure + (detail != null ? ": " + detail : "");
+    }
+}
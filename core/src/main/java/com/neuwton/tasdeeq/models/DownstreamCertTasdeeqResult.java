@@ -1,6 +1,7 @@
 package com.neuwton.tasdeeq.models;
 
 import java.security.cert.X509Certificate;
+import java.util.Collections;
 import java.util.List;
 
 public class DownstreamCertTasdeeqResult {
@@ -10,8 +11,11 @@ public class DownstreamCertTasdeeqResult {
     private boolean validateChain;
     private List<X509Certificate> trustChain;
     private List<X509Certificate> downstreamCertChain;
+    private volatile List<CertificateFacts> certificateFacts;
     private boolean isTrusted;
     private String connectionError;
+    private String remoteAddress;
+    private String addressFamily;
 
     public String getHost() { return host; }
     public DownstreamCertTasdeeqResult setHost(String host) { this.host = host; return this; }
@@ -23,7 +27,25 @@ public class DownstreamCertTasdeeqResult {
     public DownstreamCertTasdeeqResult setValidateChain(boolean validateChain) { this.validateChain = validateChain; return this; }
 
     public List<X509Certificate> getDownstreamCertChain() { return downstreamCertChain; }
-    public DownstreamCertTasdeeqResult setDownstreamCertChain(List<X509Certificate> downstreamCertChain) { this.downstreamCertChain = downstreamCertChain; return this; }
+    public DownstreamCertTasdeeqResult setDownstreamCertChain(List<X509Certificate> downstreamCertChain) {
+        this.downstreamCertChain = downstreamCertChain;
+        this.certificateFacts = null;
+        return this;
+    }
+
+    /**
+     * @return facts of the downstream chain, in chain order, extracted on first access and shared by every later
+     * reader; empty when there is no chain
+     */
+    public List<CertificateFacts> getCertificateFacts() {
+        List<CertificateFacts> facts = certificateFacts;
+        if (facts == null) {
+            List<X509Certificate> chain = downstreamCertChain;
+            facts = chain == null ? Collections.<CertificateFacts>emptyList() : CertificateFacts.of(chain);
+            certificateFacts = facts;
+        }
+        return facts;
+    }
 
     public boolean isTrusted() { return isTrusted; }
     public DownstreamCertTasdeeqResult setTrusted(boolean trusted) { isTrusted = trusted; return this; }
@@ -31,6 +53,12 @@ public class DownstreamCertTasdeeqResult {
     public String getConnectionError() { return connectionError; }
     public DownstreamCertTasdeeqResult setConnectionError(String connectionError) { this.connectionError = connectionError; return this; }
 
+    public String getRemoteAddress() { return remoteAddress; }
+    public DownstreamCertTasdeeqResult setRemoteAddress(String remoteAddress) { this.remoteAddress = remoteAddress; return this; }
+
+    public String getAddressFamily() { return addressFamily; }
+    public DownstreamCertTasdeeqResult setAddressFamily(String addressFamily) { this.addressFamily = addressFamily; return this; }
+
     public List<X509Certificate> getTrustChain() {
         return trustChain;
     }
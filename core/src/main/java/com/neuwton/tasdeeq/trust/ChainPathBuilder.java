@@ -0,0 +1,578 @@
+package com.neuwton.tasdeeq.trust;
+
+import com.neuwton.tasdeeq.concurrent.TasdeeqExecutor;
+import com.neuwton.tasdeeq.models.CertificateAuthorityTasdeeqResult;
+import com.neuwton.tasdeeq.models.CertificatePathResult;
+import com.neuwton.tasdeeq.models.CertificatePathResult.Failure;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.security.auth.x500.X500Principal;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateExpiredException;
+import java.security.cert.CertificateNotYetValidException;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds and validates certification paths offline, as RFC 5280 describes them. Starting at the leaf, issuers are
+ * searched depth first among the root CA index, the certificates presented with the chain, and intermediates of
+ * earlier validated paths. An issuer must match by name, be a CA allowed to sign certificates (basic constraints, key
+ * usage) and verify the signature, memoized by {@link SignatureVerifier}. Every certificate but the anchor must be
+ * valid at the validation time. A complete path must also respect the path length and name constraints of its CAs,
+ * those of the anchor included. Dead ends backtrack, so cross-signed and re-keyed CAs are followed. Revocation is not
+ * checked.
+ * <p>
+ * Validated paths are memoized from each intermediate up. A chain reaching a memoized intermediate only re-checks what
+ * depends on the certificates below it, so leaves under the same intermediates cost about one signature check each.
+ * A builder is bound to one root CA index; its memo and learned intermediates are only valid for that index.
+ */
+public final class ChainPathBuilder {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChainPathBuilder.class);
+
+    /**
+     * Longest path, in certificates from leaf to anchor, that is searched for.
+     */
+    public static final int MAX_PATH_LENGTH = 10;
+    public static final int MAX_MEMO_ENTRIES = 4096;
+    public static final int MAX_KNOWN_INTERMEDIATES = 1024;
+
+    // bounds the search through a chain crafted to branch endlessly
+    private static final int MAX_SIGNATURE_CHECKS = 64;
+    // chains one fork-join task validates before it stops splitting
+    private static final int BATCH_THRESHOLD = 16;
+
+    private final CertificateAuthorityTasdeeqResult roots;
+    private final Set<X509Certificate> knownIntermediates =
+            Collections.newSetFromMap(new ConcurrentHashMap<X509Certificate, Boolean>());
+    private final ConcurrentMap<String, List<X509Certificate>> intermediatesByKeyIdentifier =
+            new ConcurrentHashMap<String, List<X509Certificate>>();
+    private final ConcurrentMap<String, List<X509Certificate>> intermediatesByCanonicalSubject =
+            new ConcurrentHashMap<String, List<X509Certificate>>();
+    private final ConcurrentMap<String, Memo> memo = new ConcurrentHashMap<String, Memo>();
+    private final AtomicLong memoHits = new AtomicLong();
+    private final AtomicLong memoMisses = new AtomicLong();
+
+    public ChainPathBuilder(CertificateAuthorityTasdeeqResult roots) {
+        this(roots, Collections.<X509Certificate>emptyList());
+    }
+
+    /**
+     * @param intermediates CA certificates to build paths through when a chain leaves them out
+     */
+    public ChainPathBuilder(CertificateAuthorityTasdeeqResult roots, Collection<X509Certificate> intermediates) {
+        this.roots = roots;
+        addIntermediates(intermediates);
+    }
+
+    public CertificatePathResult validate(List<X509Certificate> chain) {
+        return validate(chain, new Date());
+    }
+
+    /**
+     * @param chain the presented certificates, leaf first, the rest in any order
+     * @param at    the time the certificates must be valid at
+     */
+    public CertificatePathResult validate(List<X509Certificate> chain, Date at) {
+        if (chain == null || chain.isEmpty()) {
+            return CertificatePathResult.failed(Failure.EMPTY_CHAIN, "No certificate presented");
+        }
+        try {
+            if (roots.containsRootCA(chain.get(0))) {
+                return CertificatePathResult.trusted(Collections.singletonList(chain.get(0)), false);
+            }
+            Search search = new Search(chain, at);
+            List<X509Certificate> path = search.fromLeaf();
+            if (path == null) {
+                logger.debug("No trusted path for [{}]: {} {}", name(chain.get(0)), search.failure, search.detail);
+                return CertificatePathResult.failed(search.failure, search.detail);
+            }
+            remember(path, search.memoizedFrom);
+            return CertificatePathResult.trusted(path, search.memoizedFrom > 0);
+        } catch (RuntimeException e) {
+            logger.debug("Cannot build a path for [{}]", name(chain.get(0)), e);
+            return CertificatePathResult.failed(Failure.MALFORMED, e.getMessage());
+        }
+    }
+
+    /**
+     * Validates the chains in parallel on {@link TasdeeqExecutor#validationPool()}, all at the same time instant.
+     *
+     * @return one result per chain, in the order of the collection
+     */
+    public List<CertificatePathResult> validateAll(Collection<? extends List<X509Certificate>> chains) {
+        return validateAll(chains, TasdeeqExecutor.validationPool());
+    }
+
+    public List<CertificatePathResult> validateAll(Collection<? extends List<X509Certificate>> chains, ForkJoinPool pool) {
+        List<List<X509Certificate>> batch = new ArrayList<List<X509Certificate>>(chains);
+        CertificatePathResult[] results = new CertificatePathResult[batch.size()];
+        long start = System.nanoTime();
+        pool.invoke(new ValidateTask(batch, results, 0, batch.size(), new Date()));
+        int trusted = 0;
+        for (CertificatePathResult result : results) {
+            if (result.isTrusted()) {
+                trusted++;
+            }
+        }
+        logger.info("Validated {} chains in {} ms, {} trusted", results.length,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), trusted);
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Makes CA certificates available to paths of chains that leave them out. Non-CA certificates are ignored, and
+     * so is everything past {@value #MAX_KNOWN_INTERMEDIATES} known intermediates.
+     */
+    public void addIntermediates(Collection<X509Certificate> intermediates) {
+        for (X509Certificate intermediate : intermediates) {
+            addIntermediate(intermediate);
+        }
+    }
+
+    public List<X509Certificate> getKnownIntermediates() {
+        return new ArrayList<X509Certificate>(knownIntermediates);
+    }
+
+    public CertificateAuthorityTasdeeqResult getRoots() {
+        return roots;
+    }
+
+    public long getMemoHitCount() {
+        return memoHits.get();
+    }
+
+    public long getMemoMissCount() {
+        return memoMisses.get();
+    }
+
+    public int getMemoSize() {
+        return memo.size();
+    }
+
+    private void addIntermediate(X509Certificate intermediate) {
+        if (intermediate.getBasicConstraints() == -1 || roots.containsRootCA(intermediate)) {
+            return;
+        }
+        if (knownIntermediates.size() >= MAX_KNOWN_INTERMEDIATES) {
+            logger.debug("Not learning [{}], {} intermediates known already", name(intermediate), knownIntermediates.size());
+            return;
+        }
+        if (!knownIntermediates.add(intermediate)) {
+            return;
+        }
+        String keyIdentifier = KeyIdentifiers.subjectKeyIdentifier(intermediate);
+        if (keyIdentifier != null) {
+            index(intermediatesByKeyIdentifier, keyIdentifier, intermediate);
+        }
+        index(intermediatesByCanonicalSubject,
+                intermediate.getSubjectX500Principal().getName(X500Principal.CANONICAL), intermediate);
+    }
+
+    /**
+     * Memoizes the path from every intermediate below {@code memoizedFrom} up, and learns those intermediates.
+     * Entries from the hit up are memoized already.
+     */
+    private void remember(List<X509Certificate> path, int memoizedFrom) {
+        int anchor = path.size() - 1;
+        int top = memoizedFrom > 0 ? memoizedFrom : anchor;
+        if (top <= 1) {
+            return;
+        }
+        Date notBefore = null;
+        Date notAfter = null;
+        // validity of the memoized part: the intersection of the intermediates it holds, the anchor is not checked
+        for (int i = anchor - 1; i >= 1; i--) {
+            X509Certificate cert = path.get(i);
+            notBefore = notBefore == null || cert.getNotBefore().after(notBefore) ? cert.getNotBefore() : notBefore;
+            notAfter = notAfter == null || cert.getNotAfter().before(notAfter) ? cert.getNotAfter() : notAfter;
+            if (i >= top) {
+                continue;
+            }
+            String key = fingerprint(cert);
+            if (key != null && !memo.containsKey(key)) {
+                if (memo.size() >= MAX_MEMO_ENTRIES) {
+                    Iterator<String> keys = memo.keySet().iterator();
+                    if (keys.hasNext()) {
+                        keys.next();
+                        keys.remove();
+                    }
+                }
+                memo.put(key, new Memo(new ArrayList<X509Certificate>(path.subList(i, path.size())), notBefore, notAfter));
+            }
+            addIntermediate(cert);
+        }
+    }
+
+    /**
+     * The state of one depth first search, from the leaf towards an anchor.
+     */
+    private final class Search {
+
+        private final List<X509Certificate> presented;
+        private final Date at;
+        private final List<X509Certificate> stack = new ArrayList<X509Certificate>();
+        private int signatureChecks;
+        private Failure failure = Failure.UNKNOWN_ISSUER;
+        private String detail;
+        private int failureDepth = -1;
+        // index of the path where the memoized part starts, 0 when nothing came from the memo
+        private int memoizedFrom;
+
+        Search(List<X509Certificate> presented, Date at) {
+            this.presented = presented;
+            this.at = at;
+        }
+
+        List<X509Certificate> fromLeaf() {
+            X509Certificate leaf = presented.get(0);
+            if (!isValidAt(leaf)) {
+                return null;
+            }
+            detail = "No trusted issuer for [" + name(leaf) + "]";
+            stack.add(leaf);
+            return extend();
+        }
+
+        /**
+         * @return a complete path through the certificates on the stack, or null if there is none
+         */
+        private List<X509Certificate> extend() {
+            X509Certificate cert = stack.get(stack.size() - 1);
+            if (stack.size() > 1) {
+                List<X509Certificate> path = fromMemo(cert);
+                if (path != null) {
+                    return path;
+                }
+            }
+            if (stack.size() >= MAX_PATH_LENGTH) {
+                fail(Failure.PATH_TOO_LONG, "No trust anchor within " + MAX_PATH_LENGTH + " certificates", stack.size());
+                return null;
+            }
+            for (X509Certificate anchor : roots.findIssuerCandidates(cert)) {
+                if (issues(anchor, cert)) {
+                    List<X509Certificate> path = withIssuer(anchor);
+                    if (isValidPath(path)) {
+                        return path;
+                    }
+                }
+            }
+            for (X509Certificate issuer : intermediateCandidates(cert)) {
+                if (stack.contains(issuer) || !issues(issuer, cert)) {
+                    continue;
+                }
+                if (roots.containsRootCA(issuer)) {
+                    // an anchor the key identifier lookup did not turn up
+                    List<X509Certificate> path = withIssuer(issuer);
+                    if (isValidPath(path)) {
+                        return path;
+                    }
+                    continue;
+                }
+                if (!isValidAt(issuer)) {
+                    continue;
+                }
+                stack.add(issuer);
+                List<X509Certificate> path = extend();
+                if (path != null) {
+                    return path;
+                }
+                stack.remove(stack.size() - 1);
+            }
+            return null;
+        }
+
+        private List<X509Certificate> fromMemo(X509Certificate cert) {
+            String key = fingerprint(cert);
+            Memo entry = key != null ? memo.get(key) : null;
+            if (entry == null || !entry.isValidAt(at)) {
+                memoMisses.incrementAndGet();
+                return null;
+            }
+            memoHits.incrementAndGet();
+            List<X509Certificate> path = new ArrayList<X509Certificate>(stack.size() - 1 + entry.path.size());
+            path.addAll(stack.subList(0, stack.size() - 1));
+            path.addAll(entry.path);
+            if (!isValidPath(path)) {
+                return null;
+            }
+            memoizedFrom = stack.size() - 1;
+            return path;
+        }
+
+        /**
+         * @return the presented certificates named as the issuer, then the known intermediates
+         */
+        private List<X509Certificate> intermediateCandidates(X509Certificate cert) {
+            X500Principal issuer = cert.getIssuerX500Principal();
+            List<X509Certificate> candidates = new ArrayList<X509Certificate>(2);
+            for (int i = 1; i < presented.size(); i++) {
+                X509Certificate candidate = presented.get(i);
+                if (issuer.equals(candidate.getSubjectX500Principal()) && !candidates.contains(candidate)) {
+                    candidates.add(candidate);
+                }
+            }
+            String authorityKeyIdentifier = KeyIdentifiers.authorityKeyIdentifier(cert);
+            List<X509Certificate> known = authorityKeyIdentifier != null
+                    ? intermediatesByKeyIdentifier.get(authorityKeyIdentifier) : null;
+            if (known == null) {
+                known = intermediatesByCanonicalSubject.get(issuer.getName(X500Principal.CANONICAL));
+            }
+            if (known != null) {
+                for (X509Certificate candidate : known) {
+                    if (!candidates.contains(candidate)) {
+                        candidates.add(candidate);
+                    }
+                }
+            }
+            return candidates;
+        }
+
+        private boolean issues(X509Certificate issuer, X509Certificate cert) {
+            if (!cert.getIssuerX500Principal().equals(issuer.getSubjectX500Principal())) {
+                return false;
+            }
+            if (issuer.getBasicConstraints() == -1) {
+                fail(Failure.NOT_A_CA, "[" + name(issuer) + "] is not a CA", stack.size());
+                return false;
+            }
+            boolean[] keyUsage = issuer.getKeyUsage();
+            if (keyUsage != null && (keyUsage.length <= 5 || !keyUsage[5])) {
+                fail(Failure.KEY_USAGE, "[" + name(issuer) + "] may not sign certificates", stack.size());
+                return false;
+            }
+            if (++signatureChecks > MAX_SIGNATURE_CHECKS) {
+                fail(Failure.PATH_TOO_LONG, "Gave up after " + MAX_SIGNATURE_CHECKS + " signature checks", stack.size());
+                return false;
+            }
+            if (!SignatureVerifier.verifies(cert, issuer.getPublicKey())) {
+                fail(Failure.BAD_SIGNATURE, "[" + name(cert) + "] is not signed by [" + name(issuer) + "]", stack.size());
+                return false;
+            }
+            return true;
+        }
+
+        private boolean isValidAt(X509Certificate cert) {
+            try {
+                cert.checkValidity(at);
+                return true;
+            } catch (CertificateExpiredException e) {
+                fail(Failure.EXPIRED, "[" + name(cert) + "] expired on " + cert.getNotAfter(), stack.size());
+            } catch (CertificateNotYetValidException e) {
+                fail(Failure.NOT_YET_VALID, "[" + name(cert) + "] is valid from " + cert.getNotBefore(), stack.size());
+            }
+            return false;
+        }
+
+        private boolean isValidPath(List<X509Certificate> path) {
+            if (path.size() > MAX_PATH_LENGTH) {
+                fail(Failure.PATH_TOO_LONG, "No trust anchor within " + MAX_PATH_LENGTH + " certificates", path.size());
+                return false;
+            }
+            String violation = pathLengthViolation(path);
+            if (violation != null) {
+                fail(Failure.PATH_LENGTH, violation, path.size());
+                return false;
+            }
+            violation = nameConstraintViolation(path);
+            if (violation != null) {
+                fail(Failure.NAME_CONSTRAINTS, violation, path.size());
+                return false;
+            }
+            return true;
+        }
+
+        private List<X509Certificate> withIssuer(X509Certificate issuer) {
+            List<X509Certificate> path = new ArrayList<X509Certificate>(stack.size() + 1);
+            path.addAll(stack);
+            path.add(issuer);
+            return path;
+        }
+
+        /**
+         * Keeps the failure of the deepest dead end, it says most about why the chain is not trusted.
+         */
+        private void fail(Failure failure, String detail, int depth) {
+            if (depth >= failureDepth) {
+                this.failure = failure;
+                this.detail = detail;
+                this.failureDepth = depth;
+            }
+        }
+    }
+
+    /**
+     * @return why the path breaks a CA's limit on the intermediates below it, null if it does not
+     */
+    private static String pathLengthViolation(List<X509Certificate> path) {
+        int below = 0;
+        for (int i = 1; i < path.size(); i++) {
+            X509Certificate ca = path.get(i);
+            if (ca.getBasicConstraints() < below) {
+                return "[" + name(ca) + "] allows " + ca.getBasicConstraints()
+                        + " intermediates below it, the path has " + below;
+            }
+            // self-issued certificates (key rollover) do not count
+            if (!isSelfIssued(ca)) {
+                below++;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return why a name of the path is outside the constraints of a CA above it, null if none is
+     */
+    private static String nameConstraintViolation(List<X509Certificate> path) {
+        int highest = -1;
+        for (int i = path.size() - 1; i > 0 && highest < 0; i--) {
+            if (path.get(i).getExtensionValue(Extension.nameConstraints.getId()) != null) {
+                highest = i;
+            }
+        }
+        if (highest < 0) {
+            return null;
+        }
+        PKIXNameConstraintValidator validator = new PKIXNameConstraintValidator();
+        for (int i = highest; i >= 0; i--) {
+            X509Certificate cert = path.get(i);
+            try {
+                if (i < highest) {
+                    checkNames(validator, cert, i == 0);
+                }
+                byte[] extension = i > 0 ? cert.getExtensionValue(Extension.nameConstraints.getId()) : null;
+                if (extension != null) {
+                    NameConstraints constraints = NameConstraints.getInstance(
+                            ASN1OctetString.getInstance(extension).getOctets());
+                    if (constraints.getPermittedSubtrees() != null) {
+                        validator.intersectPermittedSubtree(constraints.getPermittedSubtrees());
+                    }
+                    if (constraints.getExcludedSubtrees() != null) {
+                        for (GeneralSubtree excluded : constraints.getExcludedSubtrees()) {
+                            validator.addExcludedSubtree(excluded);
+                        }
+                    }
+                }
+            } catch (NameConstraintValidatorException e) {
+                return "[" + name(cert) + "] " + e.getMessage();
+            } catch (RuntimeException e) {
+                return "Malformed names in [" + name(cert) + "]: " + e.getMessage();
+            }
+        }
+        return null;
+    }
+
+    private static void checkNames(PKIXNameConstraintValidator validator, X509Certificate cert, boolean leaf)
+            throws NameConstraintValidatorException {
+        // a self-issued intermediate's subject is exempt, RFC 5280 6.1.3 (b)
+        if (leaf || !isSelfIssued(cert)) {
+            X500Name subject = X500Name.getInstance(cert.getSubjectX500Principal().getEncoded());
+            if (subject.getRDNs().length > 0) {
+                validator.checkPermittedDN(subject);
+                validator.checkExcludedDN(subject);
+            }
+        }
+        byte[] subjectAlternativeName = cert.getExtensionValue(Extension.subjectAlternativeName.getId());
+        if (subjectAlternativeName != null) {
+            GeneralNames names = GeneralNames.getInstance(ASN1OctetString.getInstance(subjectAlternativeName).getOctets());
+            for (GeneralName name : names.getNames()) {
+                validator.checkPermitted(name);
+                validator.checkExcluded(name);
+            }
+        }
+    }
+
+    private static boolean isSelfIssued(X509Certificate cert) {
+        return cert.getSubjectX500Principal().equals(cert.getIssuerX500Principal());
+    }
+
+    private static void index(ConcurrentMap<String, List<X509Certificate>> index, String key, X509Certificate cert) {
+        List<X509Certificate> certs = index.get(key);
+        if (certs == null) {
+            List<X509Certificate> created = new CopyOnWriteArrayList<X509Certificate>();
+            certs = index.putIfAbsent(key, created);
+            if (certs == null) {
+                certs = created;
+            }
+        }
+        certs.add(cert);
+    }
+
+    /**
+     * @return hex SHA-256 of the encoded certificate, null when it has no encoding
+     */
+    private static String fingerprint(X509Certificate cert) {
+        try {
+            return Digests.sha256Hex(cert);
+        } catch (CertificateEncodingException e) {
+            return null;
+        }
+    }
+
+    private static String name(X509Certificate cert) {
+        return cert.getSubjectX500Principal().getName();
+    }
+
+    /**
+     * A validated path from an intermediate up to its anchor, usable while all of its intermediates are valid.
+     */
+    private static final class Memo {
+
+        private final List<X509Certificate> path;
+        private final Date notBefore;
+        private final Date notAfter;
+
+        Memo(List<X509Certificate> path, Date notBefore, Date notAfter) {
+            this.path = path;
+            this.notBefore = notBefore;
+            this.notAfter = notAfter;
+        }
+
+        boolean isValidAt(Date at) {
+            return !at.before(notBefore) && !at.after(notAfter);
+        }
+    }
+
+    private final class ValidateTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<List<X509Certificate>> batch;
+        private final CertificatePathResult[] results;
+        private final int from;
+        private final int to;
+        private final Date at;
+
+        ValidateTask(List<List<X509Certificate>> batch, CertificatePathResult[] results, int from, int to, Date at) {
+            this.batch = batch;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.at = at;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    results[i] = validate(batch.get(i), at);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new ValidateTask(batch, results, from, middle, at),
+                    new ValidateTask(batch, results, middle, to, at));
+        }
+    }
+}
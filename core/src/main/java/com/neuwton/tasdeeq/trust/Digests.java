@@ -0,0 +1,52 @@
+package com.neuwton.tasdeeq.trust;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+
+/**
+ * SHA-256 digests and their lower case hex form, as used for fingerprints and cache keys across tasdeeq.
+ */
+public final class Digests {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Digests() {
+    }
+
+    public static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM ships SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return lower case hex SHA-256 of the data
+     */
+    public static String sha256Hex(byte[] data) {
+        return toHex(sha256(data));
+    }
+
+    /**
+     * @return lower case hex SHA-256 of the encoded certificate, its fingerprint
+     */
+    public static String sha256Hex(X509Certificate cert) throws CertificateEncodingException {
+        return sha256Hex(cert.getEncoded());
+    }
+
+    /**
+     * @return lower case hex of the bytes, two characters per byte
+     */
+    public static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,148 @@
+package com.neuwton.tasdeeq.trust;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.*;
+
+/**
+ * Immutable set of certificates by SHA-256 fingerprint, answering "is this exact certificate one of them". The
+ * first 8 bytes of every fingerprint are kept in a sorted {@code long[]} for a binary search, and a prefix hit is
+ * confirmed against the full 32 bytes, so two different certificates can never be taken for one another. Unlike
+ * serial numbers or DNs, fingerprints are unique across CAs.
+ * <p>
+ * A lookup hashes into a per-thread buffer with a per-thread digest; besides the copy of the encoding the JDK
+ * hands out, it allocates nothing.
+ */
+public final class FingerprintSet {
+
+    private static final Logger logger = LoggerFactory.getLogger(FingerprintSet.class);
+
+    private static final int SHA256_LENGTH = 32;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                // every JVM ships SHA-256
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private static final ThreadLocal<byte[]> DIGEST_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[SHA256_LENGTH];
+        }
+    };
+
+    private final long[] prefixes;
+    private final byte[][] digests;
+
+    private FingerprintSet(long[] prefixes, byte[][] digests) {
+        this.prefixes = prefixes;
+        this.digests = digests;
+    }
+
+    public static FingerprintSet of(Collection<? extends X509Certificate> certs) {
+        List<byte[]> sorted = new ArrayList<byte[]>(certs.size());
+        for (X509Certificate cert : certs) {
+            try {
+                sorted.add(SHA256.get().digest(cert.getEncoded()));
+            } catch (CertificateEncodingException e) {
+                logger.warn("Leaving out [{}], it has no encoding", cert.getSubjectX500Principal().getName());
+            }
+        }
+        Collections.sort(sorted, new Comparator<byte[]>() {
+            public int compare(byte[] a, byte[] b) {
+                int byPrefix = Long.compare(prefix(a), prefix(b));
+                if (byPrefix != 0) {
+                    return byPrefix;
+                }
+                for (int i = 8; i < SHA256_LENGTH; i++) {
+                    if (a[i] != b[i]) {
+                        return a[i] < b[i] ? -1 : 1;
+                    }
+                }
+                return 0;
+            }
+        });
+        List<byte[]> unique = new ArrayList<byte[]>(sorted.size());
+        for (byte[] digest : sorted) {
+            if (unique.isEmpty() || !Arrays.equals(unique.get(unique.size() - 1), digest)) {
+                unique.add(digest);
+            }
+        }
+        long[] prefixes = new long[unique.size()];
+        for (int i = 0; i < prefixes.length; i++) {
+            prefixes[i] = prefix(unique.get(i));
+        }
+        return new FingerprintSet(prefixes, unique.toArray(new byte[unique.size()][]));
+    }
+
+    /**
+     * @return true if the certificate, byte for byte, is in the set
+     */
+    public boolean contains(X509Certificate cert) {
+        if (prefixes.length == 0) {
+            return false;
+        }
+        byte[] digest = DIGEST_BUFFER.get();
+        try {
+            MessageDigest sha256 = SHA256.get();
+            sha256.reset();
+            sha256.update(cert.getEncoded());
+            sha256.digest(digest, 0, SHA256_LENGTH);
+        } catch (CertificateEncodingException | DigestException e) {
+            logger.debug("Cannot fingerprint [{}]: {}", cert.getSubjectX500Principal().getName(), e.getMessage());
+            return false;
+        }
+        return containsDigest(digest);
+    }
+
+    /**
+     * @param sha256 SHA-256 of an encoded certificate
+     */
+    public boolean containsDigest(byte[] sha256) {
+        if (sha256 == null || sha256.length != SHA256_LENGTH) {
+            return false;
+        }
+        long prefix = prefix(sha256);
+        int found = Arrays.binarySearch(prefixes, prefix);
+        if (found < 0) {
+            return false;
+        }
+        // equal prefixes sit next to each other, confirm against each full hash
+        for (int i = found; i >= 0 && prefixes[i] == prefix; i--) {
+            if (Arrays.equals(digests[i], sha256)) {
+                return true;
+            }
+        }
+        for (int i = found + 1; i < prefixes.length && prefixes[i] == prefix; i++) {
+            if (Arrays.equals(digests[i], sha256)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return prefixes.length;
+    }
+
+    private static long prefix(byte[] digest) {
+        long prefix = 0;
+        for (int i = 0; i < 8; i++) {
+            prefix = (prefix << 8) | (digest[i] & 0xff);
+        }
+        return prefix;
+    }
+}
@@ -0,0 +1,69 @@
+package com.neuwton.tasdeeq.trust;
+
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.cert.X509Certificate;
+
+/**
+ * Reads the key identifiers linking a certificate to its issuer: the Subject Key Identifier of a CA equals the
+ * Authority Key Identifier of everything it signed, so an issuer is found by one lookup instead of by name.
+ */
+public final class KeyIdentifiers {
+
+    private static final Logger logger = LoggerFactory.getLogger(KeyIdentifiers.class);
+
+    private KeyIdentifiers() {
+    }
+
+    /**
+     * @return hex Subject Key Identifier, or null when the extension is absent or malformed
+     */
+    public static String subjectKeyIdentifier(X509Certificate cert) {
+        byte[] extension = cert.getExtensionValue(Extension.subjectKeyIdentifier.getId());
+        if (extension == null) {
+            return null;
+        }
+        try {
+            byte[] octets = ASN1OctetString.getInstance(extension).getOctets();
+            return toHex(SubjectKeyIdentifier.getInstance(octets).getKeyIdentifier());
+        } catch (RuntimeException e) {
+            logger.debug("Malformed subject key identifier in [{}]: {}", cert.getSubjectX500Principal().getName(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return hex key identifier of the Authority Key Identifier, or null when absent, malformed, or only naming the
+     * issuer by name and serial number
+     */
+    public static String authorityKeyIdentifier(X509Certificate cert) {
+        byte[] extension = cert.getExtensionValue(Extension.authorityKeyIdentifier.getId());
+        if (extension == null) {
+            return null;
+        }
+        try {
+            byte[] octets = ASN1OctetString.getInstance(extension).getOctets();
+            return toHex(keyIdentifier(AuthorityKeyIdentifier.getInstance(octets)));
+        } catch (RuntimeException e) {
+            logger.debug("Malformed authority key identifier in [{}]: {}", cert.getSubjectX500Principal().getName(), e.getMessage());
+            return null;
+        }
+    }
+
+    private static byte[] keyIdentifier(AuthorityKeyIdentifier authorityKeyIdentifier) {
+        ASN1OctetString keyIdentifier = authorityKeyIdentifier.getKeyIdentifierObject();
+        return keyIdentifier == null ? null : keyIdentifier.getOctets();
+    }
+
+    private static String toHex(byte[] bytes) {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        return Digests.toHex(bytes);
+    }
+}
@@ -0,0 +1,128 @@
+package com.neuwton.tasdeeq.trust;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.*;
+import java.util.*;
+
+/**
+ * Decides trust for an already captured chain, without a second connection. A path from the leaf to one of the
+ * anchors of the JVM default trust managers plus any additional CAs is built with the PKIX {@link CertPathBuilder},
+ * the rest of the presented certificates only serving as candidate issuers, like JSSE's trust manager does: chains
+ * sent out of order, with extra certificates, or ending in a cross-signed certificate whose old root is gone are
+ * trusted just as a validating handshake would trust them (revocation checking disabled, as in JSSE's default).
+ */
+public final class OfflineChainValidator {
+
+    private static final Logger logger = LoggerFactory.getLogger(OfflineChainValidator.class);
+
+    private static volatile JvmAnchors jvmAnchors;
+
+    private OfflineChainValidator() {
+    }
+
+    /**
+     * @param chain         the presented chain, leaf first
+     * @param additionalCAs CAs trusted on top of the JVM default ones
+     * @return true if the chain validates to one of the anchors
+     */
+    public static boolean isTrusted(List<X509Certificate> chain, X509Certificate... additionalCAs) {
+        if (chain == null || chain.isEmpty()) {
+            return false;
+        }
+        try {
+            JvmAnchors jvm = jvmAnchors();
+            Set<TrustAnchor> anchors = jvm.anchors;
+            FingerprintSet anchorCerts = jvm.fingerprints;
+            List<X509Certificate> additional = additionalCAs != null
+                    ? Arrays.asList(additionalCAs) : Collections.<X509Certificate>emptyList();
+            if (!additional.isEmpty()) {
+                anchors = new HashSet<TrustAnchor>(anchors);
+                for (X509Certificate ca : additional) {
+                    anchors.add(new TrustAnchor(ca, null));
+                }
+            }
+
+            X509Certificate leaf = chain.get(0);
+            if (anchorCerts.contains(leaf) || additional.contains(leaf)) {
+                return true;
+            }
+
+            X509CertSelector target = new X509CertSelector();
+            target.setCertificate(leaf);
+            PKIXBuilderParameters params = new PKIXBuilderParameters(anchors, target);
+            params.setRevocationEnabled(false);
+            // the presented certificates in any order, the builder picks the issuers it needs among them
+            params.addCertStore(CertStore.getInstance("Collection", new CollectionCertStoreParameters(chain)));
+            CertPathBuilder.getInstance("PKIX").build(params);
+            return true;
+        } catch (CertPathBuilderException e) {
+            logger.info("Chain of [{}] is not trusted: {}",
+                    chain.get(0).getSubjectX500Principal().getName(), e.getMessage());
+            return false;
+        } catch (GeneralSecurityException e) {
+            logger.error("Failed to validate chain of [{}]", chain.get(0).getSubjectX500Principal().getName(), e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the anchors of the JVM default trust managers (JDK cacerts, or {@code javax.net.ssl.trustStore})
+     */
+    public static Set<TrustAnchor> jvmTrustAnchors() throws GeneralSecurityException {
+        return jvmAnchors().anchors;
+    }
+
+    /**
+     * Drops the cached JVM anchors, the next validation reads the default truststore again.
+     */
+    public static void reset() {
+        jvmAnchors = null;
+    }
+
+    private static JvmAnchors jvmAnchors() throws GeneralSecurityException {
+        JvmAnchors anchors = jvmAnchors;
+        if (anchors == null) {
+            synchronized (OfflineChainValidator.class) {
+                anchors = jvmAnchors;
+                if (anchors == null) {
+                    TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                    tmf.init((KeyStore) null);
+                    Set<TrustAnchor> loaded = new HashSet<TrustAnchor>();
+                    List<X509Certificate> anchorCerts = new ArrayList<X509Certificate>();
+                    for (TrustManager tm : tmf.getTrustManagers()) {
+                        if (tm instanceof X509TrustManager) {
+                            for (X509Certificate issuer : ((X509TrustManager) tm).getAcceptedIssuers()) {
+                                loaded.add(new TrustAnchor(issuer, null));
+                                anchorCerts.add(issuer);
+                            }
+                        }
+                    }
+                    anchors = new JvmAnchors(Collections.unmodifiableSet(loaded), FingerprintSet.of(anchorCerts));
+                    jvmAnchors = anchors;
+                }
+            }
+        }
+        return anchors;
+    }
+
+    /**
+     * The anchors and their fingerprints, swapped together so a reset never splits them.
+     */
+    private static final class JvmAnchors {
+
+        private final Set<TrustAnchor> anchors;
+        private final FingerprintSet fingerprints;
+
+        JvmAnchors(Set<TrustAnchor> anchors, FingerprintSet fingerprints) {
+            this.anchors = anchors;
+            this.fingerprints = fingerprints;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.neuwton.tasdeeq.trust;
+
+import com.neuwton.tasdeeq.concurrent.TasdeeqExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.cert.*;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads certificates from PEM bundles without copying the file onto the heap: the file is memory-mapped, split into
+ * chunks of at least {@value #MIN_CHUNK_BYTES} bytes, and every chunk is scanned and decoded on the validation pool. A
+ * chunk owns the {@code BEGIN CERTIFICATE} markers starting inside it and reads past its end to the matching
+ * {@code END} marker, so certificates straddling a boundary are decoded exactly once. Certificates keep the order of
+ * the file. Blocks other than {@code CERTIFICATE} (keys, CRLs) are skipped, a file without any PEM marker is read as
+ * DER.
+ */
+public final class PemBundleParser {
+
+    private static final Logger logger = LoggerFactory.getLogger(PemBundleParser.class);
+
+    public static final int MIN_CHUNK_BYTES = 256 * 1024;
+
+    private static final byte[] BEGIN = "-----BEGIN CERTIFICATE-----".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] END = "-----END CERTIFICATE-----".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ANY_BEGIN = "-----BEGIN ".getBytes(StandardCharsets.US_ASCII);
+
+    private PemBundleParser() {
+    }
+
+    public static List<X509Certificate> parse(Path file) throws IOException, CertificateException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0) {
+                return Collections.emptyList();
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("PEM bundle [" + file + "] is larger than 2 GB");
+            }
+            return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), file.toString());
+        }
+    }
+
+    /**
+     * @param pem  PEM or DER content between position and limit, the buffer itself is not modified
+     * @param name what to call the content in errors and logs
+     */
+    public static List<X509Certificate> parse(ByteBuffer pem, final String name) throws IOException, CertificateException {
+        final ByteBuffer content = pem.slice();
+        int size = content.limit();
+        if (indexOf(content, BEGIN, 0) < 0) {
+            if (indexOf(content, ANY_BEGIN, 0) >= 0) {
+                // PEM, but only keys, CRLs or the like
+                logger.debug("No certificate in [{}], skipped", name);
+                return Collections.emptyList();
+            }
+            return der(content, name);
+        }
+        int chunks = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), size / MIN_CHUNK_BYTES));
+        if (chunks == 1) {
+            return parseRange(content, 0, size, name);
+        }
+        List<X509Certificate>[] parsed = newChunkArray(chunks);
+        AtomicReference<CertificateException> failure = new AtomicReference<CertificateException>();
+        // CPU bound, and the directory loader calls this from probe pool threads: never block those on each other
+        TasdeeqExecutor.validationPool().invoke(new ChunkTask(content, name, size, chunks, parsed, failure, 0, chunks));
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        List<X509Certificate> certificates = new ArrayList<X509Certificate>();
+        for (List<X509Certificate> chunk : parsed) {
+            certificates.addAll(chunk);
+        }
+        logger.debug("Parsed {} certificates from [{}] in {} chunks", certificates.size(), name, chunks);
+        return certificates;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<X509Certificate>[] newChunkArray(int chunks) {
+        return (List<X509Certificate>[]) new List<?>[chunks];
+    }
+
+    /**
+     * Decodes the chunks {@code [from, to)}, splitting down to one chunk per task. The first failure is kept, the
+     * chunks still to run are skipped then.
+     */
+    private static final class ChunkTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer content;
+        private final String name;
+        private final int size;
+        private final int chunks;
+        private final List<X509Certificate>[] parsed;
+        private final AtomicReference<CertificateException> failure;
+        private final int from;
+        private final int to;
+
+        ChunkTask(ByteBuffer content, String name, int size, int chunks, List<X509Certificate>[] parsed,
+                  AtomicReference<CertificateException> failure, int from, int to) {
+            this.content = content;
+            this.name = name;
+            this.size = size;
+            this.chunks = chunks;
+            this.parsed = parsed;
+            this.failure = failure;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                if (failure.get() != null) {
+                    return;
+                }
+                try {
+                    parsed[from] = parseRange(content.duplicate(), (int) ((long) size * from / chunks),
+                            (int) ((long) size * (from + 1) / chunks), name);
+                } catch (CertificateException e) {
+                    failure.compareAndSet(null, e);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new ChunkTask(content, name, size, chunks, parsed, failure, from, middle),
+                    new ChunkTask(content, name, size, chunks, parsed, failure, middle, to));
+        }
+    }
+
+    /**
+     * Decodes the certificates whose BEGIN marker starts in {@code [from, to)}.
+     */
+    private static List<X509Certificate> parseRange(ByteBuffer content, int from, int to, String name)
+            throws CertificateException {
+        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        List<X509Certificate> certificates = new ArrayList<X509Certificate>();
+        int begin = indexOf(content, BEGIN, from);
+        while (begin >= 0 && begin < to) {
+            int bodyStart = begin + BEGIN.length;
+            int end = indexOf(content, END, bodyStart);
+            if (end < 0) {
+                throw new CertificateParsingException("Unterminated certificate at offset " + begin + " of [" + name + "]");
+            }
+            byte[] der;
+            try {
+                der = Base64.getDecoder().decode(base64(content, bodyStart, end));
+            } catch (IllegalArgumentException e) {
+                throw new CertificateParsingException("Malformed base64 in certificate at offset " + begin + " of [" + name + "]", e);
+            }
+            certificates.add((X509Certificate) factory.generateCertificate(new ByteArrayInputStream(der)));
+            begin = indexOf(content, BEGIN, end + END.length);
+        }
+        return certificates;
+    }
+
+    private static List<X509Certificate> der(ByteBuffer content, String name) throws CertificateException {
+        byte[] der = new byte[content.limit()];
+        content.duplicate().get(der);
+        List<X509Certificate> certificates = new ArrayList<X509Certificate>();
+        for (Certificate certificate : CertificateFactory.getInstance("X.509")
+                .generateCertificates(new ByteArrayInputStream(der))) {
+            if (certificate instanceof X509Certificate) {
+                certificates.add((X509Certificate) certificate);
+            }
+        }
+        logger.debug("Parsed {} DER certificates from [{}]", certificates.size(), name);
+        return certificates;
+    }
+
+    /**
+     * @return the base64 characters in {@code [from, to)}, line breaks and other whitespace left out
+     */
+    private static byte[] base64(ByteBuffer content, int from, int to) {
+        byte[] chars = new byte[to - from];
+        int length = 0;
+        for (int i = from; i < to; i++) {
+            byte b = content.get(i);
+            if (b != '\n' && b != '\r' && b != ' ' && b != '\t') {
+                chars[length++] = b;
+            }
+        }
+        byte[] trimmed = new byte[length];
+        System.arraycopy(chars, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    private static int indexOf(ByteBuffer content, byte[] marker, int from) {
+        int last = content.limit() - marker.length;
+        for (int i = Math.max(0, from); i <= last; i++) {
+            if (content.get(i) != marker[0]) {
+                continue;
+            }
+            int j = 1;
+            while (j < marker.length && content.get(i + j) == marker[j]) {
+                j++;
+            }
+            if (j == marker.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
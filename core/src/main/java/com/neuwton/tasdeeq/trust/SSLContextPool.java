@@ -0,0 +1,225 @@
+package com.neuwton.tasdeeq.trust;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.*;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of ready-to-use client {@link SSLContext}s, keyed by validation mode and, for custom trust, the fingerprint
+ * of the additional CA set. Building a context loads the default trust managers, a keystore of the custom CAs and
+ * seeds a random source, which for a handshake against a nearby host costs more than the handshake itself.
+ * Contexts are thread-safe and never change once built, so one context serves every probe sharing its trust
+ * configuration.
+ * <p>
+ * Handshakes on a pooled context must not resume sessions, a resumed session would report the chain captured by an
+ * earlier probe. The handshake engines invalidate every session once its peer certificates are read.
+ */
+public final class SSLContextPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(SSLContextPool.class);
+
+    public static final int MAX_CUSTOM_CONTEXTS = 64;
+
+    private static final String JVM_TRUST = "jvm";
+    private static final String CAPTURE = "capture";
+    private static final String CUSTOM_TRUST_PREFIX = "custom:";
+
+    private static final Map<String, SSLContext> CONTEXTS = new LinkedHashMap<String, SSLContext>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SSLContext> eldest) {
+            // the JVM and capture contexts count too, but are used far more often than any custom CA set
+            return size() > MAX_CUSTOM_CONTEXTS + 2;
+        }
+    };
+    private static final AtomicLong builds = new AtomicLong();
+
+    private SSLContextPool() {
+    }
+
+    /**
+     * @return a context validating against the default trust managers (JDK cacerts, or
+     * {@code javax.net.ssl.trustStore})
+     */
+    public static SSLContext jvmTrust() throws NoSuchAlgorithmException, KeyManagementException {
+        SSLContext context = lookup(JVM_TRUST);
+        if (context == null) {
+            context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+            context = register(JVM_TRUST, context);
+        }
+        return context;
+    }
+
+    /**
+     * A context that accepts any server chain, so a single handshake captures whatever is presented; trust is then
+     * decided offline by {@link OfflineChainValidator}. Extending {@link X509ExtendedTrustManager} keeps JSSE from
+     * wrapping it with checks of its own.
+     */
+    public static SSLContext capture() throws NoSuchAlgorithmException, KeyManagementException {
+        SSLContext context = lookup(CAPTURE);
+        if (context == null) {
+            logger.warn("DISABLING certificate validation, only to fetch certificates, insecure mode is risky");
+            TrustManager[] captureCerts = new TrustManager[]{
+                    new X509ExtendedTrustManager() {
+                        public void checkClientTrusted(X509Certificate[] certs, String authType) {}
+                        public void checkClientTrusted(X509Certificate[] certs, String authType, Socket socket) {}
+                        public void checkClientTrusted(X509Certificate[] certs, String authType, SSLEngine engine) {}
+                        public void checkServerTrusted(X509Certificate[] certs, String authType) {}
+                        public void checkServerTrusted(X509Certificate[] certs, String authType, Socket socket) {}
+                        public void checkServerTrusted(X509Certificate[] certs, String authType, SSLEngine engine) {}
+                        public X509Certificate[] getAcceptedIssuers() { return new X509Certificate[0]; }
+                    }
+            };
+            context = SSLContext.getInstance("TLS");
+            context.init(null, captureCerts, null);
+            context = register(CAPTURE, context);
+        }
+        return context;
+    }
+
+    /**
+     * @return a context trusting the default trust managers plus the additional CAs, shared by every caller passing
+     * the same CA set in any order
+     */
+    public static SSLContext customTrust(X509Certificate... additionalCAs) throws NoSuchAlgorithmException, KeyStoreException,
+            CertificateException, KeyManagementException {
+        String key = CUSTOM_TRUST_PREFIX + fingerprint(additionalCAs);
+        SSLContext context = lookup(key);
+        if (context == null) {
+            context = register(key, newCustomTrustSSLContext(additionalCAs));
+        }
+        return context;
+    }
+
+    /**
+     * @return hex SHA-256 over the sorted SHA-256 fingerprints of the certificates, independent of their order
+     */
+    public static String fingerprint(X509Certificate... certificates) throws NoSuchAlgorithmException, CertificateEncodingException {
+        List<String> digests = new ArrayList<String>(certificates.length);
+        for (X509Certificate certificate : certificates) {
+            digests.add(Digests.sha256Hex(certificate));
+        }
+        Collections.sort(digests);
+        MessageDigest combined = MessageDigest.getInstance("SHA-256");
+        for (String digest : digests) {
+            combined.update(digest.getBytes(StandardCharsets.US_ASCII));
+        }
+        return Digests.toHex(combined.digest());
+    }
+
+    /**
+     * Drops every pooled context, e.g. after the JVM truststore changed.
+     */
+    public static void clear() {
+        synchronized (CONTEXTS) {
+            CONTEXTS.clear();
+        }
+    }
+
+    public static int size() {
+        synchronized (CONTEXTS) {
+            return CONTEXTS.size();
+        }
+    }
+
+    /**
+     * @return number of contexts built since startup, a pool hit builds none
+     */
+    public static long getBuildCount() {
+        return builds.get();
+    }
+
+    private static SSLContext lookup(String key) {
+        synchronized (CONTEXTS) {
+            return CONTEXTS.get(key);
+        }
+    }
+
+    // built outside the lock, a racing builder of the same key keeps the first context
+    private static SSLContext register(String key, SSLContext built) {
+        builds.incrementAndGet();
+        synchronized (CONTEXTS) {
+            SSLContext existing = CONTEXTS.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            CONTEXTS.put(key, built);
+            return built;
+        }
+    }
+
+    private static SSLContext newCustomTrustSSLContext(X509Certificate... additionalCAs) throws NoSuchAlgorithmException,
+            KeyStoreException, CertificateException, KeyManagementException {
+        // Load the default system truststore (JDK cacerts)
+        TrustManagerFactory defaultTmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        defaultTmf.init((KeyStore) null);
+
+        KeyStore customTrustStore = KeyStore.getInstance("PKCS12");
+        try {
+            customTrustStore.load(null, null);
+        } catch (IOException e) {
+            // an empty keystore reads nothing
+            throw new KeyStoreException(e);
+        }
+        for (int i = 0; i < additionalCAs.length; i++) {
+            customTrustStore.setCertificateEntry(additionalCAs[i].getSubjectX500Principal().getName() + "-custom-ca", additionalCAs[i]);
+            logger.info("x509Certificate with CN {} and issuer {} added to the trust manager(store)", additionalCAs[i].getSubjectX500Principal().getName(), additionalCAs[i].getIssuerX500Principal().getName());
+        }
+
+        TrustManagerFactory customTmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        customTmf.init(customTrustStore);
+
+        final X509TrustManager defaultTm = (X509TrustManager) defaultTmf.getTrustManagers()[0];
+        final X509TrustManager customTm = (X509TrustManager) customTmf.getTrustManagers()[0];
+
+        X509TrustManager combinedTm = new X509TrustManager() {
+
+            public void checkClientTrusted(X509Certificate[] chain, String authType)
+                    throws CertificateException {
+                try {
+                    defaultTm.checkClientTrusted(chain, authType);
+                } catch (CertificateException e) {
+                    customTm.checkClientTrusted(chain, authType);
+                }
+            }
+
+            public void checkServerTrusted(X509Certificate[] chain, String authType)
+                    throws CertificateException {
+                try {
+                    defaultTm.checkServerTrusted(chain, authType);
+                } catch (CertificateException e) {
+                    customTm.checkServerTrusted(chain, authType);
+                }
+            }
+
+            public X509Certificate[] getAcceptedIssuers() {
+                X509Certificate[] defaultIssuers = defaultTm.getAcceptedIssuers();
+                X509Certificate[] customIssuers = customTm.getAcceptedIssuers();
+                X509Certificate[] combined = new X509Certificate[
+                        defaultIssuers.length + customIssuers.length];
+                System.arraycopy(defaultIssuers, 0, combined, 0, defaultIssuers.length);
+                System.arraycopy(customIssuers, 0, combined, defaultIssuers.length, customIssuers.length);
+                return combined;
+            }
+        };
+
+        SSLContext sc = SSLContext.getInstance("TLS");
+        sc.init(null, new TrustManager[]{combinedTm}, null);
+        logger.info("Custom Trust Manager --> accepted issuers count: {}", customTm.getAcceptedIssuers().length);
+        return sc;
+    }
+}
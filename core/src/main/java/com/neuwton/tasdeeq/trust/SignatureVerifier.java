@@ -0,0 +1,119 @@
+package com.neuwton.tasdeeq.trust;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.cert.X509Certificate;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memoized certificate signature checks. The outcome of {@code cert.verify(issuerKey)} only depends on the encoded
+ * certificate and the issuer's public key, so it is cached by the SHA-256 of both: a popular root or intermediate
+ * is verified once per JVM instead of once per probe and per health check. Hashing the encodings costs a fraction
+ * of a public-key operation.
+ * <p>
+ * The cache holds at most {@value #MAX_ENTRIES} outcomes; past that an arbitrary entry makes room, the next check of
+ * it just verifies again. Only real outcomes are kept, a bad signature or a key that does not fit; a check that could
+ * not be made, e.g. for an algorithm whose provider is not registered yet, answers false and is tried again next time.
+ */
+public final class SignatureVerifier {
+
+    private static final Logger logger = LoggerFactory.getLogger(SignatureVerifier.class);
+
+    public static final int MAX_ENTRIES = 4096;
+
+    private static final ConcurrentMap<String, Boolean> OUTCOMES = new ConcurrentHashMap<String, Boolean>();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private SignatureVerifier() {
+    }
+
+    /**
+     * @return true if the certificate's signature verifies with the issuer's public key
+     */
+    public static boolean verifies(X509Certificate cert, PublicKey issuerKey) {
+        String key;
+        try {
+            key = key(cert, issuerKey);
+        } catch (GeneralSecurityException e) {
+            // no memo without a key, still answer the question
+            logger.debug("Cannot fingerprint [{}], verifying uncached: {}", cert.getSubjectX500Principal().getName(), e.getMessage());
+            return Boolean.TRUE.equals(verifyNow(cert, issuerKey));
+        }
+        Boolean outcome = OUTCOMES.get(key);
+        if (outcome != null) {
+            hits.incrementAndGet();
+            return outcome;
+        }
+        misses.incrementAndGet();
+        Boolean verified = verifyNow(cert, issuerKey);
+        if (verified == null) {
+            return false;
+        }
+        if (OUTCOMES.size() >= MAX_ENTRIES) {
+            Iterator<String> keys = OUTCOMES.keySet().iterator();
+            if (keys.hasNext()) {
+                keys.next();
+                keys.remove();
+            }
+        }
+        OUTCOMES.put(key, verified);
+        return verified;
+    }
+
+    /**
+     * @return true if the certificate verifies with its own public key, whatever its subject and issuer names
+     */
+    public static boolean verifiesWithOwnKey(X509Certificate cert) {
+        return verifies(cert, cert.getPublicKey());
+    }
+
+    public static long getHitCount() {
+        return hits.get();
+    }
+
+    public static long getMissCount() {
+        return misses.get();
+    }
+
+    public static int size() {
+        return OUTCOMES.size();
+    }
+
+    public static void clear() {
+        OUTCOMES.clear();
+    }
+
+    /**
+     * @return whether the signature verifies, null if that could not be decided
+     */
+    private static Boolean verifyNow(X509Certificate cert, PublicKey issuerKey) {
+        try {
+            cert.verify(issuerKey);
+            return Boolean.TRUE;
+        } catch (SignatureException | InvalidKeyException e) {
+            logger.trace("Signature of [{}] does not verify: {}", cert.getSubjectX500Principal().getName(), e.getMessage());
+            return Boolean.FALSE;
+        } catch (Exception e) {
+            logger.warn("Cannot verify the signature of [{}] ({}): {}", cert.getSubjectX500Principal().getName(),
+                    cert.getSigAlgName(), e.toString());
+            return null;
+        }
+    }
+
+    private static String key(X509Certificate cert, PublicKey issuerKey) throws GeneralSecurityException {
+        byte[] spki = issuerKey.getEncoded();
+        if (spki == null) {
+            throw new InvalidKeyException("Issuer key has no encoding");
+        }
+        return Digests.sha256Hex(cert.getEncoded()) + ":" + Digests.sha256Hex(spki);
+    }
+}
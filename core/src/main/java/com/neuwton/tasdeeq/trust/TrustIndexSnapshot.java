@@ -0,0 +1,189 @@
+package com.neuwton.tasdeeq.trust;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A binary snapshot of the root CAs of an index, so a short-lived JVM can skip loading its trust sources and
+ * verifying every self-signature. The file is written next to its final name and moved into place, and read through a
+ * memory mapping. It is only used when it was written for the same trust sources, byte for byte: the checksum of
+ * {@link #checksum(List)} is stored in the header. Each certificate is checked against its stored SHA-256 fingerprint
+ * before it is parsed, so a truncated or corrupted snapshot is rejected, never half used.
+ * <p>
+ * The snapshot is trusted as much as the truststore itself: its checksum is an unkeyed SHA-256 of public inputs
+ * and protects against corruption, not tampering. Anyone who can write the snapshot file can make the index trust
+ * any root they like, so keep it in a location that is as write-protected as the truststore.
+ * <p>
+ * Layout, big-endian: the magic {@code TSDQSNP1}, a version int, a count int and the 32 byte checksum; then per
+ * certificate its 32 byte fingerprint, offset int and length int; then the DER encodings.
+ */
+public final class TrustIndexSnapshot {
+
+    private static final Logger logger = LoggerFactory.getLogger(TrustIndexSnapshot.class);
+
+    private static final byte[] MAGIC = "TSDQSNP1".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int SHA256_LENGTH = 32;
+    private static final int HEADER_BYTES = MAGIC.length + 4 + 4 + SHA256_LENGTH;
+    private static final int ENTRY_BYTES = SHA256_LENGTH + 4 + 4;
+
+    private TrustIndexSnapshot() {
+    }
+
+    /**
+     * @return SHA-256 over the name, location and content of every source, or null when one of them is not file
+     * based or cannot be read, such sources cannot be snapshotted
+     */
+    public static byte[] checksum(List<? extends TrustSource> sources) {
+        MessageDigest sha256 = sha256();
+        for (TrustSource source : sources) {
+            Path path = source.getPath();
+            byte[] content = path != null ? TruststoreWatcher.checksum(path) : null;
+            if (content == null) {
+                return null;
+            }
+            sha256.update(source.toString().getBytes(StandardCharsets.UTF_8));
+            sha256.update(path.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8));
+            sha256.update(content);
+        }
+        return sha256.digest();
+    }
+
+    public static void write(Path file, byte[] checksum, List<X509Certificate> roots) throws IOException {
+        if (checksum == null || checksum.length != SHA256_LENGTH) {
+            throw new IllegalArgumentException("A SHA-256 checksum is required");
+        }
+        List<byte[]> encodings = new ArrayList<byte[]>(roots.size());
+        int size = HEADER_BYTES + roots.size() * ENTRY_BYTES;
+        for (X509Certificate root : roots) {
+            try {
+                encodings.add(root.getEncoded());
+            } catch (CertificateEncodingException e) {
+                throw new IOException("Cannot encode [" + root.getSubjectX500Principal().getName() + "]", e);
+            }
+            size += encodings.get(encodings.size() - 1).length;
+        }
+        ByteBuffer snapshot = ByteBuffer.allocate(size);
+        snapshot.put(MAGIC).putInt(VERSION).putInt(encodings.size()).put(checksum);
+        MessageDigest sha256 = sha256();
+        int offset = HEADER_BYTES + encodings.size() * ENTRY_BYTES;
+        for (byte[] encoding : encodings) {
+            snapshot.put(sha256.digest(encoding)).putInt(offset).putInt(encoding.length);
+            offset += encoding.length;
+        }
+        for (byte[] encoding : encodings) {
+            snapshot.put(encoding);
+        }
+
+        Path target = file.toAbsolutePath();
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                out.write(snapshot.array());
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        logger.info("Wrote snapshot of {} root CAs to [{}], {} bytes", encodings.size(), target, size);
+    }
+
+    /**
+     * @return the roots of the snapshot, or null when there is none, it was written for other trust sources, or it
+     * is damaged
+     */
+    public static List<X509Certificate> read(Path file, byte[] checksum) {
+        if (checksum == null || !Files.isRegularFile(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                logger.warn("Ignoring snapshot [{}], {} bytes is not a snapshot", file, size);
+                return null;
+            }
+            ByteBuffer snapshot = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            byte[] magic = new byte[MAGIC.length];
+            snapshot.get(magic);
+            int version = snapshot.getInt();
+            if (!Arrays.equals(magic, MAGIC) || version != VERSION) {
+                logger.warn("Ignoring snapshot [{}], unknown format", file);
+                return null;
+            }
+            int count = snapshot.getInt();
+            byte[] stored = new byte[SHA256_LENGTH];
+            snapshot.get(stored);
+            if (!Arrays.equals(stored, checksum)) {
+                logger.info("Ignoring snapshot [{}], the trust sources changed since it was written", file);
+                return null;
+            }
+            if (count < 0 || HEADER_BYTES + (long) count * ENTRY_BYTES > size) {
+                logger.warn("Ignoring snapshot [{}], truncated", file);
+                return null;
+            }
+            return certificates(file, snapshot, count);
+        } catch (IOException | CertificateException e) {
+            logger.warn("Ignoring snapshot [{}]: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    private static List<X509Certificate> certificates(Path file, ByteBuffer snapshot, int count)
+            throws CertificateException {
+        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        MessageDigest sha256 = sha256();
+        List<X509Certificate> roots = new ArrayList<X509Certificate>(count);
+        byte[] fingerprint = new byte[SHA256_LENGTH];
+        for (int i = 0; i < count; i++) {
+            int entry = HEADER_BYTES + i * ENTRY_BYTES;
+            snapshot.position(entry);
+            snapshot.get(fingerprint);
+            int offset = snapshot.getInt();
+            int length = snapshot.getInt();
+            if (offset < HEADER_BYTES || length <= 0 || (long) offset + length > snapshot.limit()) {
+                logger.warn("Ignoring snapshot [{}], entry {} points outside the file", file, i);
+                return null;
+            }
+            byte[] der = new byte[length];
+            snapshot.position(offset);
+            snapshot.get(der);
+            if (!Arrays.equals(sha256.digest(der), fingerprint)) {
+                logger.warn("Ignoring snapshot [{}], entry {} does not match its fingerprint", file, i);
+                return null;
+            }
+            roots.add((X509Certificate) factory.generateCertificate(new ByteArrayInputStream(der)));
+        }
+        return roots;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM ships SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.neuwton.tasdeeq.trust;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+/**
+ * Where trusted certificates come from, read by {@code CertificateAuthorityTasdeeq} to build its root CA index.
+ *
+ * @see TrustSources for the JVM default truststore, JKS and PKCS12 stores, PEM bundles and PEM directories
+ */
+public interface TrustSource {
+
+    /**
+     * Reads the certificates as they are now, every call reads them again.
+     */
+    List<X509Certificate> load() throws IOException, GeneralSecurityException;
+
+    /**
+     * @return the file or directory the certificates are read from, for watching it; null when not file based
+     */
+    Path getPath();
+}
@@ -0,0 +1,238 @@
+package com.neuwton.tasdeeq.trust;
+
+import com.neuwton.tasdeeq.concurrent.TasdeeqExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link TrustSource}s tasdeeq can read.
+ */
+public final class TrustSources {
+
+    private static final Logger logger = LoggerFactory.getLogger(TrustSources.class);
+
+    private static final long DIRECTORY_LOAD_TIMEOUT_SECONDS = 60;
+
+    private TrustSources() {
+    }
+
+    /**
+     * @return the accepted issuers of the JVM default trust managers (JDK cacerts, or {@code javax.net.ssl.trustStore})
+     */
+    public static TrustSource jvmDefault() {
+        return new JvmDefault();
+    }
+
+    public static TrustSource jks(Path path, char[] password) {
+        return keyStore(path, "JKS", password);
+    }
+
+    public static TrustSource pkcs12(Path path, char[] password) {
+        return keyStore(path, "PKCS12", password);
+    }
+
+    /**
+     * @param type     a {@link KeyStore} type
+     * @param password store password, null to read the certificates without checking the store's integrity
+     * @return the trusted certificate entries of the store, key entries are left out as the JDK trust managers do
+     */
+    public static TrustSource keyStore(Path path, String type, char[] password) {
+        return new KeyStoreSource(path, type, password);
+    }
+
+    /**
+     * @return every {@code CERTIFICATE} block of a PEM file, see {@link PemBundleParser}
+     */
+    public static TrustSource pemBundle(Path path) {
+        return new PemBundle(path);
+    }
+
+    /**
+     * @return the certificates of every {@code .pem}, {@code .crt} and {@code .cer} file directly in the directory,
+     * PEM or DER encoded, files read in parallel
+     */
+    public static TrustSource pemDirectory(Path directory) {
+        return new PemDirectory(directory);
+    }
+
+    private static final class JvmDefault implements TrustSource {
+
+        public List<X509Certificate> load() throws GeneralSecurityException {
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init((KeyStore) null); // Pass null to use the default truststore
+            List<X509Certificate> certificates = new ArrayList<X509Certificate>();
+            for (TrustManager tm : tmf.getTrustManagers()) {
+                if (tm instanceof X509TrustManager) {
+                    certificates.addAll(Arrays.asList(((X509TrustManager) tm).getAcceptedIssuers()));
+                }
+            }
+            return certificates;
+        }
+
+        public Path getPath() {
+            return TruststoreWatcher.defaultTruststore();
+        }
+
+        @Override
+        public String toString() {
+            return "JVM default truststore";
+        }
+    }
+
+    private static final class KeyStoreSource implements TrustSource {
+
+        private final Path path;
+        private final String type;
+        private final char[] password;
+
+        KeyStoreSource(Path path, String type, char[] password) {
+            this.path = path;
+            this.type = type;
+            this.password = password != null ? password.clone() : null;
+        }
+
+        public List<X509Certificate> load() throws IOException, GeneralSecurityException {
+            KeyStore keyStore = KeyStore.getInstance(type);
+            try (InputStream in = Files.newInputStream(path)) {
+                keyStore.load(in, password);
+            }
+            List<X509Certificate> certificates = new ArrayList<X509Certificate>();
+            for (String alias : Collections.list(keyStore.aliases())) {
+                if (keyStore.isCertificateEntry(alias)) {
+                    Certificate certificate = keyStore.getCertificate(alias);
+                    if (certificate instanceof X509Certificate) {
+                        certificates.add((X509Certificate) certificate);
+                    }
+                }
+            }
+            return certificates;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + path;
+        }
+    }
+
+    private static final class PemBundle implements TrustSource {
+
+        private final Path path;
+
+        PemBundle(Path path) {
+            this.path = path;
+        }
+
+        public List<X509Certificate> load() throws IOException, GeneralSecurityException {
+            return PemBundleParser.parse(path);
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        @Override
+        public String toString() {
+            return "PEM bundle " + path;
+        }
+    }
+
+    private static final class PemDirectory implements TrustSource {
+
+        private final Path directory;
+
+        PemDirectory(Path directory) {
+            this.directory = directory;
+        }
+
+        public List<X509Certificate> load() throws IOException, GeneralSecurityException {
+            List<Path> files = new ArrayList<Path>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, "*.{pem,crt,cer}")) {
+                for (Path entry : entries) {
+                    if (Files.isRegularFile(entry)) {
+                        files.add(entry);
+                    }
+                }
+            }
+            Collections.sort(files);
+            List<Callable<List<X509Certificate>>> tasks = new ArrayList<Callable<List<X509Certificate>>>(files.size());
+            for (final Path file : files) {
+                tasks.add(new Callable<List<X509Certificate>>() {
+                    public List<X509Certificate> call() throws Exception {
+                        return PemBundleParser.parse(file);
+                    }
+                });
+            }
+            List<X509Certificate> certificates = new ArrayList<X509Certificate>();
+            List<Future<List<X509Certificate>>> futures;
+            try {
+                futures = TasdeeqExecutor.invokeAll(TasdeeqExecutor.defaultExecutor(),
+                        tasks, DIRECTORY_LOAD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading [" + directory + "]");
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                certificates.addAll(get(futures.get(i), files.get(i)));
+            }
+            logger.debug("Read {} certificates from {} files in [{}]", certificates.size(), files.size(), directory);
+            return certificates;
+        }
+
+        public Path getPath() {
+            return directory;
+        }
+
+        @Override
+        public String toString() {
+            return "PEM directory " + directory;
+        }
+    }
+
+    /**
+     * @param future done or cancelled, as {@link TasdeeqExecutor#invokeAll} hands them back
+     */
+    private static List<X509Certificate> get(Future<List<X509Certificate>> future, Path file)
+            throws IOException, GeneralSecurityException {
+        if (future.isCancelled()) {
+            throw new IOException("Timed out reading [" + file + "]");
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            }
+            throw new IOException("Failed to read [" + file + "]", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading [" + file + "]");
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.neuwton.tasdeeq.trust;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Watches truststore files and directories and runs a callback when their content changes. Changes are noticed
+ * through a {@link WatchService} on the parent directories, and through polling every interval as a fallback for
+ * file systems that do not deliver events (network and container volume mounts, symlink swaps). Either way a change
+ * is only reported when the SHA-256 of a file, or of the files of a directory, differs from the last one seen, so a
+ * touch or a rewrite with the same content does nothing.
+ * <p>
+ * The callback runs on the watcher's own daemon thread, once per round of changes.
+ */
+public final class TruststoreWatcher implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TruststoreWatcher.class);
+
+    private final List<Watched> watched;
+    private final long pollIntervalMillis;
+    private final Runnable onChange;
+    private final WatchService watchService;
+    private final Thread thread;
+    private final AtomicLong changes = new AtomicLong();
+    private volatile boolean closed;
+
+    private TruststoreWatcher(Collection<Path> truststores, long pollInterval, TimeUnit unit, Runnable onChange) {
+        this.watched = new ArrayList<Watched>(truststores.size());
+        for (Path truststore : truststores) {
+            this.watched.add(new Watched(truststore.toAbsolutePath()));
+        }
+        this.pollIntervalMillis = Math.max(1, unit.toMillis(pollInterval));
+        this.onChange = onChange;
+        this.watchService = newWatchService(this.watched);
+        this.thread = new Thread(new Runnable() {
+            public void run() {
+                watch();
+            }
+        }, "tasdeeq-truststore-watcher");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * @param truststore   the file or directory to watch, it does not have to exist yet
+     * @param pollInterval how often to check when no event arrives
+     * @param onChange     run after every content change
+     */
+    public static TruststoreWatcher start(Path truststore, long pollInterval, TimeUnit unit, Runnable onChange) {
+        return start(Collections.singletonList(truststore), pollInterval, unit, onChange);
+    }
+
+    public static TruststoreWatcher start(Collection<Path> truststores, long pollInterval, TimeUnit unit, Runnable onChange) {
+        TruststoreWatcher watcher = new TruststoreWatcher(truststores, pollInterval, unit, onChange);
+        watcher.thread.start();
+        logger.info("Watching truststores {}, polling every {} ms{}", watcher.getTruststores(), watcher.pollIntervalMillis,
+                watcher.watchService == null ? " (file events unavailable)" : "");
+        return watcher;
+    }
+
+    /**
+     * @return the truststore the JVM default trust managers load: {@code javax.net.ssl.trustStore} if set, else
+     * {@code jssecacerts} if present, else {@code cacerts} of the running JRE; null when trust is not file based
+     */
+    public static Path defaultTruststore() {
+        String configured = System.getProperty("javax.net.ssl.trustStore");
+        if (configured != null && !configured.isEmpty()) {
+            return "NONE".equals(configured) ? null : Paths.get(configured);
+        }
+        Path security = Paths.get(System.getProperty("java.home"), "lib", "security");
+        Path jssecacerts = security.resolve("jssecacerts");
+        return Files.exists(jssecacerts) ? jssecacerts : security.resolve("cacerts");
+    }
+
+    public List<Path> getTruststores() {
+        List<Path> truststores = new ArrayList<Path>(watched.size());
+        for (Watched truststore : watched) {
+            truststores.add(truststore.path);
+        }
+        return truststores;
+    }
+
+    /**
+     * @return how many content changes were reported so far
+     */
+    public long getChangeCount() {
+        return changes.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close the watch service of {}: {}", getTruststores(), e.getMessage());
+            }
+        }
+    }
+
+    private void watch() {
+        while (!closed) {
+            try {
+                if (watchService != null) {
+                    WatchKey key = watchService.poll(pollIntervalMillis, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        flagEvents(key);
+                        key.reset();
+                    }
+                } else {
+                    Thread.sleep(pollIntervalMillis);
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                break;
+            }
+            if (!closed) {
+                check();
+            }
+        }
+    }
+
+    private void check() {
+        boolean changed = false;
+        for (Watched truststore : watched) {
+            if (truststore.check()) {
+                changed = true;
+                logger.info("Truststore [{}] changed", truststore.path);
+            }
+        }
+        if (!changed) {
+            return;
+        }
+        changes.incrementAndGet();
+        try {
+            onChange.run();
+        } catch (RuntimeException e) {
+            logger.error("Failed to apply the change of truststores {}", getTruststores(), e);
+        }
+    }
+
+    private void flagEvents(WatchKey key) {
+        Path directory = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            for (Watched truststore : watched) {
+                // an overflow, the truststore itself, a file in a watched directory, or anything next to a symlink
+                if (context == null || directory.equals(truststore.path)
+                        || directory.resolve((Path) context).equals(truststore.path)
+                        || Files.isSymbolicLink(truststore.path)) {
+                    truststore.event = true;
+                }
+            }
+        }
+    }
+
+    private static WatchService newWatchService(List<Watched> watched) {
+        Set<Path> directories = new LinkedHashSet<Path>();
+        for (Watched truststore : watched) {
+            if (truststore.path.getParent() != null && Files.isDirectory(truststore.path.getParent())) {
+                directories.add(truststore.path.getParent());
+            }
+            if (Files.isDirectory(truststore.path)) {
+                directories.add(truststore.path);
+            }
+        }
+        if (directories.isEmpty()) {
+            return null;
+        }
+        WatchService watchService = null;
+        try {
+            watchService = directories.iterator().next().getFileSystem().newWatchService();
+            for (Path directory : directories) {
+                directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            }
+            return watchService;
+        } catch (IOException | UnsupportedOperationException | ProviderMismatchException e) {
+            logger.info("Cannot watch {} for events, polling only: {}", directories, e.getMessage());
+            if (watchService != null) {
+                try {
+                    watchService.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Last seen state of one file or directory, only touched by the watcher thread.
+     */
+    private static final class Watched {
+
+        private final Path path;
+        private byte[] checksum;
+        private long lastModified;
+        private long size;
+        private boolean event;
+
+        Watched(Path path) {
+            this.path = path;
+            this.checksum = checksum(path);
+            this.lastModified = lastModified(path);
+            this.size = size(path);
+        }
+
+        /**
+         * @return true if the content changed since the last check
+         */
+        boolean check() {
+            long currentLastModified = lastModified(path);
+            long currentSize = size(path);
+            boolean flagged = event;
+            event = false;
+            if (!flagged && currentLastModified == lastModified && currentSize == size) {
+                return false;
+            }
+            lastModified = currentLastModified;
+            size = currentSize;
+            // missing, empty or unreadable means in the middle of a replace: keep what was loaded last
+            byte[] current = currentSize > 0 ? checksum(path) : null;
+            if (current == null || Arrays.equals(current, checksum)) {
+                return false;
+            }
+            checksum = current;
+            return true;
+        }
+    }
+
+    /**
+     * @return SHA-256 of the file, or of the names and contents of the files directly in the directory
+     */
+    static byte[] checksum(Path path) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            if (Files.isDirectory(path)) {
+                for (Path file : files(path)) {
+                    sha256.update(file.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+                    digest(sha256, file);
+                }
+            } else {
+                digest(sha256, path);
+            }
+            return sha256.digest();
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            logger.debug("Cannot read truststore [{}]: {}", path, e.getMessage());
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM ships SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void digest(MessageDigest sha256, Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                sha256.update(buffer, 0, read);
+            }
+        }
+    }
+
+    private static List<Path> files(Path directory) throws IOException {
+        List<Path> files = new ArrayList<Path>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                if (Files.isRegularFile(entry)) {
+                    files.add(entry);
+                }
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * @return the latest modification time, of the directory's files for a directory, -1 when missing
+     */
+    private static long lastModified(Path path) {
+        try {
+            long lastModified = Files.getLastModifiedTime(path).toMillis();
+            if (Files.isDirectory(path)) {
+                for (Path file : files(path)) {
+                    lastModified = Math.max(lastModified, Files.getLastModifiedTime(file).toMillis());
+                }
+            }
+            return lastModified;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the size, the total size of the directory's files for a directory, -1 when missing
+     */
+    private static long size(Path path) {
+        try {
+            if (!Files.isDirectory(path)) {
+                return Files.size(path);
+            }
+            long size = 0;
+            for (Path file : files(path)) {
+                size += Files.size(file);
+            }
+            return size;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.neuwton.tasdeeq.concurrent;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Java 21+ variant, every probe gets its own virtual thread.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    static boolean isSupported() {
+        return true;
+    }
+
+    static Executor newPerTaskExecutor(String threadNamePrefix) {
+        ThreadFactory factory = Thread.ofVirtual().name(threadNamePrefix, 1).factory();
+        return runnable -> factory.newThread(runnable).start();
+    }
+}
@@ -4,6 +4,7 @@ import com.neuwton.tasdeeq.CertificateAuthorityTasdeeq;
 import com.neuwton.tasdeeq.DNSTasdeeq;
 import com.neuwton.tasdeeq.DownstreamCertTasdeeq;
 import com.neuwton.tasdeeq.JVMTasdeeq;
+import com.neuwton.tasdeeq.concurrent.TasdeeqExecutor;
 import com.neuwton.tasdeeq.config.actuators.contributors.health.DownstreamCertificateHealthContributor;
 import com.neuwton.tasdeeq.config.actuators.contributors.info.CertificateAuthorityContributor;
 import com.neuwton.tasdeeq.config.actuators.contributors.info.DNSTasdeeqInfoContributor;
@@ -12,34 +13,84 @@ import com.neuwton.tasdeeq.config.props.CertificateAuthorityTasdeeqProps;
 import com.neuwton.tasdeeq.config.props.DNSTasdeeqProps;
 import com.neuwton.tasdeeq.config.props.DownstreamCertTasdeeqProps;
 import com.neuwton.tasdeeq.config.props.JVMTasdeeqProps;
+import com.neuwton.tasdeeq.config.props.TasdeeqExecutorProps;
 import com.neuwton.tasdeeq.exceptions.CertificateValidationException;
 import com.neuwton.tasdeeq.models.*;
+import com.neuwton.tasdeeq.trust.TruststoreWatcher;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.autoconfigure.AutoConfiguration;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnThreading;
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.boot.health.autoconfigure.contributor.ConditionalOnEnabledHealthIndicator;
+import org.springframework.boot.thread.Threading;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.util.CollectionUtils;
 import org.springframework.util.StringUtils;
 import tools.jackson.databind.json.JsonMapper;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.security.*;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static com.neuwton.tasdeeq.utils.TasdeeqStarterConstants.*;
 
-@AutoConfiguration
+@AutoConfiguration(after = TaskExecutionAutoConfiguration.class)
 @EnableConfigurationProperties({
     JVMTasdeeqProps.class, DNSTasdeeqProps.class,
-    CertificateAuthorityTasdeeqProps.class, DownstreamCertTasdeeqProps.class
+    CertificateAuthorityTasdeeqProps.class, DownstreamCertTasdeeqProps.class,
+    TasdeeqExecutorProps.class
 })
 public class TasdeeqAutoConfig {
 
+    /**
+     * Long-lived pool for the batch probes, shut down with the context. It is not a default candidate, so it
+     * neither replaces nor competes with the application's own {@code applicationTaskExecutor}. Define a bean
+     * named {@value com.neuwton.tasdeeq.utils.TasdeeqStarterConstants#TASDEEQ_TASK_EXECUTOR} to supply another.
+     */
+    @Bean(name = TASDEEQ_TASK_EXECUTOR, defaultCandidate = false)
+    @ConditionalOnMissingBean(name = TASDEEQ_TASK_EXECUTOR)
+    @ConditionalOnThreading(Threading.PLATFORM)
+    public ThreadPoolTaskExecutor tasdeeqTaskExecutor(TasdeeqExecutorProps props) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(props.getPoolSize());
+        executor.setMaxPoolSize(props.getPoolSize());
+        executor.setQueueCapacity(props.getQueueCapacity());
+        executor.setAllowCoreThreadTimeOut(true);
+        executor.setThreadNamePrefix(props.getThreadNamePrefix());
+        executor.setDaemon(true);
+        // a full queue makes the batch wait for room within its timeout, the caller never runs probes itself
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+        return executor;
+    }
+
+    /**
+     * With {@code spring.threads.virtual.enabled=true} on Java 21+, every probe runs on its own virtual thread
+     * through the multi-release layer of tasdeeq-core, direct calls to the core batch APIs included.
+     */
+    @Bean(name = TASDEEQ_TASK_EXECUTOR, defaultCandidate = false)
+    @ConditionalOnMissingBean(name = TASDEEQ_TASK_EXECUTOR)
+    @ConditionalOnThreading(Threading.VIRTUAL)
+    public TaskExecutor tasdeeqVirtualThreadTaskExecutor() {
+        TasdeeqExecutor.setVirtualThreadsEnabled(true);
+        return new TaskExecutorAdapter(TasdeeqExecutor.virtualThreadExecutor());
+    }
+
     @Bean
     @ConditionalOnProperty(prefix = NEUWTON_TASDEEQ_JVM_PREFIX, name = ENABLED, havingValue = "true", matchIfMissing = true)
     public JVMTasdeeqResult jvmTasdeeqResult() throws IOException {
@@ -52,23 +103,53 @@ public class TasdeeqAutoConfig {
         return new JVMTasdeeqContributor(result);
     }
 
+    /**
+     * Lazy, so injecting it is the only thing that waits for the root CA index.
+     */
     @Bean
+    @Lazy
     @ConditionalOnProperty(prefix = NEUWTON_TASDEEQ_CA_PREFIX, name = ENABLED, havingValue = "true", matchIfMissing = true)
     public CertificateAuthorityTasdeeqResult certificateAuthorityTasdeeqResult() {
         return CertificateAuthorityTasdeeq.tasdeeq();
     }
 
+    /**
+     * Starts indexing the root CAs on the probe pool and returns right away, the info endpoint reports
+     * INITIALIZING until the index is built.
+     */
     @Bean
-    @ConditionalOnBean(CertificateAuthorityTasdeeqResult.class)
-    public CertificateAuthorityContributor certificateAuthorityContributor(CertificateAuthorityTasdeeqResult result) {
-        return new CertificateAuthorityContributor(result);
+    @ConditionalOnProperty(prefix = NEUWTON_TASDEEQ_CA_PREFIX, name = ENABLED, havingValue = "true", matchIfMissing = true)
+    public CertificateAuthorityContributor certificateAuthorityContributor(CertificateAuthorityTasdeeqProps props,
+                                                                           @Qualifier(TASDEEQ_TASK_EXECUTOR) Executor executor) {
+        if (StringUtils.hasText(props.getSnapshotFile())) {
+            CertificateAuthorityTasdeeq.setSnapshotFile(Paths.get(props.getSnapshotFile()));
+        }
+        if (!CollectionUtils.isEmpty(props.getTrustSources())) {
+            CertificateAuthorityTasdeeq.setTrustSources(props.getTrustSources().stream()
+                    .map(CertificateAuthorityTasdeeqProps.TrustSourceProps::toTrustSource)
+                    .toList());
+        }
+        CertificateAuthorityTasdeeq.initializeAsync(executor);
+        return new CertificateAuthorityContributor(CertificateAuthorityTasdeeq::tasdeeqIfReady);
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(prefix = NEUWTON_TASDEEQ_CA_PREFIX, name = "watch-truststore", havingValue = "true")
+    public TruststoreWatcher truststoreWatcher(CertificateAuthorityTasdeeqProps props,
+                                               ObjectProvider<CertificateAuthorityContributor> contributor) {
+        // the contributor applies the configured trust sources, they decide what to watch
+        contributor.ifAvailable(ignored -> { });
+        return CertificateAuthorityTasdeeq.watchTruststore(props.getWatchPollIntervalSeconds(), TimeUnit.SECONDS);
     }
 
     @Bean
     @ConditionalOnProperty(prefix = NEUWTON_TASDEEQ_DNS_PREFIX, name = ENABLED, havingValue = "true")
-    public DNSTasdeeqResults dnsTasdeeqResults(DNSTasdeeqProps props) {
+    public DNSTasdeeqResults dnsTasdeeqResults(DNSTasdeeqProps props,
+                                               @Qualifier(TASDEEQ_TASK_EXECUTOR) Executor executor) {
         return DNSTasdeeq.tasdeeq(
                 props.getDomains(),
+                30, TimeUnit.SECONDS,
+                executor,
                 props.getRecords().toArray(String[]::new));
     }
 
@@ -77,8 +158,9 @@ public class TasdeeqAutoConfig {
     @ConditionalOnEnabledHealthIndicator("dns-details")
     public DNSTasdeeqInfoContributor dnsTasdeeqContributor(DNSTasdeeqResults results,
                                                            DNSTasdeeqProps props,
-                                                           JsonMapper jsonMapper) {
-        return new DNSTasdeeqInfoContributor(results, props, jsonMapper);
+                                                           JsonMapper jsonMapper,
+                                                           @Qualifier(TASDEEQ_TASK_EXECUTOR) Executor executor) {
+        return new DNSTasdeeqInfoContributor(results, props, jsonMapper, executor);
     }
 
     @Bean
@@ -3,6 +3,7 @@ package com.neuwton.tasdeeq.config.actuators.contributors.health;
 import com.neuwton.tasdeeq.DownstreamCertTasdeeq;
 import com.neuwton.tasdeeq.config.props.DownstreamCertTasdeeqProps;
 import com.neuwton.tasdeeq.exceptions.CertificateValidationException;
+import com.neuwton.tasdeeq.models.CertificateFacts;
 import com.neuwton.tasdeeq.models.DownstreamCertResults;
 import com.neuwton.tasdeeq.models.DownstreamCertTasdeeqResult;
 import org.springframework.boot.health.contributor.Health;
@@ -13,7 +14,6 @@ import org.springframework.util.StringUtils;
 import java.io.IOException;
 import java.security.*;
 import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
 import java.time.Instant;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -77,18 +77,18 @@ public class DownstreamCertificateHealthContributor implements HealthIndicator {
         allResults.stream()
                 .filter(r -> r.getConnectionError() == null)
                 .filter(r -> !CollectionUtils.isEmpty(r.getDownstreamCertChain()))
-                .forEach(r -> r.getDownstreamCertChain().forEach(cert -> {
-                    long notAfterMs = cert.getNotAfter().toInstant().toEpochMilli();
+                .forEach(r -> r.getCertificateFacts().forEach(cert -> {
+                    long notAfterMs = cert.getNotAfterEpochMillis();
                     long nowMs = System.currentTimeMillis();
                     String id = r.getHost() + ":" + r.getPort()
-                            + " → " + cert.getSubjectX500Principal().getName();
+                            + " → " + cert.getSubject();
 
                     if (notAfterMs < nowMs) {
-                        expiredCerts.add(id + " [expired: " + cert.getNotAfter().toInstant() + "]");
+                        expiredCerts.add(id + " [expired: " + Instant.ofEpochMilli(notAfterMs) + "]");
                     } else if (notAfterMs < nowMs + EXPIRY_CRITICAL_THRESHOLD_MS) {
-                        expiredCerts.add(id + " [expires: " + cert.getNotAfter().toInstant() + "]");
+                        expiredCerts.add(id + " [expires: " + Instant.ofEpochMilli(notAfterMs) + "]");
                     } else if (notAfterMs < nowMs + EXPIRY_WARNING_THRESHOLD_MS) {
-                        expiringSoonCerts.add(id + " [expires: " + cert.getNotAfter().toInstant() + "]");
+                        expiringSoonCerts.add(id + " [expires: " + Instant.ofEpochMilli(notAfterMs) + "]");
                     }
                 }));
 
@@ -147,13 +147,17 @@ public class DownstreamCertificateHealthContributor implements HealthIndicator {
         details.put("port", result.getPort());
         details.put("trusted", result.isTrusted());
         details.put("validateChain", result.isValidateChain());
+        if (result.getRemoteAddress() != null) {
+            details.put("remoteAddress", result.getRemoteAddress());
+            details.put("addressFamily", result.getAddressFamily());
+        }
 
         if (result.getConnectionError() != null) {
             details.put("connectionError", result.getConnectionError());
         }
 
         if (!CollectionUtils.isEmpty(result.getDownstreamCertChain())) {
-            List<Map<String, Object>> certChain = result.getDownstreamCertChain().stream()
+            List<Map<String, Object>> certChain = result.getCertificateFacts().stream()
                     .map(this::buildCertInfo)
                     .collect(Collectors.toList());
             details.put("certificateChain", certChain);
@@ -162,16 +166,19 @@ public class DownstreamCertificateHealthContributor implements HealthIndicator {
         return details;
     }
 
-    private Map<String, Object> buildCertInfo(X509Certificate cert) {
+    private Map<String, Object> buildCertInfo(CertificateFacts cert) {
         Map<String, Object> certInfo = new LinkedHashMap<>();
-        certInfo.put("subject", cert.getSubjectX500Principal().getName());
-        certInfo.put("issuer", cert.getIssuerX500Principal().getName());
-        certInfo.put("serialNumber", cert.getSerialNumber().toString());
-        certInfo.put("notBefore", cert.getNotBefore().toInstant().toString());
-        certInfo.put("notBeforeEpochMs", cert.getNotBefore().toInstant().toEpochMilli());
-        certInfo.put("notAfter", cert.getNotAfter().toInstant().toString());
-        certInfo.put("notAfterEpochMs", cert.getNotAfter().toInstant().toEpochMilli());
-        certInfo.put("signatureAlgorithm", cert.getSigAlgName());
+        certInfo.put("subject", cert.getSubject());
+        certInfo.put("issuer", cert.getIssuer());
+        certInfo.put("serialNumber", cert.getSerialNumber());
+        certInfo.put("sha256Fingerprint", cert.getSha256Fingerprint());
+        certInfo.put("notBefore", Instant.ofEpochMilli(cert.getNotBeforeEpochMillis()).toString());
+        certInfo.put("notBeforeEpochMs", cert.getNotBeforeEpochMillis());
+        certInfo.put("notAfter", Instant.ofEpochMilli(cert.getNotAfterEpochMillis()).toString());
+        certInfo.put("notAfterEpochMs", cert.getNotAfterEpochMillis());
+        certInfo.put("signatureAlgorithm", cert.getSignatureAlgorithm());
+        certInfo.put("keyAlgorithm", cert.getKeyAlgorithm());
+        certInfo.put("keySize", cert.getKeySize());
         certInfo.put("version", cert.getVersion());
 
         // Basic constraints
@@ -184,13 +191,12 @@ public class DownstreamCertificateHealthContributor implements HealthIndicator {
             certInfo.put("basicConstraints", "max-path-length:" + basicConstraints);
         }
 
-        // Certificate type
-        boolean isCA = cert.getBasicConstraints() != -1;
-        boolean isSelfSigned = cert.getSubjectX500Principal().equals(cert.getIssuerX500Principal());
-        if (isCA) {
-            certInfo.put("type", isSelfSigned ? "ROOT_CA" : "INTERMEDIATE_CA");
-        } else {
-            certInfo.put("type", "LEAF");
+        certInfo.put("type", cert.getType().name());
+        if (!cert.getSubjectAlternativeNames().isEmpty()) {
+            certInfo.put("subjectAlternativeNames", cert.getSubjectAlternativeNames());
+        }
+        if (!cert.getExtendedKeyUsages().isEmpty()) {
+            certInfo.put("extendedKeyUsages", cert.getExtendedKeyUsages());
         }
 
         return certInfo;
@@ -1,29 +1,51 @@
 package com.neuwton.tasdeeq.config.actuators.contributors.info;
 
+import com.neuwton.tasdeeq.CertificateAuthorityTasdeeq;
 import com.neuwton.tasdeeq.config.actuators.contributors.models.CACertDetails;
 import com.neuwton.tasdeeq.models.CertificateAuthorityTasdeeqResult;
+import com.neuwton.tasdeeq.models.CertificateFacts;
 import org.springframework.boot.actuate.info.Info;
 import org.springframework.boot.actuate.info.InfoContributor;
 
-import java.security.cert.X509Certificate;
+import java.time.Instant;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
-import static com.neuwton.tasdeeq.CertificateAuthorityTasdeeq.getCertificateType;
-
 public class CertificateAuthorityContributor implements InfoContributor {
 
-    private final CertificateAuthorityTasdeeqResult result;
+    private final Supplier<CertificateAuthorityTasdeeqResult> result;
 
     public CertificateAuthorityContributor(CertificateAuthorityTasdeeqResult result) {
+        this(() -> result);
+    }
+
+    /**
+     * @param result supplies the root CA index, or null while it is still being built
+     */
+    public CertificateAuthorityContributor(Supplier<CertificateAuthorityTasdeeqResult> result) {
         this.result = result;
     }
 
     @Override
     public void contribute(Info.Builder builder) {
-        List<CACertDetails> allCerts = buildCertDetails(result.getRootCAsBySubjectDN());
+        CertificateAuthorityTasdeeqResult result = this.result.get();
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("status", result == null ? CertificateAuthorityTasdeeq.status().name() : "READY");
+        if (CertificateAuthorityTasdeeq.getInitializationMillis() >= 0) {
+            status.put("initializationMillis", CertificateAuthorityTasdeeq.getInitializationMillis());
+        }
+        if (CertificateAuthorityTasdeeq.getReloadCount() > 0) {
+            status.put("reloads", CertificateAuthorityTasdeeq.getReloadCount());
+        }
+        builder.withDetail("trusted-roots-status", status);
+        if (result == null) {
+            return;
+        }
+
+        List<CACertDetails> allCerts = buildCertDetails(result.getRootCAFactsBySubjectDN());
 
         List<CACertDetails> expiredList = allCerts.stream()
                 .filter(this::isExpired)
@@ -55,21 +77,24 @@ public class CertificateAuthorityContributor implements InfoContributor {
         }
     }
 
-    private List<CACertDetails> buildCertDetails(Map<String, X509Certificate> source) {
+    /**
+     * Only reads the facts extracted when the index was built, no certificate is parsed or verified per call.
+     */
+    private List<CACertDetails> buildCertDetails(Map<String, CertificateFacts> source) {
         return source.entrySet().stream()
                 .map(entry -> {
-                    X509Certificate cert = entry.getValue();
+                    CertificateFacts facts = entry.getValue();
                     return new CACertDetails()
                             .setCertificateName(entry.getKey())
-                            .setSerialNumber(cert.getSerialNumber().toString())
-                            .setIssuerDN(cert.getIssuerX500Principal().getName())
-                            .setValidFrom(cert.getNotBefore().toInstant().toString())
-                            .setValidFromEpochMs(cert.getNotBefore().toInstant().toEpochMilli())
-                            .setValidUntil(cert.getNotAfter().toInstant().toString())
-                            .setValidUntilEpochMs(cert.getNotAfter().toInstant().toEpochMilli())
-                            .setSignatureAlgorithm(cert.getSigAlgName())
-                            .setBasicConstraints(resolveBasicConstraints(cert.getBasicConstraints()))
-                            .setCertificateType(getCertificateType(cert));
+                            .setSerialNumber(facts.getSerialNumber())
+                            .setIssuerDN(facts.getIssuer())
+                            .setValidFrom(Instant.ofEpochMilli(facts.getNotBeforeEpochMillis()).toString())
+                            .setValidFromEpochMs(facts.getNotBeforeEpochMillis())
+                            .setValidUntil(Instant.ofEpochMilli(facts.getNotAfterEpochMillis()).toString())
+                            .setValidUntilEpochMs(facts.getNotAfterEpochMillis())
+                            .setSignatureAlgorithm(facts.getSignatureAlgorithm())
+                            .setBasicConstraints(resolveBasicConstraints(facts.getBasicConstraints()))
+                            .setCertificateType(facts.getType().getLabel());
                 })
                 .collect(Collectors.toList());
     }
@@ -14,6 +14,8 @@ import tools.jackson.databind.json.JsonMapper;
 import java.time.Instant;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
@@ -24,13 +26,16 @@ public class DNSTasdeeqInfoContributor implements InfoContributor {
     private volatile DNSTasdeeqResults results;
     private final JsonMapper jsonMapper;
     private final DNSTasdeeqProps props;
+    private final Executor executor;
 
     public DNSTasdeeqInfoContributor(DNSTasdeeqResults results,
                                      DNSTasdeeqProps props,
-                                     JsonMapper jsonMapper) {
+                                     JsonMapper jsonMapper,
+                                     Executor executor) {
         this.results = results;
         this.props = props;
         this.jsonMapper = jsonMapper;
+        this.executor = executor;
     }
 
     @Override
@@ -48,6 +53,8 @@ public class DNSTasdeeqInfoContributor implements InfoContributor {
         if (isStale()) {
             results = DNSTasdeeq.tasdeeq(
                     props.getDomains(),
+                    30, TimeUnit.SECONDS,
+                    executor,
                     props.getRecords().toArray(new String[0]));
         }
 
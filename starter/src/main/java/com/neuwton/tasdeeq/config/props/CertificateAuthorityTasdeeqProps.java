@@ -1,6 +1,14 @@
 package com.neuwton.tasdeeq.config.props;
 
+import com.neuwton.tasdeeq.trust.TrustSource;
+import com.neuwton.tasdeeq.trust.TrustSources;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.StringUtils;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
 import static com.neuwton.tasdeeq.utils.TasdeeqStarterConstants.NEUWTON_TASDEEQ_CA_PREFIX;
 
@@ -8,6 +16,19 @@ import static com.neuwton.tasdeeq.utils.TasdeeqStarterConstants.NEUWTON_TASDEEQ_
 public class CertificateAuthorityTasdeeqProps {
 
     private boolean enabled = true;
+    /**
+     * Reload the root CA index when the default truststore file changes.
+     */
+    private boolean watchTruststore = false;
+    private long watchPollIntervalSeconds = 60;
+    /**
+     * Where root CAs are read from, the JVM default truststore when empty.
+     */
+    private List<TrustSourceProps> trustSources = new ArrayList<>();
+    /**
+     * File to keep a binary snapshot of the root CA index in, so the next start skips rebuilding it.
+     */
+    private String snapshotFile;
 
     public boolean isEnabled() {
         return enabled;
@@ -16,4 +37,87 @@ public class CertificateAuthorityTasdeeqProps {
     public void setEnabled(boolean enabled) {
         this.enabled = enabled;
     }
+
+    public boolean isWatchTruststore() {
+        return watchTruststore;
+    }
+
+    public void setWatchTruststore(boolean watchTruststore) {
+        this.watchTruststore = watchTruststore;
+    }
+
+    public long getWatchPollIntervalSeconds() {
+        return watchPollIntervalSeconds;
+    }
+
+    public void setWatchPollIntervalSeconds(long watchPollIntervalSeconds) {
+        this.watchPollIntervalSeconds = watchPollIntervalSeconds;
+    }
+
+    public List<TrustSourceProps> getTrustSources() {
+        return trustSources;
+    }
+
+    public void setTrustSources(List<TrustSourceProps> trustSources) {
+        this.trustSources = trustSources;
+    }
+
+    public String getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    public void setSnapshotFile(String snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    public static class TrustSourceProps {
+
+        public enum Type { JVM, JKS, PKCS12, PEM_BUNDLE, PEM_DIRECTORY }
+
+        private Type type = Type.JVM;
+        private String path;
+        private String password;
+
+        public Type getType() {
+            return type;
+        }
+
+        public void setType(Type type) {
+            this.type = type;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public void setPath(String path) {
+            this.path = path;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+
+        public void setPassword(String password) {
+            this.password = password;
+        }
+
+        public TrustSource toTrustSource() {
+            if (type == Type.JVM) {
+                return TrustSources.jvmDefault();
+            }
+            if (!StringUtils.hasText(path)) {
+                throw new IllegalArgumentException("A path is required for a " + type + " trust source");
+            }
+            Path location = Paths.get(path);
+            char[] secret = password != null ? password.toCharArray() : null;
+            return switch (type) {
+                case JKS -> TrustSources.jks(location, secret);
+                case PKCS12 -> TrustSources.pkcs12(location, secret);
+                case PEM_BUNDLE -> TrustSources.pemBundle(location);
+                case PEM_DIRECTORY -> TrustSources.pemDirectory(location);
+                default -> TrustSources.jvmDefault();
+            };
+        }
+    }
 }
@@ -0,0 +1,38 @@
+package com.neuwton.tasdeeq.config.props;
+
+import com.neuwton.tasdeeq.concurrent.TasdeeqExecutor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import static com.neuwton.tasdeeq.utils.TasdeeqStarterConstants.NEUWTON_TASDEEQ_EXECUTOR_PREFIX;
+
+@ConfigurationProperties(prefix = NEUWTON_TASDEEQ_EXECUTOR_PREFIX)
+public class TasdeeqExecutorProps {
+
+    private int poolSize = TasdeeqExecutor.DEFAULT_POOL_SIZE;
+    private int queueCapacity = TasdeeqExecutor.DEFAULT_QUEUE_CAPACITY;
+    private String threadNamePrefix = TasdeeqExecutor.DEFAULT_THREAD_NAME_PREFIX;
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public String getThreadNamePrefix() {
+        return threadNamePrefix;
+    }
+
+    public void setThreadNamePrefix(String threadNamePrefix) {
+        this.threadNamePrefix = threadNamePrefix;
+    }
+}
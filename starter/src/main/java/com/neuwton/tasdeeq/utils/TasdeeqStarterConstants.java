@@ -6,9 +6,12 @@ public class TasdeeqStarterConstants {
     public static final String NEUWTON_TASDEEQ_DNS_PREFIX = "tasdeeq.dns";
     public static final String NEUWTON_TASDEEQ_CERT_PREFIX = "tasdeeq.cert";
     public static final String NEUWTON_TASDEEQ_JVM_PREFIX = "tasdeeq.jvm";
+    public static final String NEUWTON_TASDEEQ_EXECUTOR_PREFIX = "tasdeeq.executor";
 
     public static final String ENABLED = "enabled";
 
+    public static final String TASDEEQ_TASK_EXECUTOR = "tasdeeqTaskExecutor";
+
     private TasdeeqStarterConstants() {
     }
 }
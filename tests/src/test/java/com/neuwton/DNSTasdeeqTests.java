@@ -1,11 +1,27 @@
 package com.neuwton;
 
 import com.neuwton.tasdeeq.DNSTasdeeq;
+import com.neuwton.tasdeeq.concurrent.TasdeeqExecutor;
+import com.neuwton.tasdeeq.dns.DnsContextPool;
 import com.neuwton.tasdeeq.models.DNSTasdeeqResult;
 import org.junit.jupiter.api.Test;
 
+import javax.naming.Context;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class DNSTasdeeqTests {
 
@@ -45,6 +61,23 @@ public class DNSTasdeeqTests {
         assertNotNull(result.getRecords("NS"));
     }
 
+    @Test
+    public void testDNSQueryAsync() throws Exception {
+        CompletableFuture<DNSTasdeeqResult> future = DNSTasdeeq.tasdeeqAsync("google-not-good", "A");
+        DNSTasdeeqResult result = future.get(30, TimeUnit.SECONDS);
+        assertEquals("Domain not found: google-not-good", result.getConnectionError());
+    }
+
+    @Test
+    public void testDNSQueryStream() {
+        List<String> domains = new ArrayList<>();
+        long count = DNSTasdeeq.tasdeeqStream(Stream.of("google-not-good", "google-not-good-either"), 1,
+                result -> domains.add(result.getDomain()), "A");
+        assertEquals(2, count);
+        assertEquals(2, domains.size());
+        assertTrue(domains.containsAll(List.of("google-not-good", "google-not-good-either")));
+    }
+
     @Test
     public void testDNSQueryWrongWebsite() {
         String domain = "google-not-good"; // random domain
@@ -61,4 +94,101 @@ public class DNSTasdeeqTests {
         assertEquals("Domain not found: "+domain, result.getConnectionError());
     }
 
+    @Test
+    public void testDNSContextPool() throws Exception {
+        Hashtable<String, String> env = new Hashtable<>();
+        env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.dns.DnsContextFactory");
+        env.put(Context.PROVIDER_URL, "dns://127.0.0.1");
+        DnsContextPool.clear();
+
+        DnsContextPool.Lease first = DnsContextPool.borrow(env);
+        first.release(true);
+        DnsContextPool.Lease second = DnsContextPool.borrow(env);
+        assertSame(first.getContext(), second.getContext());
+        // one borrower at a time
+        DnsContextPool.Lease third = DnsContextPool.borrow(env);
+        assertNotSame(second.getContext(), third.getContext());
+        second.release(true);
+        long discarded = DnsContextPool.getDiscardedCount();
+        third.release(false);
+        assertEquals(discarded + 1, DnsContextPool.getDiscardedCount());
+        assertEquals(1, DnsContextPool.idleCount());
+
+        try {
+            DnsContextPool.setIdleTimeout(1, TimeUnit.MILLISECONDS);
+            Thread.sleep(20);
+            assertNotSame(second.getContext(), DnsContextPool.borrow(env).getContext());
+            assertEquals(0, DnsContextPool.idleCount());
+        } finally {
+            DnsContextPool.setIdleTimeout(DnsContextPool.DEFAULT_IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testDNSQueriesShareContexts() {
+        long borrowed = DnsContextPool.getCreatedCount() + DnsContextPool.getReusedCount();
+        long created = DnsContextPool.getCreatedCount();
+        DNSTasdeeq.tasdeeq(List.of("google-not-good", "google-not-good-either", "google-not-good-at-all"), "A");
+        assertEquals(borrowed + 3, DnsContextPool.getCreatedCount() + DnsContextPool.getReusedCount());
+        DNSTasdeeqResult result = DNSTasdeeq.tasdeeq("google-not-good", "A");
+        assertEquals("Domain not found: google-not-good", result.getConnectionError());
+        // answered queries hand their context back, so the single query did not need a new one
+        assertTrue(DnsContextPool.getCreatedCount() - created <= 3);
+    }
+
+    @Test
+    public void testDNSRecordTypesFanOut() {
+        DNSTasdeeqResult result = DNSTasdeeq.tasdeeq("google.com", "A", "AAAA", "MX", "TXT", "NS", "CNAME", "A");
+        assertNotNull(result);
+        assertTrue(List.of("A", "AAAA", "MX", "TXT", "NS", "CNAME").containsAll(result.getRecords().keySet()));
+        assertTrue(List.of("A", "AAAA", "MX", "TXT", "NS", "CNAME").containsAll(result.getErrors().keySet()));
+
+        // every record type comes back not found, reported once for the domain
+        DNSTasdeeqResult notFound = DNSTasdeeq.tasdeeq("google-not-good");
+        assertEquals("Domain not found: google-not-good", notFound.getConnectionError());
+        assertTrue(notFound.getErrors().isEmpty());
+        assertTrue(notFound.getRecords().isEmpty());
+    }
+
+    @Test
+    public void testDNSLookupRejectedByAFullExecutorIsReported() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            // every lookup thread busy and the queue full
+            while (true) {
+                try {
+                    TasdeeqExecutor.lookupPool().execute(() -> {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    break;
+                }
+            }
+            // the unknown type fails on the calling thread without a query, NS is rejected instead of running there
+            DNSTasdeeqResult result = DNSTasdeeq.tasdeeq("google.com", "BOGUS", "NS");
+            assertEquals("Failed to query: Lookup rejected, the DNS lookup executor is full", result.getErrors().get("NS"));
+            assertFalse(result.getRecords().containsKey("NS"));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testDNSCombinedQuery() {
+        try {
+            DNSTasdeeq.setCombinedQueryEnabled(true);
+            DNSTasdeeqResult result = DNSTasdeeq.tasdeeq("google.com", "A", "NS");
+            assertNotNull(result);
+            assertTrue(List.of("A", "NS").containsAll(result.getRecords().keySet()));
+            DNSTasdeeqResult notFound = DNSTasdeeq.tasdeeq("google-not-good", "A", "NS");
+            assertEquals("Domain not found: google-not-good", notFound.getConnectionError());
+        } finally {
+            DNSTasdeeq.setCombinedQueryEnabled(false);
+        }
+    }
+
 }
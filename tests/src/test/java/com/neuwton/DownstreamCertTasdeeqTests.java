@@ -1,10 +1,22 @@
 package com.neuwton;
 
 import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
 import com.neuwton.tasdeeq.CertificateAuthorityTasdeeq;
 import com.neuwton.tasdeeq.DownstreamCertTasdeeq;
+import com.neuwton.tasdeeq.cache.CertificateResultCache;
+import com.neuwton.tasdeeq.concurrent.CancellationToken;
+import com.neuwton.tasdeeq.concurrent.SingleFlight;
+import com.neuwton.tasdeeq.concurrent.TasdeeqExecutor;
 import com.neuwton.tasdeeq.exceptions.CertificateValidationException;
+import com.neuwton.tasdeeq.handshake.NioHandshakeEngine;
+import com.neuwton.tasdeeq.handshake.PeerHandshake;
+import com.neuwton.tasdeeq.handshake.SocketHandshakeEngine;
+import com.neuwton.tasdeeq.models.CertificateFacts;
+import com.neuwton.tasdeeq.models.DownstreamCertResults;
 import com.neuwton.tasdeeq.models.DownstreamCertTasdeeqResult;
+import com.neuwton.tasdeeq.trust.OfflineChainValidator;
+import com.neuwton.tasdeeq.trust.SSLContextPool;
 import com.neuwton.utils.MockServer;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.junit.jupiter.api.BeforeAll;
@@ -13,21 +25,49 @@ import org.junit.jupiter.api.io.TempDir;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
 import java.security.Security;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static com.neuwton.utils.CertChainGeneratorUtil.*;
 import static com.neuwton.utils.TestConstants.*;
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
 
 public class DownstreamCertTasdeeqTests {
 
@@ -78,6 +118,481 @@ public class DownstreamCertTasdeeqTests {
         assertTrue(DownstreamCertTasdeeq.tasdeeq(domains).getResults().isEmpty());
     }
 
+    @Test
+    public void testDownstreamCertMultipleHostOnCallerExecutor() {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Map<String, DownstreamCertTasdeeq.DomainConfig> domains = new HashMap<>();
+            domains.put("localhost", new DownstreamCertTasdeeq.DomainConfig("localhost", 8443, false));
+            DownstreamCertResults results = DownstreamCertTasdeeq.tasdeeq(domains, 30, TimeUnit.SECONDS, executor);
+            assertEquals(1, results.getResults().size());
+            assertNotNull(results.getResults().get(0).getDownstreamCertChain());
+            assertFalse(executor.isShutdown());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testDownstreamCertDeadlinesOnSilentServer() throws Exception {
+        // accepts connections (backlog) but never answers the ClientHello
+        try (ServerSocket silent = new ServerSocket(0)) {
+            int port = silent.getLocalPort();
+
+            long start = System.nanoTime();
+            CertificateValidationException e = assertThrows(CertificateValidationException.class, () ->
+                    DownstreamCertTasdeeq.tasdeeq(new DownstreamCertTasdeeq.DomainConfig("localhost", port, true,
+                            1, 1, 30, TimeUnit.SECONDS)));
+            assertInstanceOf(SocketTimeoutException.class, e.getCause());
+            assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 10);
+
+            Map<String, DownstreamCertTasdeeq.DomainConfig> domains = new LinkedHashMap<>();
+            domains.put("deadline", new DownstreamCertTasdeeq.DomainConfig("localhost", port, false,
+                    10, 10, 1, TimeUnit.SECONDS));
+            domains.put("batchTimeout", new DownstreamCertTasdeeq.DomainConfig("localhost", port, true));
+            start = System.nanoTime();
+            List<DownstreamCertTasdeeqResult> results = DownstreamCertTasdeeq.tasdeeq(domains, 2, TimeUnit.SECONDS).getResults();
+            assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 10);
+
+            DownstreamCertTasdeeqResult deadline = results.get(0);
+            assertEquals("localhost", deadline.getHost());
+            assertEquals(port, deadline.getPort());
+            assertEquals("Failed to fetch certificate for localhost:" + port, deadline.getConnectionError());
+
+            DownstreamCertTasdeeqResult timedOut = results.get(1);
+            assertEquals("localhost", timedOut.getHost());
+            assertEquals(port, timedOut.getPort());
+            assertFalse(timedOut.isTrusted());
+            assertEquals("Query timed out after 2 SECONDS", timedOut.getConnectionError());
+        }
+    }
+
+    @Test
+    public void testVirtualThreadsFallBackToTheSharedPoolWithoutTheJava21Layer() {
+        // the tests run against target/classes, which never carries META-INF/versions/21
+        assumeFalse(TasdeeqExecutor.isVirtualThreadSupported());
+        boolean enabled = TasdeeqExecutor.isVirtualThreadsEnabled();
+        try {
+            TasdeeqExecutor.setVirtualThreadsEnabled(true);
+            assertSame(TasdeeqExecutor.sharedPool(), TasdeeqExecutor.virtualThreadExecutor());
+            assertSame(TasdeeqExecutor.sharedPool(), TasdeeqExecutor.defaultExecutor());
+        } finally {
+            TasdeeqExecutor.setVirtualThreadsEnabled(enabled);
+        }
+    }
+
+    @Test
+    public void testDownstreamCertBatchOnFullExecutorKeepsItsTimeout() throws Exception {
+        // accepts connections but never answers the ClientHello
+        try (ServerSocket silent = new ServerSocket(0)) {
+            int port = silent.getLocalPort();
+            Map<String, DownstreamCertTasdeeq.DomainConfig> domains = new LinkedHashMap<>();
+            for (int i = 0; i < 5; i++) {
+                // distinct trust modes and hosts so the probes do not share a handshake
+                domains.put("target-" + i, new DownstreamCertTasdeeq.DomainConfig(i % 2 == 0 ? "localhost" : "127.0.0.1",
+                        port, i < 2, 10, 10, 10, TimeUnit.SECONDS));
+            }
+            // one thread and one queue slot: the rest is rejected and must not run on this thread
+            ThreadPoolExecutor executor = TasdeeqExecutor.newProbeExecutor(1, 1, "full-");
+            try {
+                long start = System.nanoTime();
+                List<DownstreamCertTasdeeqResult> results = DownstreamCertTasdeeq.tasdeeq(domains, 1, TimeUnit.SECONDS,
+                        executor).getResults();
+                assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 3000);
+                assertEquals(5, results.size());
+                for (DownstreamCertTasdeeqResult result : results) {
+                    assertEquals("Query timed out after 1 SECONDS", result.getConnectionError());
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    public void testDownstreamCertConcurrentProbesShareOneHandshake() throws Exception {
+        try (ServerSocket silent = new ServerSocket(0)) {
+            AtomicInteger accepted = new AtomicInteger();
+            List<Socket> held = new CopyOnWriteArrayList<>();
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        held.add(silent.accept());
+                        accepted.incrementAndGet();
+                    }
+                } catch (IOException ignored) {
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+            int port = silent.getLocalPort();
+            long coalescedBefore = DownstreamCertTasdeeq.getCoalescedFetchCount();
+
+            // one endpoint listed under several keys
+            Map<String, DownstreamCertTasdeeq.DomainConfig> domains = new LinkedHashMap<>();
+            for (int i = 0; i < 4; i++) {
+                domains.put("alias-" + i, new DownstreamCertTasdeeq.DomainConfig("localhost", port, false,
+                        1, 1, 5, TimeUnit.SECONDS));
+            }
+            // one thread per alias, so all four probes are in flight together
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            List<DownstreamCertTasdeeqResult> results;
+            try {
+                results = DownstreamCertTasdeeq.tasdeeq(domains, 10, TimeUnit.SECONDS, executor).getResults();
+            } finally {
+                executor.shutdownNow();
+            }
+            assertEquals(4, results.size());
+            for (DownstreamCertTasdeeqResult result : results) {
+                assertEquals("Failed to fetch certificate for localhost:" + port, result.getConnectionError());
+            }
+            assertEquals(1, accepted.get());
+            assertEquals(3, DownstreamCertTasdeeq.getCoalescedFetchCount() - coalescedBefore);
+            for (Socket socket : held) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    public void testSingleFlightCancellingOneCallerLeavesTheOthers() throws Exception {
+        SingleFlight<String, String> flights = new SingleFlight<>();
+        ExecutorService callers = Executors.newCachedThreadPool();
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        AtomicReference<CancellationToken> shared = new AtomicReference<>();
+        AtomicReference<String> workThread = new AtomicReference<>();
+        SingleFlight.Work<String, IOException> work = token -> {
+            shared.set(token);
+            workThread.set(Thread.currentThread().getName());
+            running.countDown();
+            try {
+                finish.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return "done";
+        };
+
+        try {
+            CancellationToken first = CancellationToken.create();
+            CancellationToken second = CancellationToken.withDeadline(30, TimeUnit.SECONDS);
+            CancellationToken third = CancellationToken.create();
+            AtomicReference<String> leaderThread = new AtomicReference<>();
+            CompletableFuture<String> started = CompletableFuture.supplyAsync(() -> {
+                leaderThread.set(Thread.currentThread().getName());
+                return call(flights, first, work);
+            }, callers);
+            assertTrue(running.await(10, TimeUnit.SECONDS));
+            // the first caller runs the work itself, no other thread is involved
+            assertEquals(leaderThread.get(), workThread.get());
+            CompletableFuture<String> joined = CompletableFuture.supplyAsync(() -> call(flights, second, work), callers);
+            CompletableFuture<String> impatient = CompletableFuture.supplyAsync(() -> call(flights, third, work), callers);
+            while (flights.getCoalescedCount() < 2) {
+                Thread.sleep(5);
+            }
+
+            // a caller that joined gives up its own wait right away
+            third.cancel();
+            ExecutionException gaveUp = assertThrows(ExecutionException.class, () -> impatient.get(10, TimeUnit.SECONDS));
+            assertInstanceOf(CancellationException.class, gaveUp.getCause());
+            assertFalse(shared.get().isCancelled());
+
+            // the caller running the work gives up too, the work goes on for the one still waiting
+            first.cancel();
+            assertFalse(shared.get().isCancelled());
+            assertFalse(joined.isDone());
+            finish.countDown();
+            assertEquals("done", joined.get(10, TimeUnit.SECONDS));
+            ExecutionException leaderGaveUp = assertThrows(ExecutionException.class, () -> started.get(10, TimeUnit.SECONDS));
+            assertInstanceOf(CancellationException.class, leaderGaveUp.getCause());
+            second.release();
+            assertEquals(0, flights.inFlightCount());
+        } finally {
+            callers.shutdownNow();
+        }
+
+        // a lone caller whose deadline passes is the last to leave, that cancels the work and closes its resources
+        CountDownLatch stuck = new CountDownLatch(1);
+        CancellationToken shortDeadline = CancellationToken.withDeadline(200, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        assertThrows(CancellationException.class, () -> flights.execute("key", shortDeadline, token -> {
+            shared.set(token);
+            token.register(stuck::countDown);
+            stuck.await();
+            throw new IOException("closed");
+        }));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+        assertTrue(shared.get().isCancelled());
+    }
+
+    private static String call(SingleFlight<String, String> flights, CancellationToken token,
+                               SingleFlight.Work<String, IOException> work) {
+        try {
+            return flights.execute("key", token, work);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Test
+    public void testDownstreamCertSharedHandshakeOutlivesImpatientCaller() throws Exception {
+        // accepts connections but never answers the ClientHello
+        try (ServerSocket silent = new ServerSocket(0)) {
+            int port = silent.getLocalPort();
+            DownstreamCertTasdeeq.DomainConfig impatient = new DownstreamCertTasdeeq.DomainConfig("localhost", port,
+                    false, 2000, 2000, 300, TimeUnit.MILLISECONDS);
+            DownstreamCertTasdeeq.DomainConfig patient = new DownstreamCertTasdeeq.DomainConfig("localhost", port,
+                    false, 2000, 2000, 10000, TimeUnit.MILLISECONDS);
+
+            long start = System.nanoTime();
+            CompletableFuture<DownstreamCertTasdeeqResult> patientResult = DownstreamCertTasdeeq.tasdeeqAsync(patient);
+            Thread.sleep(100);
+            ExecutionException impatientFailure = assertThrows(ExecutionException.class, () ->
+                    DownstreamCertTasdeeq.tasdeeqAsync(impatient).get(10, TimeUnit.SECONDS));
+            long impatientMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertInstanceOf(CertificateValidationException.class, impatientFailure.getCause());
+            assertTrue(impatientMillis < 1500, "gave up after " + impatientMillis + " ms");
+
+            // still waiting for the shared handshake, which only ends at its own 2 s handshake timeout
+            assertFalse(patientResult.isDone());
+            ExecutionException patientFailure = assertThrows(ExecutionException.class, () ->
+                    patientResult.get(10, TimeUnit.SECONDS));
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 1900);
+            assertInstanceOf(SocketTimeoutException.class, patientFailure.getCause().getCause());
+        }
+    }
+
+    @Test
+    public void testDownstreamCertAsync() throws Exception {
+        DownstreamCertTasdeeqResult lenient = DownstreamCertTasdeeq.tasdeeqAsync("localhost", 8443, false).get(30, TimeUnit.SECONDS);
+        assertEquals(3, lenient.getDownstreamCertChain().size());
+        assertEquals(8443, lenient.getPort());
+
+        ExecutionException strict = assertThrows(ExecutionException.class, () ->
+                DownstreamCertTasdeeq.tasdeeqAsync("localhost", 8443, true).get(30, TimeUnit.SECONDS));
+        assertInstanceOf(CertificateValidationException.class, strict.getCause());
+
+        // cancelling the future closes the connection the probe is blocked on
+        try (ServerSocket silent = new ServerSocket(0)) {
+            CompletableFuture<DownstreamCertTasdeeqResult> future = DownstreamCertTasdeeq.tasdeeqAsync(
+                    new DownstreamCertTasdeeq.DomainConfig("localhost", silent.getLocalPort(), true, 30, 30, 60, TimeUnit.SECONDS));
+            try (Socket accepted = silent.accept()) {
+                accepted.setSoTimeout(5000);
+                future.cancel(true);
+                // the ClientHello was sent, then EOF once the probe's socket is closed
+                while (accepted.getInputStream().read() != -1) {
+                    // drain
+                }
+            }
+            assertTrue(future.isCancelled());
+        }
+    }
+
+    @Test
+    public void testDownstreamCertStream() throws Exception {
+        int closedPort;
+        try (ServerSocket closed = new ServerSocket(0)) {
+            closedPort = closed.getLocalPort();
+        }
+        int maxInFlight = 3;
+        AtomicInteger pulled = new AtomicInteger();
+        List<DownstreamCertTasdeeqResult> delivered = new ArrayList<>();
+        AtomicInteger maxOutstanding = new AtomicInteger();
+        // targets are generated lazily, never more than maxInFlight ahead of the sink
+        Iterator<DownstreamCertTasdeeq.DomainConfig> targets = IntStream.range(0, 12)
+                .mapToObj(i -> new DownstreamCertTasdeeq.DomainConfig("localhost", i % 4 == 0 ? closedPort : 8443, false))
+                .peek(config -> {
+                    int outstanding;
+                    synchronized (delivered) {
+                        outstanding = pulled.incrementAndGet() - delivered.size();
+                    }
+                    maxOutstanding.accumulateAndGet(outstanding, Math::max);
+                })
+                .iterator();
+
+        long count = DownstreamCertTasdeeq.tasdeeqStream(targets, maxInFlight, result -> {
+            synchronized (delivered) {
+                delivered.add(result);
+            }
+        });
+
+        assertEquals(12, count);
+        assertEquals(12, delivered.size());
+        assertTrue(maxOutstanding.get() <= maxInFlight, "outstanding " + maxOutstanding.get());
+        assertEquals(3, delivered.stream().filter(result -> result.getConnectionError() != null).count());
+        assertTrue(delivered.stream().filter(result -> result.getConnectionError() == null)
+                .allMatch(result -> result.getDownstreamCertChain().size() == 3 && result.getPort() == 8443));
+
+        // a failing sink stops the scan and surfaces to the caller
+        assertThrows(IllegalStateException.class, () -> DownstreamCertTasdeeq.tasdeeqStream(
+                Stream.generate(() -> new DownstreamCertTasdeeq.DomainConfig("localhost", 8443, false)), 2,
+                result -> {
+                    throw new IllegalStateException("sink full");
+                }));
+    }
+
+    @Test
+    public void testDownstreamCertResultCache() throws Exception {
+        // refreshes run on the calling thread to keep the counters deterministic
+        CertificateResultCache cache = new CertificateResultCache(300, 100, 60000, TimeUnit.MILLISECONDS, 1, Runnable::run);
+        DownstreamCertTasdeeq.DomainConfig lenient = new DownstreamCertTasdeeq.DomainConfig("localhost", 8443, false);
+
+        DownstreamCertTasdeeqResult first = cache.get(lenient);
+        assertNull(first.getConnectionError());
+        assertSame(first, cache.get(lenient));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+
+        Thread.sleep(400);
+        assertSame(first, cache.get(lenient));
+        assertEquals(1, cache.getStaleHitCount());
+        assertEquals(1, cache.getRefreshCount());
+        DownstreamCertTasdeeqResult refreshed = cache.get(lenient);
+        assertNotSame(first, refreshed);
+        assertEquals(first.getDownstreamCertChain(), refreshed.getDownstreamCertChain());
+
+        // negative entry, evicts the only other entry
+        DownstreamCertTasdeeq.DomainConfig closed = new DownstreamCertTasdeeq.DomainConfig("localhost", 1, true);
+        DownstreamCertTasdeeqResult failed = cache.get(closed);
+        assertNotNull(failed.getConnectionError());
+        assertEquals(1, failed.getPort());
+        assertSame(failed, cache.get(closed));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        Thread.sleep(200);
+        assertNotSame(failed, cache.get(closed));
+        assertEquals(3, cache.getMissCount());
+    }
+
+    @Test
+    public void testDownstreamCertResultCacheKeepsStaleResultWhenRefreshFails() throws Exception {
+        WireMockServer server = new WireMockServer(WireMockConfiguration.options()
+                .httpDisabled(true).dynamicHttpsPort().bindAddress("127.0.0.1"));
+        server.start();
+        DownstreamCertTasdeeq.DomainConfig lenient = new DownstreamCertTasdeeq.DomainConfig("127.0.0.1", server.httpsPort(), false);
+        // refreshes run on the calling thread to keep the counters deterministic
+        CertificateResultCache cache = new CertificateResultCache(300, 100, 1500, TimeUnit.MILLISECONDS, 8, Runnable::run);
+        DownstreamCertTasdeeqResult good;
+        try {
+            good = cache.get(lenient);
+            assertNull(good.getConnectionError());
+        } finally {
+            server.stop();
+        }
+
+        // the server is gone: the refresh fails, and the good result is still served while stale
+        Thread.sleep(400);
+        assertSame(good, cache.get(lenient));
+        assertEquals(1, cache.getRefreshFailureCount());
+        assertEquals(0, cache.getRefreshCount());
+        assertSame(good, cache.get(lenient));
+        assertEquals(2, cache.getStaleHitCount());
+        assertEquals(2, cache.getRefreshFailureCount());
+
+        // once the stale window closes the failure is what gets cached
+        Thread.sleep(1500);
+        DownstreamCertTasdeeqResult failed = cache.get(lenient);
+        assertNotNull(failed.getConnectionError());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testDownstreamCertMultipleHostNioEngine() throws Exception {
+        List<X509Certificate> socketChain = DownstreamCertTasdeeq.tasdeeq("localhost", 8443, false).getDownstreamCertChain();
+        try (NioHandshakeEngine engine = new NioHandshakeEngine(2, 10, TimeUnit.SECONDS)) {
+            Map<String, DownstreamCertTasdeeq.DomainConfig> domains = new LinkedHashMap<>();
+            domains.put("lenient", new DownstreamCertTasdeeq.DomainConfig("localhost", 8443, false));
+            domains.put("strict", new DownstreamCertTasdeeq.DomainConfig("localhost", 8443, true));
+            domains.put("closed", new DownstreamCertTasdeeq.DomainConfig("localhost", 1, true));
+            List<DownstreamCertTasdeeqResult> results = DownstreamCertTasdeeq.tasdeeq(domains, 30, TimeUnit.SECONDS, engine).getResults();
+            assertEquals(3, results.size());
+
+            DownstreamCertTasdeeqResult lenient = results.get(0);
+            assertNull(lenient.getConnectionError());
+            assertFalse(lenient.isTrusted());
+            assertEquals(socketChain, lenient.getDownstreamCertChain());
+
+            DownstreamCertTasdeeqResult strict = results.get(1);
+            assertFalse(strict.isTrusted());
+            assertEquals("Certificate chain validation failed for localhost:8443", strict.getConnectionError());
+
+            assertNotNull(results.get(2).getConnectionError());
+        }
+    }
+
+    @Test
+    public void testHappyEyeballsFallsBackFromAnUnreachableFirstAddress() throws Exception {
+        WireMockServer server = new WireMockServer(WireMockConfiguration.options()
+                .httpDisabled(true).dynamicHttpsPort().bindAddress("127.0.0.1"));
+        server.start();
+        int port = server.httpsPort();
+        // a listener whose backlog is full leaves further connects pending, like a black-holed address
+        List<Socket> backlog = new ArrayList<>();
+        try (ServerSocket unreachable = new ServerSocket(port, 1, InetAddress.getByName("127.0.0.2"))) {
+            while (true) {
+                Socket socket = new Socket();
+                backlog.add(socket);
+                try {
+                    socket.connect(unreachable.getLocalSocketAddress(), 200);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+            }
+            // interleaved to ::1 (refused, nothing listens there), then the pending 127.0.0.2, then 127.0.0.1
+            InetAddress[] resolved = {InetAddress.getByName("127.0.0.2"), InetAddress.getByName("127.0.0.1"),
+                    InetAddress.getByName("::1")};
+            CancellationToken token = CancellationToken.withDeadline(30, TimeUnit.SECONDS);
+            long start = System.nanoTime();
+            PeerHandshake handshake;
+            try {
+                handshake = SocketHandshakeEngine.connectAndHandshake(SSLContextPool.capture(), "localhost",
+                        resolved, port, 10000, 10000, token);
+            } finally {
+                token.release();
+            }
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertEquals(InetAddress.getByName("127.0.0.1"), handshake.getRemoteAddress().getAddress());
+            assertFalse(handshake.getCertificates().isEmpty());
+            // the next address is tried after the attempt delay, not after the 10 s connect timeout
+            assertTrue(elapsedMillis >= 250, "fell back after " + elapsedMillis + " ms");
+            assertTrue(elapsedMillis < 5000, "fell back after " + elapsedMillis + " ms");
+        } finally {
+            for (Socket socket : backlog) {
+                socket.close();
+            }
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testNioEngineRunsDelegatedTasksOffTheEventLoop() throws Exception {
+        List<String> taskThreads = new CopyOnWriteArrayList<>();
+        ExecutorService tasks = Executors.newFixedThreadPool(2, runnable -> new Thread(runnable, "delegated-task"));
+        Executor recording = task -> tasks.execute(() -> {
+            taskThreads.add(Thread.currentThread().getName());
+            task.run();
+        });
+        try (NioHandshakeEngine engine = new NioHandshakeEngine(1, 10, TimeUnit.SECONDS,
+                TasdeeqExecutor.defaultExecutor(), recording)) {
+            Map<String, DownstreamCertTasdeeq.DomainConfig> domains = new LinkedHashMap<>();
+            for (int i = 0; i < 4; i++) {
+                domains.put("lenient-" + i, new DownstreamCertTasdeeq.DomainConfig("localhost", 8443, false));
+            }
+            List<DownstreamCertTasdeeqResult> results = DownstreamCertTasdeeq.tasdeeq(domains, 30, TimeUnit.SECONDS, engine).getResults();
+            for (DownstreamCertTasdeeqResult result : results) {
+                assertNull(result.getConnectionError());
+                assertFalse(result.getDownstreamCertChain().isEmpty());
+            }
+        } finally {
+            tasks.shutdownNow();
+        }
+        // certificate checks and key exchange ran on the task executor, never on tasdeeq-nio-1
+        assertFalse(taskThreads.isEmpty());
+        assertTrue(taskThreads.stream().allMatch("delegated-task"::equals));
+    }
+
     @Test
     public void testDownstreamCertByPort() throws NoSuchAlgorithmException, KeyManagementException {
         assertNotNull(DownstreamCertTasdeeq.tasdeeq("google.com", 443));
@@ -113,6 +628,123 @@ public class DownstreamCertTasdeeqTests {
         assertNotNull(resolvedCerts);
     }
 
+    @Test
+    public void testDownstreamCertsDoNotSwapJvmDefaults() throws Exception {
+        SSLContext defaultContext = SSLContext.getDefault();
+        SSLSocketFactory defaultSocketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+        KeyStore keyStore = loadFullChainKeyStore();
+        X509Certificate rootX509Cert = (X509Certificate) keyStore.getCertificate(ROOT_CA);
+
+        assertNotNull(DownstreamCertTasdeeq.tasdeeq("localhost", 8443, false));
+        assertNotNull(DownstreamCertTasdeeq.getDownstreamCertWithCustomTruststore("localhost", 8443, true, rootX509Cert));
+
+        assertSame(defaultContext, SSLContext.getDefault());
+        assertSame(defaultSocketFactory, HttpsURLConnection.getDefaultSSLSocketFactory());
+    }
+
+    @Test
+    public void testDownstreamCertsCustomTrustContextIsPooled() throws Exception {
+        KeyStore keyStore = loadFullChainKeyStore();
+        X509Certificate rootX509Cert = (X509Certificate) keyStore.getCertificate(ROOT_CA);
+        X509Certificate intermediateX509Cert = (X509Certificate) keyStore.getCertificate(INTERMEDIATE_CA);
+
+        SSLContext pooled = SSLContextPool.customTrust(rootX509Cert, intermediateX509Cert);
+        long builds = SSLContextPool.getBuildCount();
+        // same CA set in another order, same context
+        assertSame(pooled, SSLContextPool.customTrust(intermediateX509Cert, rootX509Cert));
+        assertEquals(builds, SSLContextPool.getBuildCount());
+        assertNotSame(pooled, SSLContextPool.customTrust(rootX509Cert));
+        assertSame(SSLContextPool.capture(), SSLContextPool.capture());
+
+        builds = SSLContextPool.getBuildCount();
+        for (int i = 0; i < 3; i++) {
+            // every call still does a full handshake, sessions of pooled contexts are never resumed
+            assertEquals(3, DownstreamCertTasdeeq.getDownstreamCertWithCustomTruststore("localhost", 8443, true,
+                    intermediateX509Cert, rootX509Cert).size());
+        }
+        assertEquals(builds, SSLContextPool.getBuildCount());
+    }
+
+    @Test
+    public void testDownstreamCertFacts() {
+        DownstreamCertTasdeeqResult result = DownstreamCertTasdeeq.tasdeeq("localhost", 8443, false);
+        List<CertificateFacts> facts = result.getCertificateFacts();
+        // extracted once, every reader shares them
+        assertSame(facts, result.getCertificateFacts());
+        assertEquals(3, facts.size());
+
+        CertificateFacts leaf = facts.get(0);
+        X509Certificate leafCert = result.getDownstreamCertChain().get(0);
+        assertEquals(CertificateFacts.Type.LEAF, leaf.getType());
+        assertEquals(leafCert.getSubjectX500Principal().getName(), leaf.getSubject());
+        assertEquals(leafCert.getNotAfter().getTime(), leaf.getNotAfterEpochMillis());
+        assertEquals(64, leaf.getSha256Fingerprint().length());
+        assertFalse(leaf.isCA());
+        assertTrue(leaf.getKeySize() > 0);
+        assertEquals(CertificateFacts.Type.INTERMEDIATE_CA, facts.get(1).getType());
+        assertEquals(CertificateFacts.Type.ROOT_CA, facts.get(2).getType());
+        assertTrue(facts.get(2).isCA());
+    }
+
+    @Test
+    public void testExtractTrustCertificatesIsCached() throws Exception {
+        KeyStore keyStore = loadFullChainKeyStore();
+        X509Certificate rootX509Cert = (X509Certificate) keyStore.getCertificate(ROOT_CA);
+        String pem = "-----BEGIN CERTIFICATE-----\n"
+                + Base64.getMimeEncoder().encodeToString(rootX509Cert.getEncoded())
+                + "\n-----END CERTIFICATE-----\n";
+        String base64EncodedRoot = Base64.getEncoder().encodeToString(pem.getBytes(StandardCharsets.US_ASCII));
+
+        List<X509Certificate> first = DownstreamCertTasdeeq.extractTrustCertificates(base64EncodedRoot);
+        assertEquals(rootX509Cert, first.get(0));
+        // callers get their own list, the cached chain is left untouched
+        first.clear();
+        List<X509Certificate> second = DownstreamCertTasdeeq.extractTrustCertificates(base64EncodedRoot);
+        assertEquals(1, second.size());
+        assertSame(second.get(0), DownstreamCertTasdeeq.extractTrustCertificates(base64EncodedRoot).get(0));
+    }
+
+    @Test
+    public void testOfflineValidationBuildsThePathFromAnyOrder() throws Exception {
+        KeyStore keyStore = loadFullChainKeyStore();
+        X509Certificate rootX509Cert = (X509Certificate) keyStore.getCertificate(ROOT_CA);
+        List<X509Certificate> chain = DownstreamCertTasdeeq.tasdeeq("localhost", 8443, false).getDownstreamCertChain();
+        X509Certificate leaf = chain.get(0);
+        X509Certificate intermediate = chain.get(1);
+        X509Certificate unrelated = CertificateAuthorityTasdeeq.tasdeeq().getRootCAsBySubjectDN().values().iterator().next();
+
+        // root before the intermediate, and a certificate the path does not need
+        List<X509Certificate> reordered = List.of(leaf, rootX509Cert, unrelated, intermediate);
+        assertTrue(OfflineChainValidator.isTrusted(reordered, rootX509Cert));
+        assertTrue(OfflineChainValidator.isTrusted(List.of(leaf, intermediate), rootX509Cert));
+        // without the intermediate there is no path, however the rest is ordered
+        assertFalse(OfflineChainValidator.isTrusted(List.of(leaf, rootX509Cert, unrelated), rootX509Cert));
+        assertFalse(OfflineChainValidator.isTrusted(reordered));
+    }
+
+    @Test
+    public void testDownstreamCertLenientCapturesAndValidatesOffline() throws Exception {
+        KeyStore keyStore = loadFullChainKeyStore();
+        X509Certificate rootX509Cert = (X509Certificate) keyStore.getCertificate(ROOT_CA);
+
+        DownstreamCertTasdeeqResult result = DownstreamCertTasdeeq.tasdeeq("localhost", 8443, false);
+        List<X509Certificate> chain = result.getDownstreamCertChain();
+        assertEquals(3, chain.size());
+        assertEquals("127.0.0.1", result.getRemoteAddress());
+        assertEquals("IPv4", result.getAddressFamily());
+        assertFalse(result.isTrusted());
+        assertFalse(OfflineChainValidator.isTrusted(chain));
+        assertTrue(OfflineChainValidator.isTrusted(chain, rootX509Cert));
+
+        String pem = "-----BEGIN CERTIFICATE-----\n"
+                + Base64.getMimeEncoder().encodeToString(rootX509Cert.getEncoded())
+                + "\n-----END CERTIFICATE-----\n";
+        String base64EncodedRoot = Base64.getEncoder().encodeToString(pem.getBytes(StandardCharsets.US_ASCII));
+        DownstreamCertTasdeeqResult custom = DownstreamCertTasdeeq.tasdeeq("localhost", 8443, false, base64EncodedRoot);
+        assertEquals(3, custom.getDownstreamCertChain().size());
+        assertTrue(custom.isTrusted());
+    }
+
     @Test
     public void testDownstreamDirectRootSignedCertKeystore() throws Exception {
         generateRootSignedCertKeyStoreJKS(TEMP_DIR+JKS_FILE_NAME_ROOT_SIGNED);